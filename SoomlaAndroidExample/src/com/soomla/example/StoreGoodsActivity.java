@@ -100,13 +100,7 @@ public class StoreGoodsActivity extends Activity {
         VirtualGood good = null;
         try {
             good = (VirtualGood) StoreInfo.getVirtualItem(goodBalanceChangedEvent.getGoodItemId());
-            int id = 0;
-            for(int i=0; i<StoreInfo.getGoods().size(); i++) {
-                if (StoreInfo.getGoods().get(i).getItemId().equals(good.getItemId())) {
-                    id = i;
-                    break;
-                }
-            }
+            int id = Math.max(0, StoreInfo.getItemPosition(good.getItemId()));
             ListView list = (ListView) findViewById(R.id.list);
             TextView info = (TextView)list.getChildAt(id).findViewById(R.id.item_info);
             PurchaseType purchaseType = good.getPurchaseType();
@@ -17,9 +17,9 @@
 package com.soomla.rewards;
 
 import com.soomla.SoomlaUtils;
-import com.soomla.store.StoreInventory;
+import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.StoreJSONConsts;
-import com.soomla.store.exceptions.VirtualItemNotFoundException;
+import com.soomla.store.domain.VirtualItem;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -86,23 +86,23 @@ public class VirtualItemReward extends Reward {
      */
     @Override
     public boolean giveInner() {
-        try {
-            StoreInventory.giveVirtualItem(mAssociatedItemId, mAmount);
-        } catch (VirtualItemNotFoundException e) {
+        VirtualItem item = StoreInfo.findVirtualItem(mAssociatedItemId);
+        if (item == null) {
             SoomlaUtils.LogError(TAG, "(give) Couldn't find associated itemId: " + mAssociatedItemId);
             return false;
         }
+        item.give(mAmount);
         return true;
     }
 
     @Override
     protected boolean takeInner() {
-        try {
-            StoreInventory.takeVirtualItem(mAssociatedItemId, mAmount);
-        } catch (VirtualItemNotFoundException e) {
+        VirtualItem item = StoreInfo.findVirtualItem(mAssociatedItemId);
+        if (item == null) {
             SoomlaUtils.LogError(TAG, "(take) Couldn't find associated itemId: " + mAssociatedItemId);
             return false;
         }
+        item.take(mAmount);
 
         return true;
     }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store;
+
+/**
+ * One change of the user's inventory, to be applied together with others by
+ * {@link StoreInventory#applyBatch(java.util.List)}.
+ *
+ * Real Game Example: a loot box that grants 500 coins, 3 potions and a sword, and equips the
+ * sword:
+ * <pre>
+ * StoreInventory.applyBatch(Arrays.asList(
+ *         InventoryOperation.give("coin", 500),
+ *         InventoryOperation.give("potion", 3),
+ *         InventoryOperation.give("sword", 1),
+ *         InventoryOperation.equip("sword")));
+ * </pre>
+ */
+public class InventoryOperation {
+
+    /**
+     * The kinds of inventory changes.
+     */
+    public enum Type {
+        GIVE, TAKE, EQUIP, UNEQUIP, UPGRADE
+    }
+
+    /**
+     * Gives the user the given amount of the virtual item with the given <code>itemId</code>, the
+     * same way as {@link StoreInventory#giveVirtualItem(String, int)}.
+     *
+     * @param itemId id of the virtual item to be given
+     * @param amount amount of the item to be given
+     * @return the operation
+     */
+    public static InventoryOperation give(String itemId, int amount) {
+        return new InventoryOperation(Type.GIVE, itemId, amount);
+    }
+
+    /**
+     * Takes the given amount of the virtual item with the given <code>itemId</code> from the
+     * user, the same way as {@link StoreInventory#takeVirtualItem(String, int)}. Unlike it, the
+     * batch fails if the user doesn't have that amount.
+     *
+     * @param itemId id of the virtual item to be taken
+     * @param amount amount of the item to be taken
+     * @return the operation
+     */
+    public static InventoryOperation take(String itemId, int amount) {
+        return new InventoryOperation(Type.TAKE, itemId, amount);
+    }
+
+    /**
+     * Equips the <code>EquippableVG</code> with the given <code>goodItemId</code>, the same way
+     * as {@link StoreInventory#equipVirtualGood(String)}.
+     *
+     * @param goodItemId id of the virtual good to be equipped
+     * @return the operation
+     */
+    public static InventoryOperation equip(String goodItemId) {
+        return new InventoryOperation(Type.EQUIP, goodItemId, 0);
+    }
+
+    /**
+     * Unequips the <code>EquippableVG</code> with the given <code>goodItemId</code>, the same way
+     * as {@link StoreInventory#unEquipVirtualGood(String)}.
+     *
+     * @param goodItemId id of the virtual good to be unequipped
+     * @return the operation
+     */
+    public static InventoryOperation unequip(String goodItemId) {
+        return new InventoryOperation(Type.UNEQUIP, goodItemId, 0);
+    }
+
+    /**
+     * Upgrades the virtual good with the given <code>goodItemId</code> to its next upgrade for
+     * FREE, or to its first upgrade if it has none yet. Nothing happens if the good already has
+     * its last upgrade.
+     *
+     * @param goodItemId id of the virtual good to be upgraded
+     * @return the operation
+     */
+    public static InventoryOperation upgrade(String goodItemId) {
+        return new InventoryOperation(Type.UPGRADE, goodItemId, 0);
+    }
+
+
+    /** Setters and Getters **/
+
+    public Type getType() {
+        return mType;
+    }
+
+    public String getItemId() {
+        return mItemId;
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+
+    @Override
+    public String toString() {
+        return mType + " " + mItemId + (mAmount != 0 ? " x" + mAmount : "");
+    }
+
+
+    /** Private functions **/
+
+    private InventoryOperation(Type type, String itemId, int amount) {
+        mType = type;
+        mItemId = itemId;
+        mAmount = amount;
+    }
+
+
+    /** Private Members **/
+
+    private final Type mType;
+
+    private final String mItemId;
+
+    private final int mAmount;
+}
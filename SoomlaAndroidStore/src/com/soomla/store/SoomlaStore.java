@@ -18,6 +18,9 @@ package com.soomla.store;
 
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
 import com.soomla.BusProvider;
 import com.soomla.SoomlaApp;
 import com.soomla.SoomlaConfig;
@@ -50,12 +53,14 @@ import com.soomla.store.events.RestoreTransactionsStartedEvent;
 import com.soomla.store.events.SoomlaStoreInitializedEvent;
 import com.soomla.store.events.UnexpectedStoreErrorEvent;
 import com.soomla.store.events.VerificationStartedEvent;
-import com.soomla.store.exceptions.VirtualItemNotFoundException;
 import com.soomla.store.purchaseTypes.PurchaseWithMarket;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This class holds the basic assets needed to operate the Store.
@@ -76,7 +81,7 @@ public class SoomlaStore {
      * @param storeAssets the definition of your application specific assets.
      */
     public boolean initialize(IStoreAssets storeAssets) {
-        if (mInitialized) {
+        if (mInitialized || mInitializing) {
             String err = "SoomlaStore is already initialized. You can't initialize it twice!";
             handleErrorResult(UnexpectedStoreErrorEvent.ErrorCode.GENERAL, err);
             return false;
@@ -95,6 +100,83 @@ public class SoomlaStore {
         return true;
     }
 
+    /**
+     * Initializes the SOOMLA SDK the same way as {@link #initialize(IStoreAssets)}, without
+     * blocking the calling thread on loading the store's metadata and inventory.
+     *
+     * The billing service is loaded right away. <code>StoreInfo</code> is initialized on a
+     * background thread, and then, on the main thread, the inventory is refreshed and a
+     * {@link SoomlaStoreInitializedEvent} is posted. Until <code>StoreInfo</code> is initialized,
+     * reading it (directly or through <code>StoreInventory</code>) waits for it, however long
+     * that takes (see {@link StoreInfo#LOAD_WAIT_WARNING_MS}).
+     *
+     * @param storeAssets the definition of your application specific assets.
+     * @return true if the initialization started
+     */
+    public boolean initializeAsync(IStoreAssets storeAssets) {
+        if (mInitialized || mInitializing) {
+            String err = "SoomlaStore is already initialized. You can't initialize it twice!";
+            handleErrorResult(UnexpectedStoreErrorEvent.ErrorCode.GENERAL, err);
+            return false;
+        }
+
+        SoomlaUtils.LogDebug(TAG, "SoomlaStore Initializing in the background ...");
+
+        if (!loadBillingService()) return false;
+
+        mInitializing = true;
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        ExecutorService initializer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SOOMLA store initializer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        StoreInfo.setStoreAssetsAsync(storeAssets, initializer,
+                new StoreInfo.StoreAssetsLoadListener() {
+            @Override
+            public void success() {
+                finishInitializeAsync(mainHandler, true, null);
+            }
+
+            @Override
+            public void fail(String message) {
+                finishInitializeAsync(mainHandler, false, message);
+            }
+        });
+        // the thread ends once StoreInfo is initialized
+        initializer.shutdown();
+        return true;
+    }
+
+    /**
+     * Finishes {@link #initializeAsync(IStoreAssets)} on the main thread once
+     * <code>StoreInfo</code> is done loading. If it failed to load, the store isn't initialized
+     * and an {@link UnexpectedStoreErrorEvent} is posted instead.
+     */
+    private void finishInitializeAsync(Handler mainHandler, final boolean success,
+                                       final String message) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mInitializing = false;
+                if (!success) {
+                    handleErrorResult(UnexpectedStoreErrorEvent.ErrorCode.GENERAL,
+                            "Couldn't initialize StoreInfo in the background: " + message);
+                    return;
+                }
+
+                refreshInventory();
+
+                mInitialized = true;
+                SoomlaUtils.LogDebug(TAG, "SoomlaStore initialized in the background.");
+                BusProvider.getInstance().post(new SoomlaStoreInitializedEvent());
+            }
+        });
+    }
+
     /**
      * Starts in-app billing service in background.
      */
@@ -226,27 +308,14 @@ public class SoomlaStore {
                                     subscriptionIds.add(purchase.getSku());
                                 }
 
-                                // collect subscriptionVG list
-                                List<VirtualGood> subscriptions = new ArrayList<VirtualGood>();
-                                for (VirtualGood good : StoreInfo.getGoods()) {
-                                    if ((good.getPurchaseType() instanceof PurchaseWithMarket) && ((PurchaseWithMarket)good.getPurchaseType()).isSubscription()) {
-                                        subscriptions.add(good);
-                                    }
-                                }
-
                                 // give unset subscriptions and take expired
-                                for (VirtualGood subscription : subscriptions) {
+                                for (VirtualGood subscription : StoreInfo.getSubscriptions()) {
                                     String productId = ((PurchaseWithMarket)subscription.getPurchaseType()).getMarketItem().getProductId();
                                     if (subscriptionIds.contains(productId)) {
                                         // TODO: is here should be 1 to give? Maybe current item has not only just 0/1 state
                                         subscription.give(1, false);
                                     } else {
-                                        try {
-                                            subscription.take(StoreInventory.getVirtualItemBalance(subscription.getItemId()), false);
-                                        }
-                                        catch (VirtualItemNotFoundException ex) {
-                                            // possibly unreachable block
-                                        }
+                                        subscription.take(StorageManager.getVirtualGoodsStorage().getBalance(subscription), false);
                                     }
                                 }
                                 // TODO: Should we notify user about repaired or expired subscriptions?
@@ -339,23 +408,29 @@ public class SoomlaStore {
                                                         "\nproductId:\t" + iabSkuDetails.getSku() +
                                                         "\ndesc:\t" + iabSkuDetails.getDescription());
 
-                                                try {
-                                                    PurchasableVirtualItem pvi = StoreInfo.
-                                                            getPurchasableItem(productId);
-                                                    MarketItem mi = ((PurchaseWithMarket)
-                                                            pvi.getPurchaseType()).getMarketItem();
-                                                    mi.setMarketInformation(price, title, desc, currencyCode, priceMicros);
-
-                                                    marketItems.add(mi);
-                                                    virtualItems.add(pvi);
-                                                } catch (VirtualItemNotFoundException e) {
+                                                PurchasableVirtualItem pvi = StoreInfo.
+                                                        findPurchasableItem(productId);
+                                                if (pvi == null) {
                                                     String msg = "(refreshInventory) Couldn't find a "
                                                             + "purchasable item associated with: " + productId;
                                                     SoomlaUtils.LogError(TAG, msg);
+                                                    continue;
+                                                }
+                                                MarketItem mi = ((PurchaseWithMarket)
+                                                        pvi.getPurchaseType()).getMarketItem();
+                                                marketItems.add(mi);
+
+                                                // only the items whose details changed are saved
+                                                if (!hasMarketInformation(mi, price, title, desc,
+                                                        currencyCode, priceMicros)) {
+                                                    mi.setMarketInformation(price, title, desc, currencyCode, priceMicros);
+                                                    virtualItems.add(pvi);
                                                 }
                                             }
 
-                                            StoreInfo.save(virtualItems);
+                                            if (!virtualItems.isEmpty()) {
+                                                StoreInfo.save(virtualItems);
+                                            }
                                         }
                                         BusProvider.getInstance().post(new MarketItemsRefreshFinishedEvent(marketItems));
 
@@ -436,10 +511,8 @@ public class SoomlaStore {
             return;
         }
 
-        final PurchasableVirtualItem pvi;
-        try {
-            pvi = StoreInfo.getPurchasableItem(marketItem.getProductId());
-        } catch (VirtualItemNotFoundException e) {
+        final PurchasableVirtualItem pvi = StoreInfo.findPurchasableItem(marketItem.getProductId());
+        if (pvi == null) {
             SoomlaUtils.LogError(TAG, "Couldn't find a purchasable item associated with: " + marketItem.getProductId());
             BusProvider.getInstance().post(new UnexpectedStoreErrorEvent(UnexpectedStoreErrorEvent.ErrorCode.PURCHASE_FAIL));
             return;
@@ -474,24 +547,24 @@ public class SoomlaStore {
                                                 " consumed (maybe it's an already owned " +
                                                 "non-consumable). productId: " + sku);
 
-                                        try {
-                                            PurchasableVirtualItem pvi = StoreInfo.getPurchasableItem(sku);
-                                            consumeIfConsumable(purchase, pvi);
-
-                                            if (StoreInfo.isItemNonConsumable(pvi)) {
-                                                SoomlaUtils.LogDebug(TAG,
-                                                        "(alreadyOwned) the user tried to " +
-                                                        "buy a non-consumable that was already " +
-                                                        "owned. itemId: " + pvi.getItemId() +
-                                                        "    productId: " + sku);
-                                                BusProvider.getInstance().post(new UnexpectedStoreErrorEvent(UnexpectedStoreErrorEvent.ErrorCode.PURCHASE_FAIL));
-                                            }
-                                        } catch (VirtualItemNotFoundException e) {
+                                        PurchasableVirtualItem pvi = StoreInfo.findPurchasableItem(sku);
+                                        if (pvi == null) {
                                             SoomlaUtils.LogError(TAG,
                                                     "(alreadyOwned) ERROR : Couldn't find the " +
                                                     "VirtualCurrencyPack with productId: " + sku +
                                                     ". It's unexpected so an unexpected error is being emitted.");
                                             BusProvider.getInstance().post(new UnexpectedStoreErrorEvent(UnexpectedStoreErrorEvent.ErrorCode.PURCHASE_FAIL));
+                                            return;
+                                        }
+                                        consumeIfConsumable(purchase, pvi);
+
+                                        if (StoreInfo.isItemNonConsumable(pvi)) {
+                                            SoomlaUtils.LogDebug(TAG,
+                                                    "(alreadyOwned) the user tried to " +
+                                                    "buy a non-consumable that was already " +
+                                                    "owned. itemId: " + pvi.getItemId() +
+                                                    "    productId: " + sku);
+                                            BusProvider.getInstance().post(new UnexpectedStoreErrorEvent(UnexpectedStoreErrorEvent.ErrorCode.PURCHASE_FAIL));
                                         }
                                     }
 
@@ -572,6 +645,21 @@ public class SoomlaStore {
         return true;
     }
 
+    /**
+     * Checks if the given market item already has the given details from the market.
+     *
+     * @return true if all the details are the same, false otherwise
+     */
+    private static boolean hasMarketInformation(MarketItem marketItem, String price, String title,
+                                                String description, String currencyCode,
+                                                long priceMicros) {
+        return marketItem.getMarketPriceMicros() == priceMicros
+                && TextUtils.equals(marketItem.getMarketPriceAndCurrency(), price)
+                && TextUtils.equals(marketItem.getMarketTitle(), title)
+                && TextUtils.equals(marketItem.getMarketDescription(), description)
+                && TextUtils.equals(marketItem.getMarketCurrencyCode(), currencyCode);
+    }
+
 
     /*==================== Common callbacks for success \ failure \ finish ====================*/
 
@@ -620,10 +708,8 @@ public class SoomlaStore {
     private void handleSuccessfulPurchase(IabPurchase purchase, boolean isRestoring) {
         String sku = purchase.getSku();
 
-        PurchasableVirtualItem pvi;
-        try {
-            pvi = StoreInfo.getPurchasableItem(sku);
-        } catch (VirtualItemNotFoundException e) {
+        PurchasableVirtualItem pvi = StoreInfo.findPurchasableItem(sku);
+        if (pvi == null) {
             SoomlaUtils.LogError(TAG, "(handleSuccessfulPurchase - purchase or query-inventory) "
                     + "ERROR : Couldn't find the " +
                     " VirtualCurrencyPack OR MarketItem  with productId: " + sku +
@@ -667,10 +753,10 @@ public class SoomlaStore {
      */
     private void handleCancelledPurchase(IabPurchase purchase) {
         String sku = purchase.getSku();
-        try {
-            PurchasableVirtualItem v = StoreInfo.getPurchasableItem(sku);
+        PurchasableVirtualItem v = StoreInfo.findPurchasableItem(sku);
+        if (v != null) {
             BusProvider.getInstance().post(new MarketPurchaseCancelledEvent(v));
-        } catch (VirtualItemNotFoundException e) {
+        } else {
             SoomlaUtils.LogError(TAG, "(purchaseActionResultCancelled) ERROR : Couldn't find the "
                     + "VirtualCurrencyPack OR MarketItem  with productId: " + sku
                     + ". It's unexpected so an unexpected error is being emitted.");
@@ -687,10 +773,10 @@ public class SoomlaStore {
     private void handleVerificationStarted(List<IabPurchase> purchases) {
         for (IabPurchase purchase : purchases) {
             String sku = purchase.getSku();
-            try {
-                PurchasableVirtualItem v = StoreInfo.getPurchasableItem(sku);
+            PurchasableVirtualItem v = StoreInfo.findPurchasableItem(sku);
+            if (v != null) {
                 BusProvider.getInstance().post(new VerificationStartedEvent(v));
-            } catch (VirtualItemNotFoundException e) {
+            } else {
                 SoomlaUtils.LogError(TAG, "(purchaseActionResultCancelled) ERROR : Couldn't find the "
                         + "VirtualCurrencyPack OR MarketItem  with productId: " + sku
                         + ". It's unexpected so an unexpected error is being emitted.");
@@ -763,7 +849,7 @@ public class SoomlaStore {
         // fixes: https://github.com/soomla/unity3d-store/issues/192
         // TODO: update on the issue in github
         if (StoreInfo.isItemNonConsumable(pvi)) {
-            if (StorageManager.getVirtualItemStorage(pvi).getBalance(pvi.getItemId()) == 1) {
+            if (StorageManager.getVirtualItemStorage(pvi).getBalance(pvi) == 1) {
                 return;
             }
         }
@@ -815,7 +901,8 @@ public class SoomlaStore {
     /* Private Members */
 
     private static final String TAG = "SOOMLA SoomlaStore"; //used for Log messages
-    private boolean mInitialized = false;
+    private volatile boolean mInitialized = false;
+    private volatile boolean mInitializing = false;
     private IIabService mInAppBillingService;
 
 }
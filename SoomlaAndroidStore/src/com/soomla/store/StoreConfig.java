@@ -27,6 +27,21 @@ public class StoreConfig {
     // after a refund or not. (default: false)
     public static final boolean friendlyRefunds = false;
 
+    // A binaryMetadata tells android-store to keep the store's metadata in the database in a
+    // compact binary form instead of JSON, which loads several times faster when the app starts.
+    // JSON is still used to import and export the metadata. Metadata set from a JSON with
+    // StoreInfo.setStoreAssets(int, String) is kept in binary form either way. Set it before
+    // initializing SoomlaStore. (default: false)
+    public static boolean binaryMetadata = false;
+
+    // A lazyCatalog tells android-store to only index the store's metadata JSON when the app
+    // starts, and to create each virtual item the first time it's fetched, so the startup time
+    // doesn't grow with the size of the catalog. Fetching whole lists (such as
+    // StoreInfo.getGoods()) creates all the items. The binary form of the metadata (see
+    // binaryMetadata) is always loaded in full. Set it before initializing SoomlaStore.
+    // (default: false)
+    public static boolean lazyCatalog = false;
+
     /**
      * ---NEVER!--- CHANGE THE VALUE FOR THIS VARIABLE !!!
      * This value defines the version of the metadata located in your database.
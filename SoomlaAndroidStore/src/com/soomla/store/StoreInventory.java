@@ -19,21 +19,28 @@ package com.soomla.store;
 import android.text.TextUtils;
 import com.soomla.SoomlaUtils;
 import com.soomla.data.KeyValueStorage;
+import com.soomla.store.data.InventoryChanges;
+import com.soomla.store.data.InventorySnapshot;
 import com.soomla.store.data.StorageManager;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.VirtualCurrencyStorage;
 import com.soomla.store.data.VirtualGoodsStorage;
+import com.soomla.store.data.VirtualItemStorage;
 import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
 import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
 import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
 import com.soomla.store.domain.virtualGoods.UpgradeVG;
 import com.soomla.store.domain.virtualGoods.VirtualGood;
 import com.soomla.store.exceptions.InsufficientFundsException;
 import com.soomla.store.exceptions.NotEnoughGoodsException;
+import com.soomla.store.exceptions.TransactionConflictException;
 import com.soomla.store.exceptions.VirtualItemNotFoundException;
 
-import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 
@@ -71,7 +78,7 @@ public class StoreInventory {
      */
     public static int getVirtualItemBalance(String itemId) throws VirtualItemNotFoundException {
         VirtualItem item = StoreInfo.getVirtualItem(itemId);
-        return StorageManager.getVirtualItemStorage(item).getBalance(item.getItemId());
+        return StorageManager.getVirtualItemStorage(item).getBalance(item);
     }
 
     /**
@@ -158,7 +165,7 @@ public class StoreInventory {
             VirtualItemNotFoundException, ClassCastException{
         EquippableVG good = (EquippableVG) StoreInfo.getVirtualItem(goodItemId);
 
-        return StorageManager.getVirtualGoodsStorage().isEquipped(good.getItemId());
+        return StorageManager.getVirtualGoodsStorage().isEquipped(good);
     }
 
     /**
@@ -180,26 +187,12 @@ public class StoreInventory {
      */
     public static int getGoodUpgradeLevel(String goodItemId) throws VirtualItemNotFoundException {
         VirtualGood good = (VirtualGood) StoreInfo.getVirtualItem(goodItemId);
-        String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good.getItemId());
-        UpgradeVG upgradeVG = null;
-        try {
-            upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(upgradeVGItemId);
-        } catch (VirtualItemNotFoundException e) {
-            SoomlaUtils.LogError("SOOMLA StoreInventory", "This is BAD! Can't find the current upgrade (" + upgradeVGItemId + ") of: " + good.getItemId());
-            return 0;
-        }
+        UpgradeVG upgradeVG = currentUpgradeOf(good);
         if (upgradeVG == null) {
             return 0; //no upgrade
         }
 
-        UpgradeVG first = StoreInfo.getGoodFirstUpgrade(goodItemId);
-        int level = 1;
-        while (!first.equals(upgradeVG)) {
-            first = (UpgradeVG) StoreInfo.getVirtualItem(first.getNextItemId());
-            level++;
-        }
-
-        return level;
+        return StoreInfo.getUpgradeLevel(upgradeVG);
     }
 
     /**
@@ -214,13 +207,7 @@ public class StoreInventory {
             throws VirtualItemNotFoundException {
         VirtualGood good = (VirtualGood) StoreInfo.getVirtualItem(goodItemId);
 
-        String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good.getItemId());
-        UpgradeVG upgradeVG = null;
-        try {
-            upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(upgradeVGItemId);
-        } catch (VirtualItemNotFoundException e) {
-            SoomlaUtils.LogDebug("SOOMLA StoreInventory", "This is BAD! Can't find the current upgrade (" + upgradeVGItemId + ") of: " + good.getItemId());
-        }
+        UpgradeVG upgradeVG = currentUpgradeOf(good);
 
         if (upgradeVG == null) {
             return "";
@@ -245,13 +232,7 @@ public class StoreInventory {
             throws VirtualItemNotFoundException, InsufficientFundsException {
         VirtualGood good = (VirtualGood) StoreInfo.getVirtualItem(goodItemId);
 
-        String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good.getItemId());
-        UpgradeVG upgradeVG = null;
-        try {
-            upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(upgradeVGItemId);
-        } catch (VirtualItemNotFoundException e) {
-            SoomlaUtils.LogDebug("SOOMLA StoreInventory", "This is BAD! Can't find the current upgrade (" + upgradeVGItemId + ") of: " + good.getItemId());
-        }
+        UpgradeVG upgradeVG = currentUpgradeOf(good);
 
         if (upgradeVG != null) {
             String nextItemId = upgradeVG.getNextItemId();
@@ -302,63 +283,172 @@ public class StoreInventory {
         StorageManager.getVirtualGoodsStorage().removeUpgrades(good.getItemId());
     }
 
+    /** BATCHES **/
+
+    /**
+     * Applies the given inventory operations, in order, as one unit. This is the way to make many
+     * changes at once, such as granting the contents of a loot box.
+     *
+     * Each operation is checked against the balances left by the operations before it. If one of
+     * them fails, none of them are applied. All the changes are persisted together, and once they
+     * are, every changed item gets a single balance changed event with its final balance.
+     *
+     * @param operations the operations to apply
+     * @throws VirtualItemNotFoundException if one of the items is not in the store
+     * @throws InsufficientFundsException if a TAKE operation takes more than the user has
+     * @throws NotEnoughGoodsException if an EQUIP operation equips a good the user doesn't own
+     * @throws ClassCastException if an EQUIP or UNEQUIP operation is of a non
+     *                            <code>EquippableVG</code>, or an UPGRADE one of a non
+     *                            <code>VirtualGood</code>
+     */
+    public static void applyBatch(List<InventoryOperation> operations)
+            throws VirtualItemNotFoundException, InsufficientFundsException,
+            NotEnoughGoodsException, ClassCastException {
+        SoomlaUtils.LogDebug(TAG, "Applying a batch of " + operations.size() + " operations");
+
+        for (int attempt = 1; ; attempt++) {
+            StorageManager.beginTransaction();
+            StorageManager.coalesceBalanceEvents();
+            boolean committed = false;
+            try {
+                for (InventoryOperation operation : operations) {
+                    apply(operation);
+                }
+                StorageManager.commitTransaction();
+                committed = true;
+                return;
+            } catch (TransactionConflictException e) {
+                StorageManager.retryAfterConflict(e, attempt);
+            } finally {
+                if (!committed && StorageManager.inTransaction()) {
+                    StorageManager.rollbackTransaction();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of the balances, equipping statuses and upgrade levels of all the
+     * currencies and goods. See {@link InventorySnapshot}.
+     *
+     * @return the snapshot
+     */
+    public static InventorySnapshot getInventorySnapshot() {
+        return InventorySnapshot.take();
+    }
+
+    /**
+     * Retrieves the current inventory version. See {@link StorageManager#getInventoryVersion()}.
+     *
+     * @return the current inventory version
+     */
+    public static long getInventoryVersion() {
+        return StorageManager.getInventoryVersion();
+    }
+
+    /**
+     * Retrieves the inventory changes made after the given version, or asks for a full resync
+     * if they are no longer kept. See {@link StorageManager#changesSince(long)}.
+     *
+     * @param version a version from {@link #getInventoryVersion()},
+     *                {@link InventorySnapshot#getVersion()} or a previous result
+     * @return the changes since the given version
+     */
+    public static InventoryChanges changesSince(long version) {
+        return StorageManager.changesSince(version);
+    }
+
+    /**
+     * Retrieves the state of all the currencies and goods as a map by itemId, as read from
+     * {@link #getInventorySnapshot()}. Each item has its "balance"; an <code>EquippableVG</code>
+     * also has whether it's "equipped", and a good with upgrades has its "currentUpgrade" (or
+     * "none").
+     *
+     * @return the state of all the items
+     */
     public static HashMap<String, HashMap<String, Object>> allItemsBalances() {
         SoomlaUtils.LogDebug(TAG, "Fetching all items balances");
 
+        InventorySnapshot snapshot = getInventorySnapshot();
         HashMap<String, HashMap<String, Object>> itemsDict = new HashMap<String, HashMap<String, Object>>();
 
-        SoomlaUtils.LogDebug(TAG, "Fetching balances for Currencies");
-        // we're cloning the list to avoid situations where someone else tries to manipulate list while we iterate
-        List<VirtualCurrency> currencies = new ArrayList<VirtualCurrency>(StoreInfo.getCurrencies());
-        for(VirtualCurrency currency : currencies) {
+        BitSet currencies = snapshot.getCurrencyOrdinals();
+        for (int o = currencies.nextSetBit(0); o >= 0; o = currencies.nextSetBit(o + 1)) {
             HashMap<String, Object> updatedValues = new HashMap<String, Object>();
-            updatedValues.put("balance", StorageManager.getVirtualCurrencyStorage().getBalance(currency.getItemId()));
+            updatedValues.put("balance", snapshot.getBalance(o));
 
-            itemsDict.put(currency.getItemId(), updatedValues);
+            itemsDict.put(StoreInfo.getItemIdByOrdinal(o), updatedValues);
         }
 
-        SoomlaUtils.LogDebug(TAG, "Fetching balances for Goods");
-        // we're cloning the list to avoid situations where someone else tries to manipulate list while we iterate
-        List<VirtualGood> goods = new ArrayList<VirtualGood>(StoreInfo.getGoods());
-        for(VirtualGood good : goods) {
+        BitSet goods = snapshot.getGoodOrdinals();
+        BitSet equippables = StoreInfo.getEquippableGoodOrdinals();
+        for (int o = goods.nextSetBit(0); o >= 0; o = goods.nextSetBit(o + 1)) {
+            String goodItemId = StoreInfo.getItemIdByOrdinal(o);
             HashMap<String, Object> updatedValues = new HashMap<String, Object>();
 
-            updatedValues.put("balance", StorageManager.getVirtualGoodsStorage().getBalance(good.getItemId()));
+            updatedValues.put("balance", snapshot.getBalance(o));
 
-            if (good instanceof EquippableVG) {
-                updatedValues.put("equipped", StorageManager.getVirtualGoodsStorage().isEquipped(good.getItemId()));
+            if (equippables.get(o)) {
+                updatedValues.put("equipped", snapshot.isEquipped(o));
             }
 
-            if (StoreInfo.hasUpgrades(good.getItemId())) {
-                String vguId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good.getItemId());
-                updatedValues.put("currentUpgrade", (TextUtils.isEmpty(vguId) ? "none" : vguId ));
+            if (snapshot.hasUpgrades(o)) {
+                String vguId = snapshot.getCurrentUpgradeId(o);
+                updatedValues.put("currentUpgrade", (TextUtils.isEmpty(vguId) ? "none" : vguId));
             }
 
-            itemsDict.put(good.getItemId(), updatedValues);
+            itemsDict.put(goodItemId, updatedValues);
         }
 
         return itemsDict;
     }
 
     public static boolean resetAllItemsBalances(HashMap<String, HashMap<String, Object>> replaceBalances) {
+        return resetAllItemsBalances(replaceBalances, false);
+    }
+
+    /**
+     * Replaces the state of all the currencies and goods with the given one (see
+     * {@link #allItemsBalances()}). Items that aren't in the given state are left with nothing.
+     *
+     * With <code>writeChangesOnly</code>, the given state is compared with the current inventory
+     * and only the items that changed are written, all in one storage transaction. Otherwise the
+     * whole store state is deleted from the database and rewritten. Both give the same inventory
+     * and the same events.
+     *
+     * @param replaceBalances the state to set, by itemId
+     * @param writeChangesOnly true to write only the items that differ from the current inventory
+     * @return true if the whole state was set, false otherwise
+     */
+    public static boolean resetAllItemsBalances(HashMap<String, HashMap<String, Object>> replaceBalances,
+                                                boolean writeChangesOnly) {
         if (replaceBalances == null) {
             return false;
         }
 
         SoomlaUtils.LogDebug(TAG, "Resetting balances");
 
-        clearCurrentState();
+        if (!writeChangesOnly) {
+            clearCurrentState();
 
-        SoomlaUtils.LogDebug(TAG, "Current state was cleared");
+            SoomlaUtils.LogDebug(TAG, "Current state was cleared");
 
+            return setState(replaceBalances);
+        }
+
+        return setChangedState(replaceBalances);
+    }
+
+    /**
+     * Sets the given state over a cleared one.
+     */
+    private static boolean setState(HashMap<String, HashMap<String, Object>> replaceBalances) {
         try {
             for (String itemId : replaceBalances.keySet()) {
                 HashMap<String, Object> updatedValues = replaceBalances.get(itemId);
 
-                VirtualItem item = null;
-                try {
-                    item = StoreInfo.getVirtualItem(itemId);
-                } catch (VirtualItemNotFoundException e) {
+                VirtualItem item = StoreInfo.findVirtualItem(itemId);
+                if (item == null) {
                     SoomlaUtils.LogError(TAG, "The given itemId " + itemId + " was not found. Can't force it.");
                     continue;
                 }
@@ -396,14 +486,14 @@ public class StoreInventory {
                 if (rawCurrentUpgrade != null) {
                     String currentUpgradeId = (String) rawCurrentUpgrade;
                     if (!TextUtils.isEmpty(currentUpgradeId)) {
-                        try {
-                            UpgradeVG upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(currentUpgradeId);
+                        VirtualItem upgradeVG = StoreInfo.findVirtualItem(currentUpgradeId);
+                        if (upgradeVG instanceof UpgradeVG) {
                             upgradeVG.give(1, false);
 
                             SoomlaUtils.LogDebug(TAG, "finished upgrade balance sync for itemId: " + itemId);
-                        } catch (VirtualItemNotFoundException ex) {
+                        } else if (upgradeVG == null) {
                             SoomlaUtils.LogError(TAG, "The given upgradeId " + currentUpgradeId + " was not found. Can't force it.");
-                        } catch (ClassCastException ex) {
+                        } else {
                             SoomlaUtils.LogError(TAG, "The given upgradeId was of a non UpgradeVG VirtualItem. Can't force it.");
                         }
                     }
@@ -420,6 +510,9 @@ public class StoreInventory {
     }
 
     private static void clearCurrentState() {
+        // pending writes must reach the database before we enumerate and delete its keys
+        StorageManager.flush();
+
         List<String> allKeys = KeyValueStorage.getEncryptedKeys();
 
         for (String key : allKeys) {
@@ -429,6 +522,252 @@ public class StoreInventory {
                 KeyValueStorage.deleteKeyValue(key);
             }
         }
+        StorageManager.clearInventoryFile();
+
+        StorageManager.clearCaches();
+    }
+
+    /**
+     * Sets the given state the way {@link #clearCurrentState()} and {@link #setState(HashMap)}
+     * would, but only writes the items whose final state differs from the current one, all in one
+     * storage transaction. The final state is worked out from the given one and the metadata
+     * (equipping models, upgrade series), so nothing is cleared and then set back on the way.
+     * The current state of each item is read inside the transaction, under the item's lock (see
+     * {@link VirtualItemStorage#getBalanceForUpdate(VirtualItem)}), so changes made meanwhile by
+     * other threads are compared against too.
+     * Keys of items that are no longer in the metadata are left as they are.
+     */
+    private static boolean setChangedState(HashMap<String, HashMap<String, Object>> replaceBalances) {
+        List<VirtualCurrency> currencyList = StoreInfo.getCurrencies();
+        List<VirtualGood> goodList = StoreInfo.getGoods();
+        BitSet currencies = new BitSet();
+        for (VirtualCurrency currency : currencyList) {
+            currencies.set(currency.getOrdinal());
+        }
+        BitSet goods = new BitSet();
+        for (VirtualGood good : goodList) {
+            goods.set(good.getOrdinal());
+        }
+        int length = Math.max(currencies.length(), goods.length());
+
+        // the final state, starting from a cleared one
+        int[] balances = new int[length];
+        BitSet equipped = new BitSet();
+        String[] upgrades = new String[length];
+
+        boolean result = true;
+        try {
+            for (String itemId : replaceBalances.keySet()) {
+                HashMap<String, Object> updatedValues = replaceBalances.get(itemId);
+
+                VirtualItem item = StoreInfo.findVirtualItem(itemId);
+                if (item == null) {
+                    SoomlaUtils.LogError(TAG, "The given itemId " + itemId + " was not found. Can't force it.");
+                    continue;
+                }
+                int ordinal = item.getOrdinal();
+
+                Object rawBalance = updatedValues.get("balance");
+                if (rawBalance != null) {
+                    Integer updatedBalance = (Integer) rawBalance;
+                    if (currencies.get(ordinal) || goods.get(ordinal)) {
+                        balances[ordinal] = updatedBalance;
+                    } else {
+                        SoomlaUtils.LogError(TAG, "Can't reset the balance of " + itemId
+                                + ", it's not a currency or a good.");
+                    }
+                }
+
+                Object rawEquippedState = updatedValues.get("equipped");
+                if (rawEquippedState != null) {
+                    if (!(item instanceof EquippableVG)) {
+                        SoomlaUtils.LogError(TAG, "tried to equip a non-equippable item: " + itemId);
+                    } else if (!(Boolean) rawEquippedState) {
+                        equipped.clear(ordinal);
+                    } else if (balances[ordinal] <= 0) {
+                        SoomlaUtils.LogError(TAG, "the item " + itemId + " was not purchased, so cannot be equipped");
+                    } else {
+                        equipInState(equipped, (EquippableVG) item);
+                    }
+                }
+
+                Object rawCurrentUpgrade = updatedValues.get("currentUpgrade");
+                if (rawCurrentUpgrade != null) {
+                    String currentUpgradeId = (String) rawCurrentUpgrade;
+                    if (!TextUtils.isEmpty(currentUpgradeId)) {
+                        VirtualItem upgradeVG = StoreInfo.findVirtualItem(currentUpgradeId);
+                        if (upgradeVG instanceof UpgradeVG) {
+                            VirtualItem good = StoreInfo.findVirtualItem(
+                                    ((UpgradeVG) upgradeVG).getGoodItemId());
+                            if (good instanceof VirtualGood) {
+                                // as UpgradeVG.give(1): assign it and own it
+                                upgrades[good.getOrdinal()] = currentUpgradeId;
+                                if (balances[upgradeVG.getOrdinal()] < 1) {
+                                    balances[upgradeVG.getOrdinal()]++;
+                                }
+                            } else {
+                                SoomlaUtils.LogError(TAG, "The good of the given upgradeId " + currentUpgradeId + " was not found. Can't force it.");
+                            }
+                        } else if (upgradeVG == null) {
+                            SoomlaUtils.LogError(TAG, "The given upgradeId " + currentUpgradeId + " was not found. Can't force it.");
+                        } else {
+                            SoomlaUtils.LogError(TAG, "The given upgradeId was of a non UpgradeVG VirtualItem. Can't force it.");
+                        }
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            // like setState, keep what was set before the error
+            SoomlaUtils.LogError(TAG, "Unknown error has occurred while resetting item balances " + e.getMessage());
+            result = false;
+        }
+
+        VirtualCurrencyStorage currencyStorage = StorageManager.getVirtualCurrencyStorage();
+        VirtualGoodsStorage goodsStorage = StorageManager.getVirtualGoodsStorage();
+        for (int attempt = 1; ; attempt++) {
+            StorageManager.beginTransaction();
+            boolean committed = false;
+            try {
+                for (VirtualCurrency currency : currencyList) {
+                    int o = currency.getOrdinal();
+                    if (currencyStorage.getBalanceForUpdate(currency) != balances[o]) {
+                        currencyStorage.setBalance(currency, balances[o], false);
+                    }
+                }
+
+                BitSet equippables = StoreInfo.getEquippableGoodOrdinals();
+                for (VirtualGood good : goodList) {
+                    int o = good.getOrdinal();
+                    String goodItemId = good.getItemId();
+                    // also locks the good for the rest of the transaction, so its equipping status
+                    // and upgrade are read under the lock as well
+                    if (goodsStorage.getBalanceForUpdate(good) != balances[o]) {
+                        goodsStorage.setBalance(good, balances[o], false);
+                    }
+                    if (equippables.get(o) && goodsStorage.isEquipped(good) != equipped.get(o)) {
+                        if (equipped.get(o)) {
+                            goodsStorage.equip(goodItemId, false);
+                        } else {
+                            goodsStorage.unequip(goodItemId, false);
+                        }
+                    }
+                    if (StoreInfo.hasUpgrades(goodItemId)) {
+                        // a stored upgrade that isn't part of the good's series has no level, so
+                        // compare the upgrades themselves
+                        String currentUpgradeId = goodsStorage.getCurrentUpgrade(good);
+                        if (upgrades[o] == null) {
+                            if (currentUpgradeId != null) {
+                                goodsStorage.removeUpgrades(goodItemId, false);
+                            }
+                        } else if (!upgrades[o].equals(currentUpgradeId)) {
+                            goodsStorage.assignCurrentUpgrade(goodItemId, upgrades[o], false);
+                        }
+                    }
+                }
+
+                StorageManager.commitTransaction();
+                committed = true;
+                return result;
+            } catch (TransactionConflictException e) {
+                StorageManager.retryAfterConflict(e, attempt);
+            } finally {
+                if (!committed && StorageManager.inTransaction()) {
+                    StorageManager.rollbackTransaction();
+                }
+            }
+        }
+    }
+
+    /**
+     * Equips the given good in the given set of equipped goods the way
+     * {@link EquippableVG#equip(boolean)} does: by its equipping model, other goods may be
+     * unequipped.
+     */
+    private static void equipInState(BitSet equipped, EquippableVG good) {
+        if (good.getEquippingModel() == EquippableVG.EquippingModel.CATEGORY) {
+            VirtualCategory category = StoreInfo.findCategory(good.getItemId());
+            if (category == null) {
+                SoomlaUtils.LogError(TAG, "Tried to unequip all other category VirtualGoods but "
+                        + "there was no associated category. virtual good itemId: "
+                        + good.getItemId());
+                return;
+            }
+            equipped.andNot(StoreInfo.getCategoryGoodOrdinals(category));
+        } else if (good.getEquippingModel() == EquippableVG.EquippingModel.GLOBAL) {
+            equipped.andNot(StoreInfo.getEquippableGoodOrdinals());
+        }
+        equipped.set(good.getOrdinal());
+    }
+
+    private static void apply(InventoryOperation operation) throws VirtualItemNotFoundException,
+            InsufficientFundsException, NotEnoughGoodsException {
+        VirtualItem item = StoreInfo.getVirtualItem(operation.getItemId());
+        switch (operation.getType()) {
+            case GIVE:
+                item.give(operation.getAmount());
+                break;
+            case TAKE:
+                checkBalance(item, operation.getAmount());
+                item.take(operation.getAmount());
+                break;
+            case EQUIP:
+                ((EquippableVG) item).equip();
+                break;
+            case UNEQUIP:
+                ((EquippableVG) item).unequip();
+                break;
+            case UPGRADE:
+                VirtualGood good = (VirtualGood) item;
+                UpgradeVG upgradeVG = currentUpgradeOf(good);
+                int level = upgradeVG != null ? StoreInfo.getUpgradeLevel(upgradeVG) : 0;
+                UpgradeVG next = StoreInfo.getGoodUpgrade(good.getItemId(), level + 1);
+                if (next != null) {
+                    next.give(1);
+                } else {
+                    SoomlaUtils.LogDebug(TAG, good.getItemId() + " has no further upgrade.");
+                }
+                break;
+        }
+    }
+
+    /**
+     * Makes sure that taking the given amount of the given item takes no more than the user has.
+     * Taking packs takes their contents.
+     *
+     * @throws InsufficientFundsException if the user doesn't have enough
+     */
+    private static void checkBalance(VirtualItem item, int amount)
+            throws VirtualItemNotFoundException, InsufficientFundsException {
+        String balanceItemId = item.getItemId();
+        int needed = amount;
+        if (item instanceof VirtualCurrencyPack) {
+            balanceItemId = ((VirtualCurrencyPack) item).getCurrencyItemId();
+            needed = amount * ((VirtualCurrencyPack) item).getCurrencyAmount();
+        } else if (item instanceof SingleUsePackVG) {
+            balanceItemId = ((SingleUsePackVG) item).getGoodItemId();
+            needed = amount * ((SingleUsePackVG) item).getGoodAmount();
+        }
+
+        VirtualItem balanceItem = StoreInfo.getVirtualItem(balanceItemId);
+        VirtualItemStorage storage = StorageManager.getVirtualItemStorage(balanceItem);
+        if (storage == null || storage.getBalanceForUpdate(balanceItem) < needed) {
+            throw new InsufficientFundsException(balanceItemId);
+        }
+    }
+
+    /**
+     * Retrieves the current upgrade of the given good.
+     *
+     * @return the current upgrade, or null if the good has none
+     */
+    private static UpgradeVG currentUpgradeOf(VirtualGood good) {
+        String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good);
+        UpgradeVG upgradeVG = StoreInfo.findVirtualItem(upgradeVGItemId, UpgradeVG.class);
+        if (upgradeVG == null && !TextUtils.isEmpty(upgradeVGItemId)) {
+            SoomlaUtils.LogDebug(TAG, "This is BAD! Can't find the current upgrade (" + upgradeVGItemId + ") of: " + good.getItemId());
+        }
+        return upgradeVG;
     }
 
     private static final String TAG = "SOOMLA StoreInventory"; //used for Log messages
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+/**
+ * One change of the inventory, as returned by {@link StorageManager#changesSince(long)}.
+ */
+public final class InventoryChange {
+
+    /**
+     * The kinds of inventory changes, and what their values are.
+     */
+    public enum Kind {
+        /** The balance of a currency or good. */
+        BALANCE,
+        /** The equipping status of an <code>EquippableVG</code>: 1 if equipped, 0 otherwise. */
+        EQUIPPED,
+        /**
+         * The current upgrade of a good: the ordinal of the upgrade (see
+         * {@link StoreInfo#getItemIdByOrdinal(int)}), -1 if it has none.
+         */
+        UPGRADE
+    }
+
+
+    /** Setters and Getters **/
+
+    /**
+     * Retrieves the inventory version this change brought the inventory to.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public Kind getKind() {
+        return mKind;
+    }
+
+    public String getItemId() {
+        return mItemId;
+    }
+
+    public int getOldValue() {
+        return mOldValue;
+    }
+
+    public int getNewValue() {
+        return mNewValue;
+    }
+
+    @Override
+    public String toString() {
+        return mVersion + ": " + mKind + " " + mItemId + " " + mOldValue + " -> " + mNewValue;
+    }
+
+
+    /** Private functions **/
+
+    InventoryChange(long version, Kind kind, String itemId, int oldValue, int newValue) {
+        mVersion = version;
+        mKind = kind;
+        mItemId = itemId;
+        mOldValue = oldValue;
+        mNewValue = newValue;
+    }
+
+
+    /** Private Members **/
+
+    private final long mVersion;
+
+    private final Kind mKind;
+
+    private final String mItemId;
+
+    private final int mOldValue;
+
+    private final int mNewValue;
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The inventory version and the latest inventory changes, see
+ * {@link StorageManager#changesSince(long)}.
+ *
+ * Every change gets the next version. The changes are kept in a ring of parallel arrays, so
+ * recording one is a few array writes; once the ring is full, each change overwrites the oldest
+ * one. Change objects are only created for the changes that are read.
+ */
+final class InventoryChangeLog {
+
+    InventoryChangeLog(int capacity) {
+        mOrdinals = new int[capacity];
+        mKinds = new InventoryChange.Kind[capacity];
+        mOldValues = new int[capacity];
+        mNewValues = new int[capacity];
+    }
+
+    /**
+     * Records a change of the item with the given ordinal. Changes that keep the old value are
+     * not recorded.
+     */
+    synchronized void record(InventoryChange.Kind kind, int ordinal, int oldValue, int newValue) {
+        if (oldValue == newValue) {
+            return;
+        }
+        mVersion++;
+        int slot = (int) (mVersion % mOrdinals.length);
+        mOrdinals[slot] = ordinal;
+        mKinds[slot] = kind;
+        mOldValues[slot] = oldValue;
+        mNewValues[slot] = newValue;
+    }
+
+    /**
+     * Drops all the recorded changes, for when the inventory changed without going through the
+     * storages. Callers behind the current version will need a full resync.
+     */
+    synchronized void invalidate() {
+        mVersion++;
+        mFirstKept = mVersion + 1;
+    }
+
+    synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Retrieves the changes after the given version.
+     *
+     * @param version a version returned by this log earlier in this process
+     * @return the changes, or a full resync marker if some of them are no longer kept
+     */
+    synchronized InventoryChanges changesSince(long version) {
+        long firstKept = Math.max(mFirstKept, mVersion - mOrdinals.length + 1);
+        if (version + 1 < firstKept || version > mVersion) {
+            return new InventoryChanges(mVersion);
+        }
+
+        List<InventoryChange> changes = new ArrayList<InventoryChange>((int) (mVersion - version));
+        for (long v = version + 1; v <= mVersion; v++) {
+            int slot = (int) (v % mOrdinals.length);
+            changes.add(new InventoryChange(v, mKinds[slot],
+                    StoreInfo.getItemIdByOrdinal(mOrdinals[slot]),
+                    mOldValues[slot], mNewValues[slot]));
+        }
+        return new InventoryChanges(mVersion, changes);
+    }
+
+
+    /** Private Members **/
+
+    private long mVersion;
+
+    // the oldest version whose change is still in the ring, unless the ring wrapped past it
+    private long mFirstKept = 1;
+
+    // the change of each version, at (version % capacity)
+    private final int[] mOrdinals;
+    private final InventoryChange.Kind[] mKinds;
+    private final int[] mOldValues;
+    private final int[] mNewValues;
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes of the inventory since a given version, as returned by
+ * {@link StorageManager#changesSince(long)}.
+ *
+ * When the changes since that version are no longer kept, the result has no changes and
+ * {@link #isFullResyncNeeded()} is true: read the whole inventory again (for example with
+ * {@link InventorySnapshot#take()}) and continue from its version.
+ */
+public final class InventoryChanges {
+
+    /** Setters and Getters **/
+
+    /**
+     * Checks if the changes since the requested version are no longer kept, so the whole
+     * inventory must be read again.
+     */
+    public boolean isFullResyncNeeded() {
+        return mFullResyncNeeded;
+    }
+
+    /**
+     * Retrieves the current inventory version, to pass to the next
+     * {@link StorageManager#changesSince(long)}.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Retrieves the changes, oldest first. Empty when a full resync is needed.
+     */
+    public List<InventoryChange> getChanges() {
+        return mChanges;
+    }
+
+
+    /** Private functions **/
+
+    InventoryChanges(long version, List<InventoryChange> changes) {
+        mFullResyncNeeded = false;
+        mVersion = version;
+        mChanges = Collections.unmodifiableList(changes);
+    }
+
+    InventoryChanges(long version) {
+        mFullResyncNeeded = true;
+        mVersion = version;
+        mChanges = Collections.emptyList();
+    }
+
+
+    /** Private Members **/
+
+    private final boolean mFullResyncNeeded;
+
+    private final long mVersion;
+
+    private final List<InventoryChange> mChanges;
+}
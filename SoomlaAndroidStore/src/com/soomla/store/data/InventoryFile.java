@@ -0,0 +1,615 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the whole inventory (balances, equipping statuses and current upgrades of goods and
+ * currencies) in one memory-mapped file, as an alternative to a <code>KeyValueStorage</code> row
+ * per key. See {@link StorageManager#setInventoryFileEnabled(boolean)}.
+ *
+ * The file has a fixed layout:
+ * <ul>
+ *     <li>a header: magic, version, number of used slots, flags, the checksum of the equipped
+ *     bitset and the checksum of the header itself</li>
+ *     <li>the equipped bitset: a bit per slot</li>
+ *     <li>the slots: one per item, each holding the item's storage name (for example
+ *     <code>good.sword</code>), its balance, the slot of its current upgrade and its own
+ *     checksum</li>
+ * </ul>
+ * The checksums are verified when the file is opened. A corrupted slot is dropped on its own;
+ * a corrupted header means the file is started over.
+ *
+ * Changes are plain writes to the mapped memory, so they survive a process kill right away.
+ * {@link #force()} makes them survive a power loss as well.
+ *
+ * This class speaks in storage keys (for example <code>good.sword.balance</code>), so it can
+ * be plugged under <code>StorageManager</code> in place of <code>KeyValueStorage</code>.
+ */
+final class InventoryFile {
+
+    /**
+     * Opens (or creates) the inventory file at the given path and verifies its integrity.
+     *
+     * @param file the file to open
+     * @return the opened inventory file
+     * @throws IOException if the file can't be opened or mapped
+     */
+    static InventoryFile open(File file) throws IOException {
+        InventoryFile inventoryFile = new InventoryFile(file);
+        inventoryFile.load();
+        return inventoryFile;
+    }
+
+    /**
+     * Checks if the given key is kept in the inventory file (rather than in
+     * <code>KeyValueStorage</code>).
+     *
+     * @param key the key to check
+     * @return true if the given key is a balance, equipping or upgrade key that fits in a slot
+     */
+    synchronized boolean handles(String key) {
+        return fieldOf(key) != FIELD_NONE && nameOf(key) != null;
+    }
+
+    /**
+     * Checks if the item of the given key has a slot in the file. Values of items that have no
+     * slot aren't kept in the file, not even as missing.
+     *
+     * @param key the key to check
+     * @return true if the given key is kept in the file and its item has a slot
+     */
+    synchronized boolean hasSlot(String key) {
+        return handles(key) && mSlots.containsKey(nameOf(key));
+    }
+
+    /**
+     * Retrieves the value of the given key, in the same format <code>KeyValueStorage</code>
+     * would return it.
+     *
+     * @param key a key that this file {@link #handles(String)}
+     * @return the value of the given key or null if it doesn't exist
+     */
+    synchronized String getValue(String key) {
+        int field = fieldOf(key);
+        Integer slot = mSlots.get(nameOf(key));
+        if (slot == null) {
+            return null;
+        }
+
+        int offset = slotOffset(slot);
+        switch (field) {
+            case FIELD_BALANCE:
+                if ((mBuffer.get(offset + SLOT_FLAGS) & FLAG_HAS_BALANCE) == 0) {
+                    return null;
+                }
+                return String.valueOf(mBuffer.getInt(offset + SLOT_BALANCE));
+            case FIELD_EQUIPPED:
+                return isEquipped(slot) ? "" : null;
+            default:
+                int upgradeSlot = mBuffer.getInt(offset + SLOT_UPGRADE);
+                if (upgradeSlot < 0 || upgradeSlot >= mSlotCount
+                        || mSlotNames[upgradeSlot] == null) {
+                    return null;
+                }
+                return mSlotNames[upgradeSlot].substring(GOOD_PREFIX.length());
+        }
+    }
+
+    /**
+     * Sets the given value to the given key.
+     *
+     * Setting a value may give a slot to its item, and for an upgrade key, to the upgrade as
+     * well. If the file is full (or can't grow), nothing is changed and false is returned.
+     *
+     * @param key a key that this file {@link #handles(String)}
+     * @param val the value to set, or null to delete the key
+     * @param newNames if not null, the storage names given a new slot are added to it
+     * @return true if the value was set, false if there's no room for it
+     */
+    synchronized boolean setValue(String key, String val, List<String> newNames) {
+        int field = fieldOf(key);
+        String name = nameOf(key);
+        Integer slot = mSlots.get(name);
+        if (slot == null && val == null) {
+            return true;
+        }
+
+        String upgradeName = field == FIELD_UPGRADE && val != null ? GOOD_PREFIX + val : null;
+        int slotsNeeded = slot == null ? 1 : 0;
+        if (upgradeName != null && !upgradeName.equals(name) && !mSlots.containsKey(upgradeName)) {
+            if (utf8(upgradeName).length > MAX_NAME_BYTES) {
+                SoomlaUtils.LogError(TAG, "The name of the upgrade " + val + " is too long for"
+                        + " the inventory file. Can't keep " + key + " in it.");
+                return false;
+            }
+            slotsNeeded++;
+        }
+        if (!makeRoom(slotsNeeded, key)) {
+            return false;
+        }
+        if (slot == null) {
+            slot = newSlot(name, newNames);
+        }
+
+        int offset = slotOffset(slot);
+        switch (field) {
+            case FIELD_BALANCE:
+                byte flags = mBuffer.get(offset + SLOT_FLAGS);
+                if (val == null) {
+                    mBuffer.put(offset + SLOT_FLAGS, (byte) (flags & ~FLAG_HAS_BALANCE));
+                    mBuffer.putInt(offset + SLOT_BALANCE, 0);
+                } else {
+                    try {
+                        mBuffer.putInt(offset + SLOT_BALANCE, Integer.parseInt(val));
+                    } catch (NumberFormatException e) {
+                        SoomlaUtils.LogError(TAG, "Can't keep the non-numeric balance " + val
+                                + " of " + key + ". Ignoring it.");
+                        return true;
+                    }
+                    mBuffer.put(offset + SLOT_FLAGS, (byte) (flags | FLAG_HAS_BALANCE));
+                }
+                writeSlotCrc(slot);
+                break;
+            case FIELD_EQUIPPED:
+                setEquipped(slot, val != null);
+                break;
+            default:
+                int upgradeSlot = -1;
+                if (upgradeName != null) {
+                    Integer existing = mSlots.get(upgradeName);
+                    upgradeSlot = existing != null ? existing : newSlot(upgradeName, newNames);
+                }
+                mBuffer.putInt(offset + SLOT_UPGRADE, upgradeSlot);
+                writeSlotCrc(slot);
+                break;
+        }
+        mDirty = true;
+        return true;
+    }
+
+    /**
+     * Retrieves all the keys an item with the given storage name can keep in its slot.
+     *
+     * @param name storage name of the item (for example <code>good.sword</code>)
+     * @return the keys of the item
+     */
+    static List<String> keysOf(String name) {
+        List<String> keys = new ArrayList<String>(3);
+        keys.add(name + BALANCE_SUFFIX);
+        if (name.startsWith(GOOD_PREFIX)) {
+            keys.add(name + EQUIPPED_SUFFIX);
+            keys.add(name + UPGRADE_SUFFIX);
+        }
+        return keys;
+    }
+
+    /**
+     * Deletes all the items from the file.
+     */
+    synchronized void clear() {
+        SoomlaUtils.LogDebug(TAG, "Clearing the inventory file.");
+        byte[] empty = new byte[BITSET_SIZE];
+        mBuffer.position(BITSET_OFFSET);
+        mBuffer.put(empty);
+        mSlots.clear();
+        Arrays.fill(mSlotNames, 0, mSlotCount, null);
+        mSlotCount = 0;
+        writeHeader();
+        mDirty = true;
+    }
+
+    /**
+     * Retrieves all the keys kept in this file, with their values.
+     *
+     * @return the keys and values of this file, in the format of <code>KeyValueStorage</code>
+     */
+    synchronized Map<String, String> toKeyValues() {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            String name = mSlotNames[slot];
+            if (name == null) {
+                continue;
+            }
+            for (String key : keysOf(name)) {
+                putIfExists(values, key);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Checks if the data of <code>KeyValueStorage</code> was already copied to this file.
+     */
+    synchronized boolean isMigrated() {
+        return (mFlags & HEADER_FLAG_MIGRATED) != 0;
+    }
+
+    /**
+     * Records that the data of <code>KeyValueStorage</code> was copied to this file, and makes
+     * sure both the data and the record are on disk.
+     */
+    synchronized void markMigrated() {
+        mBuffer.force();
+        mFlags |= HEADER_FLAG_MIGRATED;
+        writeHeader();
+        mBuffer.force();
+        mDirty = false;
+    }
+
+    /**
+     * Checks if there are changes that weren't forced to disk yet.
+     */
+    synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * Forces all the changes to the storage device.
+     */
+    synchronized void force() {
+        if (mDirty) {
+            mBuffer.force();
+            mDirty = false;
+        }
+    }
+
+    /**
+     * Forces all the changes to the storage device and closes the file.
+     */
+    synchronized void close() {
+        force();
+        try {
+            mChannel.close();
+            mFile.close();
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't close the inventory file. " + e.getMessage());
+        }
+    }
+
+
+    /** Private functions */
+
+    private InventoryFile(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+    }
+
+    /**
+     * Maps the file and verifies all of its checksums, dropping what's corrupted.
+     */
+    private void load() throws IOException {
+        boolean fresh = mFile.length() < SLOTS_OFFSET;
+        if (fresh) {
+            mFile.setLength(SLOTS_OFFSET + INITIAL_SLOTS * SLOT_SIZE);
+        }
+        map();
+
+        if (!fresh && !readHeader()) {
+            SoomlaUtils.LogError(TAG, "The inventory file header is corrupted. Starting it over.");
+            fresh = true;
+        }
+        if (fresh) {
+            mSlotCount = 0;
+            mFlags = 0;
+            clear();
+            return;
+        }
+
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            String name = readSlotName(slot);
+            if (name == null || slotCrc(slot) != mBuffer.getInt(slotOffset(slot) + SLOT_CRC)) {
+                SoomlaUtils.LogError(TAG, "Slot " + slot + " of the inventory file is corrupted."
+                        + " Dropping it.");
+                emptySlot(slot);
+                continue;
+            }
+            mSlotNames[slot] = name;
+            mSlots.put(name, slot);
+        }
+
+        if (bitsetCrc() != mBuffer.getInt(HEADER_BITSET_CRC)) {
+            SoomlaUtils.LogError(TAG, "The equipped goods of the inventory file are corrupted."
+                    + " Unequipping all goods.");
+            mBuffer.position(BITSET_OFFSET);
+            mBuffer.put(new byte[BITSET_SIZE]);
+            writeHeader();
+        }
+    }
+
+    private void map() throws IOException {
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mFile.length());
+        mCapacity = (int) ((mFile.length() - SLOTS_OFFSET) / SLOT_SIZE);
+        if (mSlotNames == null) {
+            mSlotNames = new String[mCapacity];
+        } else {
+            mSlotNames = Arrays.copyOf(mSlotNames, mCapacity);
+        }
+    }
+
+    private boolean readHeader() {
+        if (mBuffer.getInt(HEADER_MAGIC) != MAGIC || mBuffer.getInt(HEADER_VERSION) != VERSION
+                || headerCrc() != mBuffer.getInt(HEADER_CRC)) {
+            return false;
+        }
+        int slotCount = mBuffer.getInt(HEADER_SLOT_COUNT);
+        if (slotCount < 0 || slotCount > mCapacity) {
+            return false;
+        }
+        mSlotCount = slotCount;
+        mFlags = mBuffer.getInt(HEADER_FLAGS);
+        return true;
+    }
+
+    private void writeHeader() {
+        mBuffer.putInt(HEADER_MAGIC, MAGIC);
+        mBuffer.putInt(HEADER_VERSION, VERSION);
+        mBuffer.putInt(HEADER_SLOT_COUNT, mSlotCount);
+        mBuffer.putInt(HEADER_FLAGS, mFlags);
+        mBuffer.putInt(HEADER_BITSET_CRC, bitsetCrc());
+        mBuffer.putInt(HEADER_CRC, headerCrc());
+    }
+
+    /**
+     * Makes sure there's room for the given number of new slots, growing the file if needed.
+     *
+     * @return true if there's room, false if the file is full or couldn't grow
+     */
+    private boolean makeRoom(int slots, String key) {
+        if (mSlotCount + slots > MAX_SLOTS) {
+            SoomlaUtils.LogError(TAG, "The inventory file is full. Can't keep " + key + " in it.");
+            return false;
+        }
+        if (mSlotCount + slots > mCapacity) {
+            try {
+                int capacity = Math.min(mCapacity * 2, MAX_SLOTS);
+                mBuffer.force();
+                mFile.setLength(SLOTS_OFFSET + (long) capacity * SLOT_SIZE);
+                map();
+            } catch (IOException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't grow the inventory file. Can't keep " + key
+                        + " in it. " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Allocates a slot for the given storage name. There must be room for it (see
+     * {@link #makeRoom(int, String)}).
+     *
+     * @return the new slot
+     */
+    private int newSlot(String name, List<String> newNames) {
+        int slot = mSlotCount++;
+        int offset = slotOffset(slot);
+        byte[] nameBytes = utf8(name);
+        mBuffer.position(offset);
+        mBuffer.put(new byte[SLOT_SIZE]);
+        mBuffer.putShort(offset + SLOT_NAME_LENGTH, (short) nameBytes.length);
+        mBuffer.position(offset + SLOT_NAME);
+        mBuffer.put(nameBytes);
+        mBuffer.putInt(offset + SLOT_UPGRADE, -1);
+        writeSlotCrc(slot);
+
+        mSlotNames[slot] = name;
+        mSlots.put(name, slot);
+        writeHeader();
+        if (newNames != null) {
+            newNames.add(name);
+        }
+        return slot;
+    }
+
+    private void emptySlot(int slot) {
+        int offset = slotOffset(slot);
+        mBuffer.position(offset);
+        mBuffer.put(new byte[SLOT_SIZE]);
+        mBuffer.putInt(offset + SLOT_UPGRADE, -1);
+        writeSlotCrc(slot);
+    }
+
+    private String readSlotName(int slot) {
+        int offset = slotOffset(slot);
+        int length = mBuffer.getShort(offset + SLOT_NAME_LENGTH);
+        if (length <= 0 || length > MAX_NAME_BYTES) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        mBuffer.position(offset + SLOT_NAME);
+        mBuffer.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void putIfExists(Map<String, String> values, String key) {
+        String val = getValue(key);
+        if (val != null) {
+            values.put(key, val);
+        }
+    }
+
+    private boolean isEquipped(int slot) {
+        return (mBuffer.get(BITSET_OFFSET + slot / 8) & (1 << (slot % 8))) != 0;
+    }
+
+    private void setEquipped(int slot, boolean equipped) {
+        int offset = BITSET_OFFSET + slot / 8;
+        byte bits = mBuffer.get(offset);
+        bits = (byte) (equipped ? bits | (1 << (slot % 8)) : bits & ~(1 << (slot % 8)));
+        mBuffer.put(offset, bits);
+        mBuffer.putInt(HEADER_BITSET_CRC, bitsetCrc());
+        mBuffer.putInt(HEADER_CRC, headerCrc());
+    }
+
+    private void writeSlotCrc(int slot) {
+        mBuffer.putInt(slotOffset(slot) + SLOT_CRC, slotCrc(slot));
+    }
+
+    private int slotCrc(int slot) {
+        return crc(slotOffset(slot), SLOT_CRC);
+    }
+
+    private int bitsetCrc() {
+        return crc(BITSET_OFFSET, (mSlotCount + 7) / 8);
+    }
+
+    private int headerCrc() {
+        return crc(0, HEADER_CRC);
+    }
+
+    private int crc(int offset, int length) {
+        mBuffer.position(offset);
+        mBuffer.get(mScratch, 0, length);
+        mCrc.reset();
+        mCrc.update(mScratch, 0, length);
+        return (int) mCrc.getValue();
+    }
+
+    private static int slotOffset(int slot) {
+        return SLOTS_OFFSET + slot * SLOT_SIZE;
+    }
+
+    private static int fieldOf(String key) {
+        if (key.startsWith(GOOD_PREFIX)) {
+            if (key.endsWith(BALANCE_SUFFIX)) {
+                return FIELD_BALANCE;
+            }
+            if (key.endsWith(EQUIPPED_SUFFIX)) {
+                return FIELD_EQUIPPED;
+            }
+            if (key.endsWith(UPGRADE_SUFFIX)) {
+                return FIELD_UPGRADE;
+            }
+        } else if (key.startsWith(CURRENCY_PREFIX) && key.endsWith(BALANCE_SUFFIX)) {
+            return FIELD_BALANCE;
+        }
+        return FIELD_NONE;
+    }
+
+    /**
+     * @return the storage name of the given key (the key without its field suffix), or null if
+     * it doesn't fit in a slot
+     */
+    private String nameOf(String key) {
+        // the storages reuse their key strings, so this is mostly a lookup by a cached hash
+        String name = mNames.get(key);
+        if (name == null) {
+            int field = fieldOf(key);
+            String suffix = field == FIELD_BALANCE ? BALANCE_SUFFIX
+                    : field == FIELD_EQUIPPED ? EQUIPPED_SUFFIX : UPGRADE_SUFFIX;
+            name = key.substring(0, key.length() - suffix.length());
+            if (utf8(name).length > MAX_NAME_BYTES) {
+                name = NOT_HANDLED;
+            }
+            mNames.put(key, name);
+        }
+        return name == NOT_HANDLED ? null : name;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA InventoryFile"; //used for Log messages
+
+    private static final String GOOD_PREFIX = VirtualGoodsStorage.DB_KEY_GOOD_PREFIX;
+    private static final String CURRENCY_PREFIX = VirtualCurrencyStorage.DB_CURRENCY_KEY_PREFIX;
+    private static final String BALANCE_SUFFIX = ".balance";
+    private static final String EQUIPPED_SUFFIX = ".equipped";
+    private static final String UPGRADE_SUFFIX = ".currentUpgrade";
+
+    private static final int FIELD_NONE = 0;
+    private static final int FIELD_BALANCE = 1;
+    private static final int FIELD_EQUIPPED = 2;
+    private static final int FIELD_UPGRADE = 3;
+
+    private static final int MAGIC = 0x534f4d49; // "SOMI"
+    private static final int VERSION = 1;
+    private static final int HEADER_FLAG_MIGRATED = 1;
+
+    // header layout
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_SLOT_COUNT = 8;
+    private static final int HEADER_FLAGS = 12;
+    private static final int HEADER_BITSET_CRC = 16;
+    private static final int HEADER_CRC = 20;
+    private static final int HEADER_SIZE = 32;
+
+    // equipped bitset, sized for the maximal number of slots so the slots never move
+    private static final int MAX_SLOTS = 16384;
+    private static final int BITSET_OFFSET = HEADER_SIZE;
+    private static final int BITSET_SIZE = MAX_SLOTS / 8;
+
+    // slot layout
+    private static final int SLOTS_OFFSET = BITSET_OFFSET + BITSET_SIZE;
+    private static final int SLOT_SIZE = 128;
+    private static final int SLOT_NAME_LENGTH = 0;
+    private static final int SLOT_NAME = 2;
+    private static final int MAX_NAME_BYTES = 96;
+    private static final int SLOT_BALANCE = 98;
+    private static final int SLOT_UPGRADE = 102;
+    private static final int SLOT_FLAGS = 106;
+    private static final int SLOT_CRC = SLOT_SIZE - 4;
+    private static final byte FLAG_HAS_BALANCE = 1;
+    private static final int INITIAL_SLOTS = 256;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private int mCapacity;
+    private int mSlotCount;
+    private int mFlags;
+    private boolean mDirty = false;
+
+    // storage name of each key seen so far (NOT_HANDLED if it doesn't fit in a slot)
+    private final Map<String, String> mNames = new HashMap<String, String>();
+    private static final String NOT_HANDLED = new String("");
+
+    // slot of each storage name, and storage name of each slot
+    private final Map<String, Integer> mSlots = new HashMap<String, Integer>();
+    private String[] mSlotNames;
+
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mScratch = new byte[BITSET_SIZE];
+}
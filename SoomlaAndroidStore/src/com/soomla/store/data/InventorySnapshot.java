@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+
+import java.util.BitSet;
+
+/**
+ * The balances, equipping statuses and current upgrades of all the currencies and goods, as they
+ * were when the snapshot was taken.
+ *
+ * The state is kept in arrays indexed by item ordinals (see {@link StoreInfo#getOrdinal(String)})
+ * and is copied from the storages' caches in bulk, so taking a snapshot allocates a few arrays
+ * rather than objects per item, and reading it is plain array access. Items that weren't cached
+ * yet are fetched (and cached) while taking it.
+ *
+ * Each value is one the item had while the snapshot was taken; to have all the values from the
+ * same moment, don't change the inventory from other threads meanwhile.
+ *
+ * To keep the snapshot up to date, apply the changes since its version (see
+ * {@link StorageManager#changesSince(long)}). The version is read before the values are copied,
+ * so changes made while taking the snapshot are part of those changes.
+ */
+public final class InventorySnapshot {
+
+    /**
+     * Takes a snapshot of the inventory of all the currencies and goods in the metadata.
+     *
+     * @return the snapshot
+     */
+    public static InventorySnapshot take() {
+        long version = StorageManager.getInventoryVersion();
+        BitSet currencies = StoreInfo.getCurrencyOrdinals();
+        BitSet goods = StoreInfo.getGoodOrdinals();
+        BitSet upgradeable = StoreInfo.getUpgradeableGoodOrdinals();
+        int length = Math.max(currencies.length(), goods.length());
+
+        int[] balances = new int[length];
+        StorageManager.getVirtualCurrencyStorage().copyBalances(currencies, balances);
+        StorageManager.getVirtualGoodsStorage().copyBalances(goods, balances);
+
+        BitSet equipped = StorageManager.getVirtualGoodsStorage().getEquippedGoods(
+                StoreInfo.getEquippableGoodOrdinals());
+
+        int[] upgrades = new int[length];
+        StorageManager.getVirtualGoodsStorage().copyUpgrades(upgradeable, upgrades);
+
+        return new InventorySnapshot(version, currencies, goods, upgradeable, balances, equipped,
+                upgrades);
+    }
+
+    /**
+     * Retrieves the inventory version the snapshot was taken at (see
+     * {@link StorageManager#getInventoryVersion()}).
+     *
+     * @return the version of the snapshot
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Retrieves the balance of the virtual item with the given <code>itemId</code>.
+     *
+     * @param itemId id of the currency or good
+     * @return the balance, or 0 if the item isn't a currency or good of the metadata
+     */
+    public int getBalance(String itemId) {
+        return getBalance(StoreInfo.findOrdinal(itemId));
+    }
+
+    /**
+     * Retrieves the balance of the virtual item with the given ordinal.
+     *
+     * @param ordinal ordinal of the currency or good
+     * @return the balance, or 0 if the item isn't a currency or good of the metadata
+     */
+    public int getBalance(int ordinal) {
+        return isItem(ordinal) ? mBalances[ordinal] : 0;
+    }
+
+    /**
+     * Checks if the <code>EquippableVG</code> with the given <code>goodItemId</code> is equipped.
+     *
+     * @param goodItemId id of the good
+     * @return true if the good is equipped, false otherwise
+     */
+    public boolean isEquipped(String goodItemId) {
+        return isEquipped(StoreInfo.findOrdinal(goodItemId));
+    }
+
+    /**
+     * Checks if the <code>EquippableVG</code> with the given ordinal is equipped.
+     *
+     * @param goodOrdinal ordinal of the good
+     * @return true if the good is equipped, false otherwise
+     */
+    public boolean isEquipped(int goodOrdinal) {
+        return goodOrdinal >= 0 && mEquipped.get(goodOrdinal);
+    }
+
+    /**
+     * Checks if the good with the given ordinal has upgrades in the metadata.
+     *
+     * @param goodOrdinal ordinal of the good
+     * @return true if the good has upgrades, false otherwise
+     */
+    public boolean hasUpgrades(int goodOrdinal) {
+        return goodOrdinal >= 0 && mUpgradeable.get(goodOrdinal);
+    }
+
+    /**
+     * Retrieves the level of the current upgrade of the good with the given
+     * <code>goodItemId</code> (see {@link StoreInfo#getUpgradeLevel(UpgradeVG)}).
+     *
+     * @param goodItemId id of the good
+     * @return the level of the current upgrade, or 0 if the good has no upgrade
+     */
+    public int getUpgradeLevel(String goodItemId) {
+        return getUpgradeLevel(StoreInfo.findOrdinal(goodItemId));
+    }
+
+    /**
+     * Retrieves the level of the current upgrade of the good with the given ordinal.
+     *
+     * @param goodOrdinal ordinal of the good
+     * @return the level of the current upgrade, or 0 if the good has no upgrade
+     */
+    public int getUpgradeLevel(int goodOrdinal) {
+        int upgradeOrdinal = getUpgradeOrdinal(goodOrdinal);
+        return upgradeOrdinal < 0 ? 0 : StoreInfo.getUpgradeLevel(upgradeOrdinal);
+    }
+
+    /**
+     * Retrieves the itemId of the current upgrade of the good with the given ordinal, as it's
+     * stored: also an upgrade that has no level, or that is no longer in the metadata.
+     *
+     * @param goodOrdinal ordinal of the good
+     * @return the itemId of the current upgrade, or null if the good has no upgrade
+     */
+    public String getCurrentUpgradeId(int goodOrdinal) {
+        int upgradeOrdinal = getUpgradeOrdinal(goodOrdinal);
+        return upgradeOrdinal < 0 ? null : StoreInfo.getItemIdByOrdinal(upgradeOrdinal);
+    }
+
+    /**
+     * Retrieves the current upgrade of the good with the given <code>goodItemId</code>.
+     *
+     * @param goodItemId id of the good
+     * @return the current upgrade, or null if the good has no upgrade or its upgrade isn't in
+     * the metadata
+     */
+    public UpgradeVG getCurrentUpgrade(String goodItemId) {
+        return StoreInfo.findVirtualItem(getCurrentUpgradeId(StoreInfo.findOrdinal(goodItemId)),
+                UpgradeVG.class);
+    }
+
+    /**
+     * Retrieves the ordinals of all the currencies in the snapshot.
+     *
+     * @return a copy of the ordinals of the currencies
+     */
+    public BitSet getCurrencyOrdinals() {
+        return (BitSet) mCurrencies.clone();
+    }
+
+    /**
+     * Retrieves the ordinals of all the goods in the snapshot.
+     *
+     * @return a copy of the ordinals of the goods
+     */
+    public BitSet getGoodOrdinals() {
+        return (BitSet) mGoods.clone();
+    }
+
+
+    /** Private functions **/
+
+    private InventorySnapshot(long version, BitSet currencies, BitSet goods, BitSet upgradeable,
+                              int[] balances, BitSet equipped, int[] upgrades) {
+        mVersion = version;
+        mCurrencies = currencies;
+        mGoods = goods;
+        mUpgradeable = upgradeable;
+        mBalances = balances;
+        mEquipped = equipped;
+        mUpgrades = upgrades;
+    }
+
+    private boolean isItem(int ordinal) {
+        return ordinal >= 0 && (mCurrencies.get(ordinal) || mGoods.get(ordinal));
+    }
+
+    private int getUpgradeOrdinal(int goodOrdinal) {
+        return hasUpgrades(goodOrdinal) ? mUpgrades[goodOrdinal] : -1;
+    }
+
+
+    /** Private Members **/
+
+    private final long mVersion;
+
+    // the catalog's own sets of ordinals, which never change
+    private final BitSet mCurrencies;
+    private final BitSet mGoods;
+    private final BitSet mUpgradeable;
+
+    // the state of each item at its ordinal
+    private final int[] mBalances;
+    private final BitSet mEquipped;
+    // the ordinal of the current upgrade of each good, -1 if it has none
+    private final int[] mUpgrades;
+}
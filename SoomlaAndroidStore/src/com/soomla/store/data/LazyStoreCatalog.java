@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A <code>StoreCatalog</code> that creates its items on first access.
+ *
+ * Loading it only indexes the items (see {@link StoreJSONIndexer}): their itemId, type, position
+ * and productId, next to the JSON text each item will be created from. Categories are small and
+ * are created right away.
+ * {@link #getVirtualItem(String)} and {@link #getPurchasableItem(String)} create the one item
+ * they return. Upgrade lookups create the upgrades only. Everything that returns whole lists
+ * creates all the items once, and is then served by a regular <code>StoreCatalog</code>.
+ *
+ * An item is created once and shared by every snapshot that has it, so each itemId maps to a
+ * single object, just like with a regular <code>StoreCatalog</code>.
+ */
+final class LazyStoreCatalog extends StoreCatalog {
+
+    /**
+     * Constructor.
+     *
+     * @param entries the entries of the items by their type (the key of their list in the
+     *                metadata JSON, such as {@link StoreJSONConsts#STORE_GOODS_SU})
+     * @param categories the virtual categories
+     */
+    LazyStoreCatalog(Map<String, List<Entry>> entries, List<VirtualCategory> categories) {
+        this(categories);
+
+        addEntries(mCurrencyEntries, entries, StoreJSONConsts.STORE_CURRENCIES);
+        addEntries(mCurrencyPackEntries, entries, StoreJSONConsts.STORE_CURRENCYPACKS);
+        // the goods are ordered by type, the same way as in the metadata JSON
+        addEntries(mGoodEntries, entries, StoreJSONConsts.STORE_GOODS_SU);
+        addEntries(mGoodEntries, entries, StoreJSONConsts.STORE_GOODS_LT);
+        addEntries(mGoodEntries, entries, StoreJSONConsts.STORE_GOODS_EQ);
+        addEntries(mGoodEntries, entries, StoreJSONConsts.STORE_GOODS_PA);
+        addEntries(mGoodEntries, entries, StoreJSONConsts.STORE_GOODS_UP);
+
+        index();
+    }
+
+    /**
+     * Creates a new snapshot in which the given virtual items replace the items with the same
+     * itemIds, at the same positions. Items that don't exist yet are added at the end of their
+     * list. No other item gets created.
+     *
+     * @param virtualItems the virtual items that replace the old ones if exist
+     * @return the new snapshot
+     */
+    @Override
+    StoreCatalog replace(List<? extends VirtualItem> virtualItems) {
+        LazyStoreCatalog catalog = new LazyStoreCatalog(mCategoriesCatalog.getCategories());
+        catalog.mCurrencyEntries.addAll(mCurrencyEntries);
+        catalog.mCurrencyPackEntries.addAll(mCurrencyPackEntries);
+        catalog.mGoodEntries.addAll(mGoodEntries);
+
+        // positions of the items added by this replacement
+        HashMap<String, Integer> added = new HashMap<String, Integer>();
+        for (VirtualItem virtualItem : virtualItems) {
+            Entry entry = new Entry(StoreJSONReader.typeOf(virtualItem), virtualItem);
+            if (virtualItem instanceof VirtualCurrency) {
+                replaceIn(catalog.mCurrencyEntries, entry, added);
+            } else if (virtualItem instanceof VirtualCurrencyPack) {
+                replaceIn(catalog.mCurrencyPackEntries, entry, added);
+            } else if (virtualItem instanceof VirtualGood) {
+                replaceIn(catalog.mGoodEntries, entry, added);
+            }
+        }
+
+        catalog.index();
+        return catalog;
+    }
+
+    @Override
+    JSONObject toJSONObject() {
+        return hydrated().toJSONObject();
+    }
+
+    /**
+     * Links the items that were already created. The others are linked when they are created.
+     */
+    @Override
+    void link() {
+        linkCreated(mCurrencyPackEntries);
+        linkCreated(mGoodEntries);
+    }
+
+    @Override
+    VirtualItem getLinkTarget(String itemId) {
+        Entry entry = mEntries.get(itemId);
+        return entry != null ? entry.getItem() : null;
+    }
+
+
+    /** Setters and Getters */
+
+    @Override
+    VirtualItem getVirtualItem(String itemId) {
+        Entry entry = mEntries.get(itemId);
+        return entry != null ? itemOf(entry) : null;
+    }
+
+    @Override
+    int getPosition(String itemId) {
+        Integer position = mPositions.get(itemId);
+        return position != null ? position : -1;
+    }
+
+    @Override
+    PurchasableVirtualItem getPurchasableItem(String productId) {
+        String itemId = mProductItemIds.get(productId);
+        if (itemId == null) {
+            return null;
+        }
+        VirtualItem item = getVirtualItem(itemId);
+        return item instanceof PurchasableVirtualItem ? (PurchasableVirtualItem) item : null;
+    }
+
+    @Override
+    VirtualCategory getCategory(String goodItemId) {
+        return mCategoriesCatalog.getCategory(goodItemId);
+    }
+
+    @Override
+    List<UpgradeVG> getGoodUpgrades(String goodItemId) {
+        return upgrades().getGoodUpgrades(goodItemId);
+    }
+
+    @Override
+    UpgradeVG[] getGoodUpgradeChain(String goodItemId) {
+        return upgrades().getGoodUpgradeChain(goodItemId);
+    }
+
+    @Override
+    int getUpgradeLevel(int ordinal) {
+        return upgrades().getUpgradeLevel(ordinal);
+    }
+
+    @Override
+    BitSet getCurrencyOrdinals() {
+        return mCurrencyOrdinals;
+    }
+
+    @Override
+    BitSet getGoodOrdinals() {
+        return mGoodOrdinals;
+    }
+
+    @Override
+    BitSet getUpgradeableGoodOrdinals() {
+        return upgrades().getUpgradeableGoodOrdinals();
+    }
+
+    @Override
+    BitSet getEquippableGoodOrdinals() {
+        return mEquippableGoodOrdinals;
+    }
+
+    @Override
+    BitSet getCategoryGoodOrdinals(VirtualCategory category) {
+        return mCategoriesCatalog.getCategoryGoodOrdinals(category);
+    }
+
+    @Override
+    List<VirtualCurrency> getCurrencies() {
+        return hydrated().getCurrencies();
+    }
+
+    @Override
+    List<VirtualCurrencyPack> getCurrencyPacks() {
+        return hydrated().getCurrencyPacks();
+    }
+
+    @Override
+    List<VirtualGood> getGoods() {
+        return hydrated().getGoods();
+    }
+
+    @Override
+    List<VirtualCategory> getCategories() {
+        return mCategoriesCatalog.getCategories();
+    }
+
+    @Override
+    List<String> getAllProductIds() {
+        return new ArrayList<String>(mProductItemIds.keySet());
+    }
+
+    @Override
+    <T extends VirtualGood> List<T> getGoods(Class<T> goodClass) {
+        return hydrated().getGoods(goodClass);
+    }
+
+    @Override
+    List<PurchasableVirtualItem> getPurchasableItems(Class<? extends PurchaseType> purchaseType) {
+        return hydrated().getPurchasableItems(purchaseType);
+    }
+
+    @Override
+    List<PurchasableVirtualItem> getItemsPricedIn(String itemId) {
+        return hydrated().getItemsPricedIn(itemId);
+    }
+
+    /**
+     * Creates only the goods of the given category.
+     */
+    @Override
+    List<VirtualGood> getCategoryGoods(VirtualCategory category) {
+        if (!mCategoriesCatalog.getCategories().contains(category)) {
+            return Collections.emptyList();
+        }
+        List<VirtualGood> goods = new ArrayList<VirtualGood>();
+        for (String goodItemId : category.getGoodsItemIds()) {
+            VirtualItem good = getVirtualItem(goodItemId);
+            if (good instanceof VirtualGood) {
+                goods.add((VirtualGood) good);
+            }
+        }
+        return Collections.unmodifiableList(goods);
+    }
+
+    @Override
+    List<VirtualGood> getSubscriptions() {
+        return hydrated().getSubscriptions();
+    }
+
+    @Override
+    List<String> getCurrencyItemIds() {
+        return mCurrencyItemIds;
+    }
+
+    @Override
+    List<String> getGoodItemIds() {
+        return mGoodItemIds;
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Constructor.
+     * An empty snapshot with the given categories, to be filled with entries and then indexed.
+     */
+    private LazyStoreCatalog(List<VirtualCategory> categories) {
+        super(Collections.<VirtualCurrency>emptyList(),
+                Collections.<VirtualCurrencyPack>emptyList(),
+                Collections.<VirtualGood>emptyList(), Collections.<VirtualCategory>emptyList());
+        mCategoriesCatalog = new StoreCatalog(Collections.<VirtualCurrency>emptyList(),
+                Collections.<VirtualCurrencyPack>emptyList(),
+                Collections.<VirtualGood>emptyList(), categories);
+    }
+
+    private static void addEntries(List<Entry> entries, Map<String, List<Entry>> byType,
+                                   String type) {
+        List<Entry> typeEntries = byType.get(type);
+        if (typeEntries != null) {
+            entries.addAll(typeEntries);
+        }
+    }
+
+    private void replaceIn(List<Entry> entries, Entry entry, HashMap<String, Integer> added) {
+        Integer position = added.get(entry.itemId);
+        if (position == null) {
+            position = mPositions.get(entry.itemId);
+        }
+
+        // the position may belong to a list of another type if the item changed its type
+        if (position != null && position < entries.size()
+                && entries.get(position).itemId.equals(entry.itemId)) {
+            entries.set(position, entry);
+        } else {
+            added.put(entry.itemId, entries.size());
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * Builds the lookups that don't need the items themselves. Items are visited in catalog order
+     * so that they get the lowest (densest) ordinals, as with a regular <code>StoreCatalog</code>.
+     */
+    private void index() {
+        indexEntries(mCurrencyEntries, mCurrencyItemIds, mCurrencyOrdinals);
+        indexEntries(mCurrencyPackEntries, null, null);
+        indexEntries(mGoodEntries, mGoodItemIds, mGoodOrdinals);
+    }
+
+    private void indexEntries(List<Entry> entries, List<String> itemIds, BitSet ordinals) {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            int ordinal = StoreInfo.getOrdinal(entry.itemId);
+            mEntries.put(entry.itemId, entry);
+            mPositions.put(entry.itemId, i);
+            if (itemIds != null) {
+                itemIds.add(entry.itemId);
+                ordinals.set(ordinal);
+            }
+            if (entry.productId != null) {
+                mProductItemIds.put(entry.productId, entry.itemId);
+            }
+            if (StoreJSONConsts.STORE_GOODS_EQ.equals(entry.type)) {
+                mEquippableGoodOrdinals.set(ordinal);
+            }
+        }
+    }
+
+    /**
+     * Retrieves a regular snapshot of all the items, creating the ones that weren't created yet.
+     */
+    private StoreCatalog hydrated() {
+        StoreCatalog hydrated = mHydrated;
+        if (hydrated != null) {
+            return hydrated;
+        }
+
+        synchronized (this) {
+            if (mHydrated == null) {
+                SoomlaUtils.LogDebug(TAG, "creating all the items of the catalog.");
+                mHydrated = new StoreCatalog(this.<VirtualCurrency>itemsOf(mCurrencyEntries),
+                        this.<VirtualCurrencyPack>itemsOf(mCurrencyPackEntries),
+                        this.<VirtualGood>itemsOf(mGoodEntries),
+                        mCategoriesCatalog.getCategories());
+            }
+            return mHydrated;
+        }
+    }
+
+    /**
+     * Retrieves a snapshot of the upgrades only, which serves the upgrade lookups without creating
+     * any other good.
+     */
+    private StoreCatalog upgrades() {
+        StoreCatalog upgrades = mUpgrades;
+        if (upgrades != null) {
+            return upgrades;
+        }
+
+        synchronized (this) {
+            if (mUpgrades == null) {
+                List<Entry> upgradeEntries = new ArrayList<Entry>();
+                for (Entry entry : mGoodEntries) {
+                    if (StoreJSONConsts.STORE_GOODS_UP.equals(entry.type)) {
+                        upgradeEntries.add(entry);
+                    }
+                }
+                mUpgrades = new StoreCatalog(Collections.<VirtualCurrency>emptyList(),
+                        Collections.<VirtualCurrencyPack>emptyList(),
+                        this.<VirtualGood>itemsOf(upgradeEntries),
+                        Collections.<VirtualCategory>emptyList());
+            }
+            return mUpgrades;
+        }
+    }
+
+    /**
+     * Retrieves the item of the given entry, creating and linking it on first access. Its links
+     * are resolved without linking the items it refers to, so references in a cycle are fine.
+     */
+    private VirtualItem itemOf(Entry entry) {
+        VirtualItem item = entry.getItem();
+        if (item != null && !entry.mLinked) {
+            linkItem(item);
+            entry.mLinked = true;
+        }
+        return item;
+    }
+
+    private void linkCreated(List<Entry> entries) {
+        for (Entry entry : entries) {
+            VirtualItem item = entry.mItem;
+            if (item != null) {
+                linkItem(item);
+                entry.mLinked = true;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends VirtualItem> List<T> itemsOf(List<Entry> entries) {
+        List<T> items = new ArrayList<T>(entries.size());
+        for (Entry entry : entries) {
+            VirtualItem item = itemOf(entry);
+            if (item != null) {
+                items.add((T) item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * An item of the catalog: what's known about it without creating it, and the item itself
+     * once it's created.
+     */
+    static final class Entry {
+
+        /**
+         * Constructor.
+         *
+         * @param type the key of the item's list in the metadata JSON
+         * @param itemId the itemId of the item
+         * @param productId the productId of the item if it's bought in the market, or null
+         * @param json the JSON text of the item
+         */
+        Entry(String type, String itemId, String productId, String json) {
+            this.type = type;
+            this.itemId = itemId;
+            this.productId = productId;
+            mJSON = json;
+        }
+
+        Entry(String type, VirtualItem item) {
+            this.type = type;
+            this.itemId = item.getItemId();
+            this.productId = item instanceof PurchasableVirtualItem
+                    && ((PurchasableVirtualItem) item).getPurchaseType() instanceof PurchaseWithMarket
+                    ? ((PurchaseWithMarket) ((PurchasableVirtualItem) item).getPurchaseType())
+                            .getMarketItem().getProductId()
+                    : null;
+            mItem = item;
+        }
+
+        /**
+         * Retrieves the item, creating it on first access.
+         *
+         * @return the item, or null if it can't be created from its JSON
+         */
+        VirtualItem getItem() {
+            VirtualItem item = mItem;
+            if (item != null) {
+                return item;
+            }
+
+            synchronized (this) {
+                if (mItem == null && mJSON != null) {
+                    try {
+                        mItem = StoreJSONReader.newItem(type, new JSONObject(mJSON));
+                    } catch (JSONException e) {
+                        SoomlaUtils.LogError(TAG, "Can't create " + itemId + " from its JSON: "
+                                + e.getMessage());
+                    }
+                    // the JSON is either used or broken, it's not needed anymore
+                    mJSON = null;
+                }
+                return mItem;
+            }
+        }
+
+        final String type;
+        final String itemId;
+        final String productId;
+
+        private String mJSON;
+        private volatile VirtualItem mItem;
+
+        // set once the item's references are linked, which is done after it's created
+        private volatile boolean mLinked;
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA LazyStoreCatalog"; //used for Log messages
+
+    private final List<Entry> mCurrencyEntries = new ArrayList<Entry>();
+    private final List<Entry> mCurrencyPackEntries = new ArrayList<Entry>();
+    private final List<Entry> mGoodEntries = new ArrayList<Entry>();
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final HashMap<String, Integer> mPositions = new HashMap<String, Integer>();
+    private final HashMap<String, String> mProductItemIds = new HashMap<String, String>();
+    private final List<String> mCurrencyItemIds = new ArrayList<String>();
+    private final List<String> mGoodItemIds = new ArrayList<String>();
+    private final BitSet mCurrencyOrdinals = new BitSet();
+    private final BitSet mGoodOrdinals = new BitSet();
+    private final BitSet mEquippableGoodOrdinals = new BitSet();
+
+    // serves the categories, which are always created
+    private final StoreCatalog mCategoriesCatalog;
+
+    // created on first use
+    private volatile StoreCatalog mHydrated;
+    private volatile StoreCatalog mUpgrades;
+}
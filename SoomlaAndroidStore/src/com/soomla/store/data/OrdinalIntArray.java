@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * An int value per item ordinal (see {@link StoreInfo#getOrdinal(String)}), where a sentinel value
+ * tells that the value of an ordinal wasn't loaded. The storages use it to cache item state
+ * with plain array reads instead of hashing itemIds.
+ *
+ * Reads take no lock: a read is one volatile read of the array and one of its element, so
+ * polling a balance every frame never waits for writers. Writes are serialized, and the array is
+ * copied when it needs to grow.
+ */
+final class OrdinalIntArray {
+
+    /**
+     * Constructor.
+     *
+     * @param notLoaded the value of ordinals that weren't loaded; never a valid value
+     */
+    OrdinalIntArray(int notLoaded) {
+        mNotLoaded = notLoaded;
+        mValues = newValues(64);
+    }
+
+    /**
+     * Retrieves the value of the given ordinal.
+     *
+     * @param ordinal the ordinal to fetch
+     * @return the value of the given ordinal, or the not loaded value
+     */
+    int get(int ordinal) {
+        AtomicIntegerArray values = mValues;
+        return ordinal < values.length() ? values.get(ordinal) : mNotLoaded;
+    }
+
+    /**
+     * Sets the value of the given ordinal and marks it as loaded.
+     */
+    synchronized void set(int ordinal, int value) {
+        ensureCapacity(ordinal);
+        mValues.set(ordinal, value);
+    }
+
+    /**
+     * Retrieves the generation of the values, which changes whenever they are cleared. Read it
+     * before loading a value from the database, and pass it to
+     * {@link #setIfNotLoaded(int, int, int)} with the loaded value.
+     *
+     * @return the current generation
+     */
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Sets the value of the given ordinal only if it wasn't loaded yet. Used when filling the
+     * cache from the database, so a value read before a concurrent write never overrides it.
+     * Nor does a value read before a concurrent {@link #clear()}: the value is only set if the
+     * values weren't cleared since the given generation.
+     *
+     * @param generation the generation read before the value was loaded (see
+     *                   {@link #getGeneration()})
+     */
+    synchronized void setIfNotLoaded(int ordinal, int value, int generation) {
+        if (generation == mGeneration && get(ordinal) == mNotLoaded) {
+            set(ordinal, value);
+        }
+    }
+
+    /**
+     * Copies the loaded values of the given ordinals into the given array, each at its ordinal.
+     *
+     * @param ordinals the ordinals to copy
+     * @param values the array to copy into, at least as long as the highest given ordinal
+     * @return the given ordinals that weren't loaded, whose values weren't copied
+     */
+    BitSet copyTo(BitSet ordinals, int[] values) {
+        BitSet notLoaded = new BitSet();
+        for (int o = ordinals.nextSetBit(0); o >= 0; o = ordinals.nextSetBit(o + 1)) {
+            int value = get(o);
+            if (value == mNotLoaded) {
+                notLoaded.set(o);
+            } else {
+                values[o] = value;
+            }
+        }
+        return notLoaded;
+    }
+
+    /**
+     * Marks all the ordinals as not loaded.
+     */
+    synchronized void clear() {
+        mValues = newValues(mValues.length());
+        mGeneration++;
+    }
+
+    private void ensureCapacity(int ordinal) {
+        AtomicIntegerArray values = mValues;
+        if (ordinal >= values.length()) {
+            AtomicIntegerArray grown =
+                    newValues(Math.max(ordinal + 1, values.length() * 2));
+            for (int i = 0; i < values.length(); i++) {
+                grown.set(i, values.get(i));
+            }
+            mValues = grown;
+        }
+    }
+
+    private AtomicIntegerArray newValues(int length) {
+        AtomicIntegerArray values = new AtomicIntegerArray(length);
+        for (int i = 0; i < length; i++) {
+            values.set(i, mNotLoaded);
+        }
+        return values;
+    }
+
+
+    /** Private Members */
+
+    private final int mNotLoaded;
+
+    // elements are set in place; the array is replaced when growing or clearing. Readers
+    // need no lock either way
+    private volatile AtomicIntegerArray mValues;
+
+    // incremented by each clear(), under the writer lock
+    private volatile int mGeneration;
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import java.util.Arrays;
+
+/**
+ * A storage key per item ordinal (see {@link StoreInfo#getOrdinal(String)}). The storages build
+ * each of their keys once per item and keep it here, instead of concatenating a new key string on
+ * every read and write.
+ */
+final class OrdinalKeys {
+
+    /**
+     * Retrieves the key of the given ordinal.
+     *
+     * @param ordinal the ordinal to fetch
+     * @return the key of the given ordinal, or null if it wasn't set yet
+     */
+    String get(int ordinal) {
+        String[] keys = mKeys;
+        return ordinal < keys.length ? keys[ordinal] : null;
+    }
+
+    /**
+     * Sets the key of the given ordinal.
+     */
+    synchronized void set(int ordinal, String key) {
+        String[] keys = mKeys;
+        if (ordinal >= keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(ordinal + 1, keys.length * 2));
+        }
+        keys[ordinal] = key;
+        mKeys = keys;
+    }
+
+
+    /** Private Members */
+
+    private volatile String[] mKeys = new String[64];
+}
@@ -16,13 +16,57 @@
 
 package com.soomla.store.data;
 
+import com.soomla.BusProvider;
+import com.soomla.SoomlaApp;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
 import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
 import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.events.CurrencyBalanceChangedEvent;
+import com.soomla.store.events.GoodBalanceChangedEvent;
+import com.soomla.store.events.InventoryPrefetchedEvent;
+import com.soomla.store.exceptions.TransactionConflictException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * In this class all the relevant storage classes are created.
  * This class contains static methods for you to retrieve the various storage bases.
+ *
+ * All the storages persist their values through this class. By default every change is written
+ * to <code>KeyValueStorage</code> immediately. You can turn on write-behind mode with
+ * {@link #setWriteBehind(boolean, long)} to coalesce changes in memory and persist them together.
+ *
+ * Changes that touch several keys (for example: paying with one item and receiving another) can
+ * be grouped with {@link #runInTransaction(Runnable)} or {@link #beginTransaction()} /
+ * {@link #commitTransaction()} / {@link #rollbackTransaction()} so they are persisted as one
+ * atomic unit.
+ *
+ * Balance changes are safe to make from several threads: every read-modify-write of a key runs
+ * under that item's lock (see {@link #lockItem(int)}), so concurrent changes of the same item are
+ * never lost while changes of unrelated items don't wait for each other.
+ *
+ * Instead of a <code>KeyValueStorage</code> row per key, the inventory can be kept in a single
+ * memory-mapped file, see {@link #setInventoryFileEnabled(boolean)}.
  */
 public class StorageManager {
 
@@ -55,6 +99,1095 @@ public class StorageManager {
     }
 
 
+    /**
+     * Drops all the in-memory balance caches of the storages.
+     * Balances will be re-read from the database on next access.
+     */
+    public static void clearCaches() {
+        mVirtualGoodsStorage.clearCache();
+        mVirtualCurrencyStorage.clearCache();
+    }
+
+
+    /**
+     * Turns write-behind mode on or off, with the default flush window.
+     *
+     * @param enabled true to coalesce writes in memory, false to write them immediately
+     * @see #setWriteBehind(boolean, long)
+     */
+    public static void setWriteBehind(boolean enabled) {
+        setWriteBehind(enabled, DEFAULT_WRITE_BEHIND_WINDOW_MS);
+    }
+
+    /**
+     * Turns write-behind mode on or off.
+     *
+     * In write-behind mode, balances, equipping flags and current upgrades are changed in memory
+     * right away (reads see them immediately), but they are persisted to <code>KeyValueStorage</code>
+     * by a background flusher at most <code>windowMillis</code> after the first unpersisted change.
+     * All the changes made within one window are persisted by the same flush.
+     *
+     * A flush is not atomic in itself: independent changes are written one by one, and if the
+     * process dies in the middle, some of them may survive and others not. Only the changes of a
+     * transaction are kept all-or-nothing; a flush that holds any is journaled like a commit
+     * (two extra database writes), and a flush that holds none isn't.
+     *
+     * DURABILITY: changes made during the last window are NOT on disk until the flusher runs or
+     * until you call {@link #flush()}. If the process dies before that, these changes are lost.
+     * Call {@link #flush()} from your activity's <code>onPause</code> (and before any point where
+     * the process may be killed) to make sure everything is persisted.
+     *
+     * Turning write-behind off flushes all pending changes.
+     *
+     * @param enabled true to coalesce writes in memory, false to write them immediately
+     * @param windowMillis the maximal time in milliseconds a change may stay unpersisted, must be
+     *                     between 1 and {@link #MAX_WRITE_BEHIND_WINDOW_MS}
+     */
+    public static void setWriteBehind(boolean enabled, long windowMillis) {
+        if (windowMillis <= 0 || windowMillis > MAX_WRITE_BEHIND_WINDOW_MS) {
+            SoomlaUtils.LogError(TAG, "Write-behind window must be between 1 and "
+                    + MAX_WRITE_BEHIND_WINDOW_MS + " ms. Using " + MAX_WRITE_BEHIND_WINDOW_MS + ".");
+            windowMillis = MAX_WRITE_BEHIND_WINDOW_MS;
+        }
+
+        synchronized (sPendingLock) {
+            sWriteBehindWindowMs = windowMillis;
+            sWriteBehind = enabled;
+        }
+
+        if (!enabled) {
+            flush();
+        }
+    }
+
+    /**
+     * Checks if write-behind mode is on.
+     *
+     * @return true if writes are coalesced in memory before being persisted
+     */
+    public static boolean isWriteBehind() {
+        return sWriteBehind;
+    }
+
+    /**
+     * Persists all the pending (not yet written) changes to <code>KeyValueStorage</code>.
+     * This does nothing when write-behind mode is off and nothing is pending.
+     */
+    public static void flush() {
+        recoverJournal();
+        synchronized (sFlushLock) {
+            boolean hasPending;
+            boolean needsJournal;
+            synchronized (sPendingLock) {
+                sFlushScheduled = false;
+                hasPending = !sPending.isEmpty();
+                needsJournal = sPendingNeedsJournal;
+                if (hasPending) {
+                    sFlushing = sPending;
+                    sPending = new LinkedHashMap<String, String>();
+                    sPendingNeedsJournal = false;
+                }
+            }
+
+            if (hasPending) {
+                SoomlaUtils.LogDebug(TAG, "Flushing " + sFlushing.size()
+                        + " pending storage changes.");
+                if (needsJournal) {
+                    persistAtomically(sFlushing);
+                } else {
+                    applyChanges(sFlushing);
+                }
+
+                synchronized (sPendingLock) {
+                    sFlushing = EMPTY_PENDING;
+                    sHasPending = !sPending.isEmpty();
+                }
+            }
+
+            forceInventoryFile();
+        }
+    }
+
+    /**
+     * Loads the balances, equipping statuses and upgrades of all the currencies and goods in
+     * <code>StoreInfo</code> to memory, and then posts an {@link InventoryPrefetchedEvent}. After
+     * that, reading them doesn't touch the database.
+     *
+     * This is not a single read: <code>KeyValueStorage</code> has no bulk read, so its keys are
+     * listed once and then every stored inventory key is read (and decrypted) on its own. Listing
+     * the keys first means that items that have nothing stored are known to be empty without a
+     * read of their own. With the inventory file on, its keys come from one pass over the file.
+     *
+     * This blocks on the database, so don't call it on the UI thread. <code>StoreInfo</code>
+     * prefetches whenever the catalog is set, in the background (see
+     * {@link #prefetchInBackground()}).
+     */
+    public static void prefetch() {
+        if (StoreInfo.getCurrencyItemIds() == null || StoreInfo.getGoodItemIds() == null) {
+            SoomlaUtils.LogError(TAG, "Can't prefetch the inventory before StoreInfo is set.");
+            return;
+        }
+        recoverJournal();
+        SoomlaUtils.LogDebug(TAG, "Prefetching the inventory.");
+
+        int currencyGeneration = mVirtualCurrencyStorage.getCacheGeneration();
+        int goodsGeneration = mVirtualGoodsStorage.getCacheGeneration();
+
+        Map<String, String> values = new HashMap<String, String>();
+        InventoryFile inventoryFile = getInventoryFile();
+        if (inventoryFile != null) {
+            values.putAll(inventoryFile.toKeyValues());
+        }
+        for (String key : KeyValueStorage.getEncryptedKeys()) {
+            if ((key.startsWith(VirtualGoodsStorage.DB_KEY_GOOD_PREFIX)
+                    || key.startsWith(VirtualCurrencyStorage.DB_CURRENCY_KEY_PREFIX))
+                    && (inventoryFile == null || !inventoryFile.hasSlot(key))) {
+                values.put(key, KeyValueStorage.getValue(key));
+            }
+        }
+        synchronized (sPendingLock) {
+            values.putAll(sFlushing);
+            values.putAll(sPending);
+        }
+
+        // by itemId, so that a lazy catalog doesn't create its items for this
+        for (String itemId : StoreInfo.getCurrencyItemIds()) {
+            mVirtualCurrencyStorage.prefetch(itemId, values, currencyGeneration);
+        }
+        for (String itemId : StoreInfo.getGoodItemIds()) {
+            mVirtualGoodsStorage.prefetch(itemId, values, goodsGeneration);
+        }
+
+        BusProvider.getInstance().post(new InventoryPrefetchedEvent());
+    }
+
+    /**
+     * Runs {@link #prefetch()} on the storage's background thread (the one that flushes
+     * write-behind changes). Reads made meanwhile are served from the database as usual.
+     */
+    public static void prefetchInBackground() {
+        getFlusher().execute(new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        });
+    }
+
+    /**
+     * Turns the inventory file on or off.
+     *
+     * When the inventory file is on, balances, equipping statuses and current upgrades are kept
+     * in one memory-mapped file in the app's files directory instead of a
+     * <code>KeyValueStorage</code> row per key. Every read and write is a plain memory access,
+     * and the file is forced to disk in the background at most
+     * {@link #INVENTORY_FILE_FORCE_INTERVAL_MS} after a change (and on every {@link #flush()}).
+     * Changes survive a process kill right away; only a power loss within that interval can lose
+     * them.
+     *
+     * The first time the file is opened, the existing inventory is moved into it from
+     * <code>KeyValueStorage</code>. Turning the file off moves the inventory back to
+     * <code>KeyValueStorage</code> and deletes the file.
+     *
+     * NOTE: the inventory file is checksummed against corruption, but unlike
+     * <code>KeyValueStorage</code> it's not encrypted.
+     *
+     * Call this before <code>SoomlaStore.initialize</code>.
+     *
+     * @param enabled true to keep the inventory in the inventory file
+     */
+    public static void setInventoryFileEnabled(boolean enabled) {
+        synchronized (sFlushLock) {
+            if (enabled == sInventoryFileEnabled) {
+                return;
+            }
+            if (enabled) {
+                sInventoryFileEnabled = true;
+                return;
+            }
+
+            flush();
+            InventoryFile inventoryFile = sInventoryFile;
+            sInventoryFileEnabled = false;
+            sInventoryFile = null;
+            if (inventoryFile != null) {
+                SoomlaUtils.LogDebug(TAG, "Moving the inventory back to KeyValueStorage.");
+                for (Map.Entry<String, String> entry : inventoryFile.toKeyValues().entrySet()) {
+                    KeyValueStorage.setValue(entry.getKey(), entry.getValue());
+                }
+                inventoryFile.close();
+                if (!getInventoryFilePath().delete()) {
+                    SoomlaUtils.LogError(TAG, "Couldn't delete the inventory file.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the inventory is kept in the inventory file.
+     *
+     * @return true if the inventory file is on
+     * @see #setInventoryFileEnabled(boolean)
+     */
+    public static boolean isInventoryFileEnabled() {
+        return sInventoryFileEnabled;
+    }
+
+    /**
+     * Deletes the whole inventory kept in the inventory file, including the items kept in
+     * <code>KeyValueStorage</code> because the file had no room for them. This does nothing when
+     * the inventory file is off.
+     */
+    public static void clearInventoryFile() {
+        InventoryFile inventoryFile = getInventoryFile();
+        if (inventoryFile != null) {
+            inventoryFile.clear();
+            scheduleInventoryFileForce();
+            for (String key : KeyValueStorage.getEncryptedKeys()) {
+                if (inventoryFile.handles(key)) {
+                    KeyValueStorage.deleteKeyValue(key);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Starts a storage transaction on the current thread.
+     *
+     * Until the transaction is committed, all the changes made by this thread through the
+     * storages are kept aside: this thread sees them, other threads and the database don't, and
+     * balance/equip/upgrade events are held back. {@link #commitTransaction()} persists all of
+     * them as one atomic unit (either all of them survive a process kill, or none of them do) and
+     * only then posts the events. {@link #rollbackTransaction()} discards them.
+     *
+     * Transactions may be nested; only the outermost commit persists the changes, and a rollback
+     * at any level discards the whole transaction.
+     *
+     * The locks of the items changed in a transaction are held until it's committed or rolled
+     * back, so other threads never change them in between. Transactions of several threads run
+     * concurrently. Two of them could wait for each other's locks, so a transaction that needs a
+     * lock that's held by another thread only waits for it in a fixed order (see
+     * {@link #lockItem(int)}). When that order can't be kept, the change throws a
+     * {@link TransactionConflictException}: roll the transaction back and run it again.
+     * {@link #runInTransaction(Runnable)} and the store's own transactions do that by
+     * themselves.
+     *
+     * @see #runInTransaction(Runnable)
+     */
+    public static void beginTransaction() {
+        StorageTransaction transaction = sTransaction.get();
+        if (transaction != null) {
+            transaction.mDepth++;
+            return;
+        }
+
+        sTransaction.set(new StorageTransaction());
+        sOpenTransactions.incrementAndGet();
+    }
+
+    /**
+     * Commits the current thread's transaction. See {@link #beginTransaction()}.
+     */
+    public static void commitTransaction() {
+        StorageTransaction transaction = sTransaction.get();
+        if (transaction == null) {
+            SoomlaUtils.LogError(TAG, "commitTransaction was called without an open transaction.");
+            return;
+        }
+        if (--transaction.mDepth > 0) {
+            return;
+        }
+
+        detachTransaction();
+
+        try {
+            if (transaction.mSkipUnchangedWrites) {
+                dropUnchangedWrites(transaction);
+            }
+            if (!transaction.mWrites.isEmpty()) {
+                SoomlaUtils.LogDebug(TAG, "Committing a transaction of "
+                        + transaction.mWrites.size() + " storage changes.");
+                if (!enqueueAll(transaction.mWrites)) {
+                    recoverJournal();
+                    synchronized (sFlushLock) {
+                        persistAtomically(transaction.mWrites);
+                    }
+                }
+            }
+
+            for (Runnable action : transaction.mCommitActions) {
+                action.run();
+            }
+        } finally {
+            // caches are up to date by now, so other threads may change these keys again
+            releaseLocks(transaction);
+        }
+        List<Object> events = transaction.mCoalesceBalanceEvents
+                ? coalesceBalanceEvents(transaction.mEvents) : transaction.mEvents;
+        for (Object event : events) {
+            BusProvider.getInstance().post(event);
+        }
+    }
+
+    /**
+     * Discards the current thread's transaction, with all the changes and events it holds.
+     * See {@link #beginTransaction()}.
+     */
+    public static void rollbackTransaction() {
+        StorageTransaction transaction = sTransaction.get();
+        if (transaction == null) {
+            SoomlaUtils.LogError(TAG, "rollbackTransaction was called without an open transaction.");
+            return;
+        }
+
+        SoomlaUtils.LogDebug(TAG, "Rolling back a storage transaction.");
+        detachTransaction();
+        releaseLocks(transaction);
+    }
+
+    /**
+     * Runs the given action inside a storage transaction. The transaction is committed if the
+     * action completes, and rolled back if it throws. If it's rolled back because of a
+     * {@link TransactionConflictException}, the action is run again, up to
+     * {@link #MAX_TRANSACTION_ATTEMPTS} times, so it must not have effects outside of the
+     * storages.
+     *
+     * A transaction that changes several keys costs two extra database writes for its journal
+     * (writing it and deleting it), so group related changes into one transaction
+     * rather than several.
+     *
+     * @param action the storage changes to make atomically
+     */
+    public static void runInTransaction(Runnable action) {
+        for (int attempt = 1; ; attempt++) {
+            beginTransaction();
+            boolean done = false;
+            try {
+                action.run();
+                done = true;
+            } catch (TransactionConflictException e) {
+                retryAfterConflict(e, attempt);
+                continue;
+            } finally {
+                if (done) {
+                    commitTransaction();
+                } else if (inTransaction()) {
+                    rollbackTransaction();
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * Decides if a transaction that failed with the given conflict is to be run again. Call it
+     * when catching a {@link TransactionConflictException} around a transaction begun by the
+     * caller, then roll the transaction back and run it again. Only the outermost transaction is
+     * run again (a nested one passes the conflict on to it), and only up to
+     * {@link #MAX_TRANSACTION_ATTEMPTS} times.
+     *
+     * @param conflict the conflict the transaction failed with
+     * @param attempt how many times the transaction was run, starting from 1
+     * @throws TransactionConflictException the given conflict, if the transaction isn't to be
+     *                                      run again
+     */
+    public static void retryAfterConflict(TransactionConflictException conflict, int attempt) {
+        // a nested transaction that failed already discarded the whole transaction
+        StorageTransaction transaction = sTransaction.get();
+        if ((transaction != null && transaction.mDepth > 1) || attempt >= MAX_TRANSACTION_ATTEMPTS) {
+            throw conflict;
+        }
+        SoomlaUtils.LogDebug(TAG, "Running a storage transaction again after a lock conflict: "
+                + conflict.getMessage());
+    }
+
+    /**
+     * Checks if the current thread has an open storage transaction.
+     *
+     * @return true if changes made by the current thread are held in a transaction
+     */
+    public static boolean inTransaction() {
+        return sOpenTransactions.get() > 0 && sTransaction.get() != null;
+    }
+
+    /**
+     * Makes the current thread's transaction post one balance changed event per item when it's
+     * committed, instead of one per change. The event carries the item's final balance and the
+     * total amount added, and is posted where the item's last balance change was. Other events
+     * are posted as they are.
+     *
+     * Use it for transactions that change the same items many times, such as granting a batch
+     * of rewards.
+     */
+    public static void coalesceBalanceEvents() {
+        StorageTransaction transaction = sTransaction.get();
+        if (transaction == null) {
+            SoomlaUtils.LogError(TAG, "coalesceBalanceEvents was called without an open transaction.");
+            return;
+        }
+        transaction.mCoalesceBalanceEvents = true;
+    }
+
+    /**
+     * Makes the current thread's transaction persist only the keys whose values it changed when
+     * it's committed. Keys that end up with the value they already had are not written at all.
+     *
+     * Use it for transactions that rewrite much more state than they actually change, such as
+     * replacing the whole inventory with one that is mostly the same.
+     */
+    public static void skipUnchangedWrites() {
+        StorageTransaction transaction = sTransaction.get();
+        if (transaction == null) {
+            SoomlaUtils.LogError(TAG, "skipUnchangedWrites was called without an open transaction.");
+            return;
+        }
+        transaction.mSkipUnchangedWrites = true;
+    }
+
+    /**
+     * Retrieves the current inventory version. Every change of a balance, an equipping status or
+     * a current upgrade moves the inventory to the next version; changes that are rolled back
+     * don't.
+     *
+     * Versions only make sense within the current process.
+     *
+     * @return the current inventory version
+     * @see #changesSince(long)
+     */
+    public static long getInventoryVersion() {
+        return sChangeLog.getVersion();
+    }
+
+    /**
+     * Retrieves the inventory changes made after the given version, so that a copy of the
+     * inventory can be kept up to date without reading all of it.
+     *
+     * Only the latest {@link #INVENTORY_CHANGE_LOG_CAPACITY} changes are kept, and none of the
+     * changes made before a cache was cleared (see {@link #clearCaches()}). If some of the changes
+     * since the given version are gone, the result asks for a full resync instead.
+     *
+     * Real Game Example:
+     * <pre>
+     * InventorySnapshot snapshot = InventorySnapshot.take();
+     * long version = snapshot.getVersion();
+     * ...
+     * InventoryChanges changes = StorageManager.changesSince(version);
+     * if (changes.isFullResyncNeeded()) {
+     *     snapshot = InventorySnapshot.take();
+     *     version = snapshot.getVersion();
+     * } else {
+     *     for (InventoryChange change : changes.getChanges()) { ... }
+     *     version = changes.getVersion();
+     * }
+     * </pre>
+     *
+     * @param version a version from {@link #getInventoryVersion()},
+     *                {@link InventorySnapshot#getVersion()} or a previous result
+     * @return the changes since the given version, oldest first
+     */
+    public static InventoryChanges changesSince(long version) {
+        return sChangeLog.changesSince(version);
+    }
+
+
+    /** Package-private persistence used by the storages **/
+
+    /**
+     * Retrieves the value of the given key, including changes that weren't persisted yet.
+     *
+     * @param key the key to fetch
+     * @return the value of the given key or null if it doesn't exist
+     */
+    static String getValue(String key) {
+        recoverJournal();
+
+        if (sOpenTransactions.get() > 0) {
+            StorageTransaction transaction = sTransaction.get();
+            if (transaction != null && transaction.mWrites.containsKey(key)) {
+                return transaction.mWrites.get(key);
+            }
+        }
+
+        if (sHasPending) {
+            synchronized (sPendingLock) {
+                if (sPending.containsKey(key)) {
+                    return sPending.get(key);
+                }
+                if (sFlushing.containsKey(key)) {
+                    return sFlushing.get(key);
+                }
+            }
+        }
+        return dbGetValue(key);
+    }
+
+    /**
+     * Sets the given value to the given key, either now or in the next flush (in write-behind
+     * mode).
+     *
+     * @param key the key to set
+     * @param val the value to set
+     * @param oldVal the value the key has now, as the caller (which holds the item's lock) knows
+     *               it from its cache
+     */
+    static void setValue(String key, String val, String oldVal) {
+        if (!stage(key, val, oldVal) && !enqueue(key, val)) {
+            dbSetValue(key, val);
+        }
+    }
+
+    /**
+     * Deletes the given key, either now or in the next flush (in write-behind mode).
+     *
+     * @param key the key to delete
+     * @param oldVal the value the key has now, see {@link #setValue(String, String, String)}
+     */
+    static void deleteKeyValue(String key, String oldVal) {
+        if (!stage(key, null, oldVal) && !enqueue(key, null)) {
+            dbSetValue(key, null);
+        }
+    }
+
+    /**
+     * Checks if the given key was changed in the current thread's transaction (and not persisted
+     * yet).
+     *
+     * @param key the key to check
+     * @return true if the current transaction holds a change for the given key
+     */
+    static boolean isStaged(String key) {
+        if (sOpenTransactions.get() == 0) {
+            return false;
+        }
+        StorageTransaction transaction = sTransaction.get();
+        return transaction != null && transaction.mWrites.containsKey(key);
+    }
+
+    /**
+     * Records a change of the inventory, see {@link #changesSince(long)}. The storages call this
+     * where the change becomes visible to all threads: while holding the item's lock, and after
+     * the transaction is committed if there is one.
+     *
+     * @param kind the kind of the change
+     * @param ordinal the ordinal of the changed item
+     * @param oldValue the value before the change
+     * @param newValue the value after the change
+     */
+    static void recordChange(InventoryChange.Kind kind, int ordinal, int oldValue, int newValue) {
+        sChangeLog.record(kind, ordinal, oldValue, newValue);
+    }
+
+    /**
+     * Drops the recorded inventory changes, for when the inventory was changed without going
+     * through the storages.
+     */
+    static void invalidateChanges() {
+        sChangeLog.invalidate();
+    }
+
+    /**
+     * Runs the given action once the current thread's transaction is committed, or right away if
+     * there's no open transaction. Actions of a rolled back transaction never run.
+     *
+     * @param action the action to run
+     */
+    static void runAfterCommit(Runnable action) {
+        StorageTransaction transaction = sOpenTransactions.get() > 0 ? sTransaction.get() : null;
+        if (transaction == null) {
+            action.run();
+        } else {
+            transaction.mCommitActions.add(action);
+        }
+    }
+
+    /**
+     * Posts the given event to the event bus, or holds it until the current thread's transaction
+     * is committed.
+     *
+     * @param event the event to post
+     */
+    static void post(Object event) {
+        StorageTransaction transaction = sOpenTransactions.get() > 0 ? sTransaction.get() : null;
+        if (transaction == null) {
+            BusProvider.getInstance().post(event);
+        } else {
+            transaction.mEvents.add(event);
+        }
+    }
+
+    /**
+     * Acquires the lock of the item with the given ordinal. Every read-modify-write of an item's
+     * keys must run between this call and {@link #unlockItem(ReentrantLock)}.
+     *
+     * Items are spread over a fixed set of lock stripes by ordinal, so items of the catalog only
+     * share a lock when there are more items than stripes. While holding an item lock, never wait
+     * for another item lock outside of a transaction.
+     *
+     * A transaction holds the locks it acquired until it ends, so it only waits for stripes
+     * higher than the ones it holds: any two transactions then wait in the same order and can't
+     * wait for each other. A lower stripe is only waited for up to
+     * {@link #TRANSACTION_LOCK_TIMEOUT_MS}, since its holder may be waiting for this
+     * transaction.
+     *
+     * @param ordinal the ordinal of the item about to be changed (see
+     *                {@link StoreInfo#getOrdinal(String)})
+     * @return the acquired lock, to be passed to {@link #unlockItem(ReentrantLock)}
+     * @throws TransactionConflictException if the current thread's transaction couldn't get the
+     *                                      lock in time
+     */
+    static ReentrantLock lockItem(int ordinal) {
+        int stripe = ordinal % ITEM_LOCKS.length;
+        ReentrantLock lock = ITEM_LOCKS[stripe];
+        StorageTransaction transaction = sOpenTransactions.get() > 0 ? sTransaction.get() : null;
+        if (transaction == null) {
+            lock.lock();
+            return lock;
+        }
+
+        if (stripe > transaction.mHighestStripe || lock.isHeldByCurrentThread()) {
+            lock.lock();
+        } else if (!tryLock(lock)) {
+            throw new TransactionConflictException(ordinal);
+        }
+        transaction.mHighestStripe = Math.max(transaction.mHighestStripe, stripe);
+        return lock;
+    }
+
+    /**
+     * Releases a lock acquired with {@link #lockItem(int)}. Inside a transaction the lock is
+     * kept until the transaction is committed or rolled back.
+     *
+     * @param lock the lock to release
+     */
+    static void unlockItem(ReentrantLock lock) {
+        StorageTransaction transaction = sOpenTransactions.get() > 0 ? sTransaction.get() : null;
+        if (transaction == null) {
+            lock.unlock();
+        } else {
+            transaction.mLocks.add(lock);
+        }
+    }
+
+    /**
+     * Keeps the given change in the current thread's transaction, if there is one.
+     *
+     * @return true if the change was staged, false if there's no open transaction
+     */
+    private static boolean stage(String key, String val, String oldVal) {
+        if (sOpenTransactions.get() == 0) {
+            return false;
+        }
+        StorageTransaction transaction = sTransaction.get();
+        if (transaction == null) {
+            return false;
+        }
+        if (!transaction.mWrites.containsKey(key)) {
+            transaction.mOriginalValues.put(key, oldVal);
+        }
+        transaction.mWrites.put(key, val);
+        return true;
+    }
+
+    /**
+     * Removes the changes that would set keys to the values they had before the transaction, see
+     * {@link #skipUnchangedWrites()}. The values before are the ones the storages had cached when
+     * they first changed each key, so nothing is read from the database. Must be called while
+     * the transaction still holds its item locks.
+     */
+    private static void dropUnchangedWrites(StorageTransaction transaction) {
+        Map<String, String> writes = transaction.mWrites;
+        int total = writes.size();
+        Iterator<Map.Entry<String, String>> it = writes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> entry = it.next();
+            String current = transaction.mOriginalValues.get(entry.getKey());
+            if (current == null ? entry.getValue() == null : current.equals(entry.getValue())) {
+                it.remove();
+            }
+        }
+        SoomlaUtils.LogDebug(TAG, (total - writes.size()) + " of " + total
+                + " storage changes of the transaction leave their values as they are.");
+    }
+
+    /**
+     * Replaces the balance changed events of each item with one event, see
+     * {@link #coalesceBalanceEvents()}.
+     */
+    private static List<Object> coalesceBalanceEvents(List<Object> events) {
+        // walking backwards, the first balance event of an item is its last one
+        HashMap<String, Integer> amountsAdded = new HashMap<String, Integer>();
+        List<Object> kept = new ArrayList<Object>(events.size());
+        for (int i = events.size() - 1; i >= 0; i--) {
+            Object event = events.get(i);
+            String key = balanceKeyOf(event);
+            if (key == null) {
+                kept.add(event);
+                continue;
+            }
+            Integer added = amountsAdded.get(key);
+            amountsAdded.put(key, (added != null ? added : 0) + amountAddedOf(event));
+            if (added == null) {
+                kept.add(event);
+            }
+        }
+        Collections.reverse(kept);
+
+        for (int i = 0; i < kept.size(); i++) {
+            Object event = kept.get(i);
+            if (event instanceof CurrencyBalanceChangedEvent) {
+                CurrencyBalanceChangedEvent changed = (CurrencyBalanceChangedEvent) event;
+                kept.set(i, new CurrencyBalanceChangedEvent(changed.getCurrencyItemId(),
+                        changed.getBalance(), amountsAdded.get(balanceKeyOf(event))));
+            } else if (event instanceof GoodBalanceChangedEvent) {
+                GoodBalanceChangedEvent changed = (GoodBalanceChangedEvent) event;
+                kept.set(i, new GoodBalanceChangedEvent(changed.getGoodItemId(),
+                        changed.getBalance(), amountsAdded.get(balanceKeyOf(event))));
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Retrieves the key that identifies the item of the given balance changed event, or null if
+     * it's another event.
+     */
+    private static String balanceKeyOf(Object event) {
+        if (event instanceof CurrencyBalanceChangedEvent) {
+            return "currency." + ((CurrencyBalanceChangedEvent) event).getCurrencyItemId();
+        }
+        if (event instanceof GoodBalanceChangedEvent) {
+            return "good." + ((GoodBalanceChangedEvent) event).getGoodItemId();
+        }
+        return null;
+    }
+
+    private static int amountAddedOf(Object event) {
+        return event instanceof CurrencyBalanceChangedEvent
+                ? ((CurrencyBalanceChangedEvent) event).getAmountAdded()
+                : ((GoodBalanceChangedEvent) event).getAmountAdded();
+    }
+
+    private static void detachTransaction() {
+        sTransaction.remove();
+        sOpenTransactions.decrementAndGet();
+    }
+
+    private static void releaseLocks(StorageTransaction transaction) {
+        for (ReentrantLock lock : transaction.mLocks) {
+            lock.unlock();
+        }
+        transaction.mLocks.clear();
+    }
+
+    private static boolean tryLock(ReentrantLock lock) {
+        try {
+            return lock.tryLock(TRANSACTION_LOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Adds the given change to the pending changes if write-behind mode is on, and makes sure a
+     * flush is scheduled.
+     *
+     * @return true if the change was enqueued, false if it should be written immediately
+     */
+    private static boolean enqueue(String key, String val) {
+        return enqueueAll(Collections.singletonMap(key, val));
+    }
+
+    /**
+     * Adds the given changes to the pending changes if write-behind mode is on. All of them are
+     * added under one lock, so they always end up in the same flush, and several changes (a
+     * transaction's) make that flush journaled.
+     *
+     * @return true if the changes were enqueued, false if they should be written immediately
+     */
+    private static boolean enqueueAll(Map<String, String> changes) {
+        synchronized (sPendingLock) {
+            if (!sWriteBehind) {
+                return false;
+            }
+
+            sPending.putAll(changes);
+            sPendingNeedsJournal |= changes.size() > 1;
+            sHasPending = true;
+            if (!sFlushScheduled) {
+                sFlushScheduled = true;
+                getFlusher().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, sWriteBehindWindowMs, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes the given changes to <code>KeyValueStorage</code> so that either all of them or none
+     * of them survive a process kill.
+     *
+     * A single change is written as is. Several changes are first written together as one journal
+     * value (a single database write, which is the commit point), then applied one by one, and
+     * then the journal is deleted. If the process dies while applying, the journal is replayed by
+     * {@link #recoverJournal()} on the next access.
+     *
+     * The journal costs two extra database writes (writing it and deleting it) per call with
+     * several changes, whether they go to <code>KeyValueStorage</code> or the inventory file: a
+     * purchase that pays with one item and receives another takes 4 writes instead of 2. This is
+     * the price of atomicity; callers that don't need it should use {@link #applyChanges(Map)}.
+     *
+     * Must be called while holding <code>sFlushLock</code>.
+     *
+     * @param changes the keys to set (a null value means the key should be deleted)
+     */
+    private static void persistAtomically(Map<String, String> changes) {
+        if (changes.size() == 1) {
+            applyChanges(changes);
+            return;
+        }
+
+        JSONObject journal = new JSONObject();
+        try {
+            for (Map.Entry<String, String> entry : changes.entrySet()) {
+                journal.put(entry.getKey(),
+                        entry.getValue() == null ? JSONObject.NULL : entry.getValue());
+            }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't build the storage journal. Writing changes without it.");
+            applyChanges(changes);
+            return;
+        }
+
+        KeyValueStorage.setValue(DB_JOURNAL_KEY, journal.toString());
+        applyChanges(changes);
+        // changes in the inventory file must be on disk before the journal is gone
+        forceInventoryFile();
+        KeyValueStorage.deleteKeyValue(DB_JOURNAL_KEY);
+    }
+
+    private static void applyChanges(Map<String, String> changes) {
+        for (Map.Entry<String, String> entry : changes.entrySet()) {
+            dbSetValue(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Reads the given key from where it's persisted: the inventory file if it's on and the item
+     * of this key has a slot in it, <code>KeyValueStorage</code> otherwise.
+     *
+     * Items get a slot on their first write. An item that didn't get one, because the file was
+     * full or couldn't grow, is kept in <code>KeyValueStorage</code> like the keys the file
+     * doesn't handle.
+     */
+    private static String dbGetValue(String key) {
+        InventoryFile inventoryFile = getInventoryFile();
+        if (inventoryFile != null && inventoryFile.hasSlot(key)) {
+            return inventoryFile.getValue(key);
+        }
+        return KeyValueStorage.getValue(key);
+    }
+
+    /**
+     * Writes the given key to where it's persisted. See {@link #dbGetValue(String)}.
+     *
+     * @param val the value to set, or null to delete the key
+     */
+    private static void dbSetValue(String key, String val) {
+        InventoryFile inventoryFile = getInventoryFile();
+        if (inventoryFile != null && (inventoryFile.hasSlot(key)
+                || val != null && inventoryFile.handles(key))) {
+            List<String> newNames = new ArrayList<String>();
+            if (inventoryFile.setValue(key, val, newNames)) {
+                if (!newNames.isEmpty()) {
+                    moveIntoNewSlots(inventoryFile, newNames, key);
+                }
+                scheduleInventoryFileForce();
+                return;
+            }
+            if (inventoryFile.hasSlot(key)) {
+                // the item is read from its slot, so there's nowhere else to keep it
+                SoomlaUtils.LogError(TAG, "Couldn't keep " + key + " in the inventory file."
+                        + " Its value is lost.");
+                return;
+            }
+            SoomlaUtils.LogDebug(TAG, "Keeping " + key + " in KeyValueStorage.");
+        }
+
+        if (val == null) {
+            KeyValueStorage.deleteKeyValue(key);
+        } else {
+            KeyValueStorage.setValue(key, val);
+        }
+    }
+
+    /**
+     * Retrieves the inventory file, opening it (and moving the inventory into it) on first use.
+     *
+     * @return the inventory file, or null if it's off or couldn't be opened
+     */
+    private static InventoryFile getInventoryFile() {
+        if (!sInventoryFileEnabled) {
+            return null;
+        }
+        InventoryFile inventoryFile = sInventoryFile;
+        if (inventoryFile != null) {
+            return inventoryFile;
+        }
+
+        synchronized (sInventoryFileLock) {
+            if (sInventoryFile == null && sInventoryFileEnabled) {
+                try {
+                    inventoryFile = InventoryFile.open(getInventoryFilePath());
+                    if (!inventoryFile.isMigrated()) {
+                        migrateToInventoryFile(inventoryFile);
+                    }
+                    sInventoryFile = inventoryFile;
+                } catch (IOException e) {
+                    SoomlaUtils.LogError(TAG, "Couldn't open the inventory file. Keeping the "
+                            + "inventory in KeyValueStorage. " + e.getMessage());
+                    sInventoryFileEnabled = false;
+                }
+            }
+            return sInventoryFile;
+        }
+    }
+
+    /**
+     * Moves all the inventory keys from <code>KeyValueStorage</code> to the given (new)
+     * inventory file. The keys are deleted from <code>KeyValueStorage</code> only after the file
+     * is on disk and marked as migrated.
+     */
+    private static void migrateToInventoryFile(InventoryFile inventoryFile) {
+        SoomlaUtils.LogDebug(TAG, "Moving the inventory from KeyValueStorage to the inventory file.");
+        List<String> migrated = new ArrayList<String>();
+        for (String key : KeyValueStorage.getEncryptedKeys()) {
+            if (!inventoryFile.handles(key)) {
+                continue;
+            }
+            String val = KeyValueStorage.getValue(key);
+            if (val != null && inventoryFile.setValue(key, val, null)) {
+                migrated.add(key);
+            }
+        }
+        inventoryFile.markMigrated();
+
+        for (String key : migrated) {
+            KeyValueStorage.deleteKeyValue(key);
+        }
+    }
+
+    /**
+     * Moves the values that the items of the given storage names kept in
+     * <code>KeyValueStorage</code>, while the inventory file had no room for them, into their
+     * new slots. The given key was just written to the file, so its old value is only deleted.
+     */
+    private static void moveIntoNewSlots(InventoryFile inventoryFile, List<String> names,
+                                         String writtenKey) {
+        List<String> moved = new ArrayList<String>();
+        // moving an upgrade may give its item a slot as well, adding to names
+        for (int i = 0; i < names.size(); i++) {
+            for (String key : InventoryFile.keysOf(names.get(i))) {
+                String val = KeyValueStorage.getValue(key);
+                if (val == null) {
+                    continue;
+                }
+                if (!key.equals(writtenKey) && !inventoryFile.setValue(key, val, names)) {
+                    SoomlaUtils.LogError(TAG, "Couldn't move " + key + " to the inventory file."
+                            + " Its value is lost.");
+                }
+                moved.add(key);
+            }
+        }
+        if (moved.isEmpty()) {
+            return;
+        }
+
+        inventoryFile.force();
+        for (String key : moved) {
+            KeyValueStorage.deleteKeyValue(key);
+        }
+    }
+
+    private static File getInventoryFilePath() {
+        return new File(SoomlaApp.getAppContext().getFilesDir(), INVENTORY_FILE_NAME);
+    }
+
+    private static void forceInventoryFile() {
+        InventoryFile inventoryFile = sInventoryFile;
+        if (inventoryFile != null) {
+            inventoryFile.force();
+        }
+    }
+
+    private static void scheduleInventoryFileForce() {
+        if (sInventoryFileForceScheduled.compareAndSet(false, true)) {
+            getFlusher().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sInventoryFileForceScheduled.set(false);
+                    forceInventoryFile();
+                }
+            }, INVENTORY_FILE_FORCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replays a journal that was committed but not fully applied (the process was killed in the
+     * middle of {@link #persistAtomically(Map)}). This runs once, before the first storage access.
+     */
+    private static void recoverJournal() {
+        if (sJournalRecovered) {
+            return;
+        }
+
+        synchronized (sFlushLock) {
+            if (sJournalRecovered) {
+                return;
+            }
+
+            String val = KeyValueStorage.getValue(DB_JOURNAL_KEY);
+            if (val != null) {
+                SoomlaUtils.LogDebug(TAG, "Found an unfinished storage journal. Replaying it.");
+                try {
+                    JSONObject journal = new JSONObject(val);
+                    Map<String, String> changes = new LinkedHashMap<String, String>();
+                    Iterator<?> keys = journal.keys();
+                    while (keys.hasNext()) {
+                        String key = (String) keys.next();
+                        changes.put(key, journal.isNull(key) ? null : journal.getString(key));
+                    }
+                    applyChanges(changes);
+                } catch (JSONException e) {
+                    SoomlaUtils.LogError(TAG, "The storage journal is corrupted. Dropping it.");
+                }
+                KeyValueStorage.deleteKeyValue(DB_JOURNAL_KEY);
+            }
+
+            sJournalRecovered = true;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getFlusher() {
+        if (sFlusher == null) {
+            sFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SOOMLA storage flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sFlusher;
+    }
+
+
     /** Private Members **/
 
     private static final String TAG = "SOOMLA StorageManager"; //used for Log messages
@@ -65,4 +1198,80 @@ public class StorageManager {
     // storage of all virtual currencies
     private static VirtualCurrencyStorage mVirtualCurrencyStorage = new VirtualCurrencyStorage();
 
+    public static final long DEFAULT_WRITE_BEHIND_WINDOW_MS = 250;
+    public static final long MAX_WRITE_BEHIND_WINDOW_MS = 1000;
+
+    private static final Map<String, String> EMPTY_PENDING = new LinkedHashMap<String, String>();
+
+    private static volatile boolean sWriteBehind = false;
+    private static long sWriteBehindWindowMs = DEFAULT_WRITE_BEHIND_WINDOW_MS;
+    private static boolean sFlushScheduled = false;
+
+    // changes that weren't persisted yet (a null value means the key should be deleted)
+    private static Map<String, String> sPending = new LinkedHashMap<String, String>();
+
+    // true if sPending holds the changes of a transaction, which must be persisted atomically
+    private static boolean sPendingNeedsJournal = false;
+
+    // changes that are being persisted right now by flush()
+    private static Map<String, String> sFlushing = EMPTY_PENDING;
+
+    // true while there are changes in sPending or sFlushing, so reads can skip the lock otherwise
+    private static volatile boolean sHasPending = false;
+
+    private static final Object sPendingLock = new Object();
+    private static final Object sFlushLock = new Object();
+    private static ScheduledExecutorService sFlusher;
+
+    private static final String DB_JOURNAL_KEY = "meta.storage.journal";
+
+    public static final long INVENTORY_FILE_FORCE_INTERVAL_MS = 1000;
+    private static final String INVENTORY_FILE_NAME = "soomla_inventory.bin";
+    private static volatile boolean sInventoryFileEnabled = false;
+    private static volatile InventoryFile sInventoryFile;
+    private static final Object sInventoryFileLock = new Object();
+    private static final AtomicBoolean sInventoryFileForceScheduled = new AtomicBoolean(false);
+    private static volatile boolean sJournalRecovered = false;
+
+    // the inventory version and its latest changes
+    public static final int INVENTORY_CHANGE_LOG_CAPACITY = 1024;
+    private static final InventoryChangeLog sChangeLog =
+            new InventoryChangeLog(INVENTORY_CHANGE_LOG_CAPACITY);
+
+    // the open transaction of each thread, and how many threads have one
+    private static final ThreadLocal<StorageTransaction> sTransaction =
+            new ThreadLocal<StorageTransaction>();
+    private static final AtomicInteger sOpenTransactions = new AtomicInteger(0);
+
+    // how long a transaction waits for a lock it can't take in order, and how many times a
+    // transaction that didn't get it is run
+    public static final long TRANSACTION_LOCK_TIMEOUT_MS = 500;
+    public static final int MAX_TRANSACTION_ATTEMPTS = 3;
+
+    // striped locks guarding the read-modify-write of items, indexed by item ordinal
+    private static final int ITEM_LOCK_STRIPES = 64;
+    private static final ReentrantLock[] ITEM_LOCKS = new ReentrantLock[ITEM_LOCK_STRIPES];
+    static {
+        for (int i = 0; i < ITEM_LOCK_STRIPES; i++) {
+            ITEM_LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * The changes, post-commit actions and events held by an open transaction.
+     */
+    private static class StorageTransaction {
+        int mDepth = 1;
+        final Map<String, String> mWrites = new LinkedHashMap<String, String>();
+        // the value of each key in mWrites from before the transaction changed it
+        final Map<String, String> mOriginalValues = new HashMap<String, String>();
+        final List<Runnable> mCommitActions = new ArrayList<Runnable>();
+        final List<Object> mEvents = new ArrayList<Object>();
+        final List<ReentrantLock> mLocks = new ArrayList<ReentrantLock>();
+        // the highest lock stripe in mLocks, -1 if there's none
+        int mHighestStripe = -1;
+        boolean mCoalesceBalanceEvents;
+        boolean mSkipUnchangedWrites;
+    }
+
 }
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.MarketItem;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary form of a <code>StoreCatalog</code>, used to persist the store's metadata
+ * when {@link com.soomla.store.StoreConfig#binaryMetadata} is on. Loading it skips all JSON
+ * parsing, which makes the catalog load at startup several times faster than the JSON one.
+ *
+ * Layout: a header of the magic number, the format version and the CRC32 of the rest, then a
+ * table of all the distinct strings of the catalog, then the currencies, currency packs, goods
+ * and categories. Items refer to strings by their index in the table (-1 is null).
+ * The goods keep their catalog order, each one prefixed by its type.
+ */
+final class StoreBinaryFormat {
+
+    /**
+     * Serializes the given catalog.
+     *
+     * @param catalog the catalog to serialize
+     * @return the binary form of the given catalog
+     * @throws IOException if the catalog has an item the binary form can't represent, such as
+     *                     an item without a purchase type
+     */
+    static byte[] write(StoreCatalog catalog) throws IOException {
+        // the items are written first, so that the string table is complete when it's written
+        StoreBinaryFormat format = new StoreBinaryFormat();
+        ByteArrayOutputStream items = new ByteArrayOutputStream();
+        format.writeItems(catalog, new DataOutputStream(items));
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(format.mStrings.size());
+        for (String s : format.mStrings) {
+            byte[] bytes = s.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        items.writeTo(out);
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(body.toByteArray());
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(body.size() + HEADER_SIZE);
+        DataOutputStream header = new DataOutputStream(result);
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.writeInt((int) crc.getValue());
+        body.writeTo(header);
+        header.flush();
+        return result.toByteArray();
+    }
+
+    /**
+     * Deserializes a catalog written by {@link #write(StoreCatalog)}.
+     *
+     * @param bytes the binary form of the catalog
+     * @return the catalog
+     * @throws IOException if the given bytes are not a catalog of the current format version,
+     *                     or if they are corrupted
+     */
+    static StoreCatalog read(byte[] bytes) throws IOException {
+        if (bytes.length < HEADER_SIZE) {
+            throw new IOException("The binary metadata is too short");
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("The binary metadata has a wrong magic number");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("The binary metadata has an unknown format version: " + version);
+        }
+        int checksum = in.readInt();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("The binary metadata is corrupted");
+        }
+
+        try {
+            StoreBinaryFormat format = new StoreBinaryFormat();
+            int count = in.readInt();
+            format.mTable = new String[count];
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                format.mTable[i] = new String(bytes, bytes.length - in.available(), length, UTF_8);
+                in.skipBytes(length);
+            }
+            return format.readItems(in);
+        } catch (RuntimeException e) {
+            // a valid checksum over a buggy writer's output
+            throw new IOException("The binary metadata can't be read: " + e.getMessage());
+        }
+    }
+
+
+    /** Private functions **/
+
+    private void writeItems(StoreCatalog catalog, DataOutputStream out) throws IOException {
+        List<VirtualCurrency> currencies = catalog.getCurrencies();
+        out.writeInt(currencies.size());
+        for (VirtualCurrency currency : currencies) {
+            writeString(out, currency.getName());
+            writeString(out, currency.getDescription());
+            writeString(out, currency.getItemId());
+        }
+
+        List<VirtualCurrencyPack> packs = catalog.getCurrencyPacks();
+        out.writeInt(packs.size());
+        for (VirtualCurrencyPack pack : packs) {
+            writePurchasable(out, pack);
+            out.writeInt(pack.getCurrencyAmount());
+            writeString(out, pack.getCurrencyItemId());
+        }
+
+        List<VirtualGood> goods = catalog.getGoods();
+        out.writeInt(goods.size());
+        for (VirtualGood good : goods) {
+            byte type = typeOf(good);
+            if (type == 0) {
+                throw new IOException("Unknown kind of virtual good: " + good.getItemId());
+            }
+            out.writeByte(type);
+            writePurchasable(out, good);
+            if (type == TYPE_EQUIPPABLE) {
+                writeString(out, ((EquippableVG) good).getEquippingModel().toString());
+            } else if (type == TYPE_GOOD_PACK) {
+                writeString(out, ((SingleUsePackVG) good).getGoodItemId());
+                out.writeInt(((SingleUsePackVG) good).getGoodAmount());
+            } else if (type == TYPE_UPGRADE) {
+                writeString(out, ((UpgradeVG) good).getGoodItemId());
+                writeString(out, ((UpgradeVG) good).getPrevItemId());
+                writeString(out, ((UpgradeVG) good).getNextItemId());
+            }
+        }
+
+        List<VirtualCategory> categories = catalog.getCategories();
+        out.writeInt(categories.size());
+        for (VirtualCategory category : categories) {
+            writeString(out, category.getName());
+            List<String> goodsItemIds = category.getGoodsItemIds();
+            out.writeInt(goodsItemIds.size());
+            for (String goodItemId : goodsItemIds) {
+                writeString(out, goodItemId);
+            }
+        }
+    }
+
+    private StoreCatalog readItems(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<VirtualCurrency> currencies = new ArrayList<VirtualCurrency>(count);
+        for (int i = 0; i < count; i++) {
+            currencies.add(new VirtualCurrency(readString(in), readString(in), readString(in)));
+        }
+
+        count = in.readInt();
+        List<VirtualCurrencyPack> packs = new ArrayList<VirtualCurrencyPack>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            String description = readString(in);
+            String itemId = readString(in);
+            PurchaseType purchaseType = readPurchaseType(in);
+            packs.add(new VirtualCurrencyPack(name, description, itemId, in.readInt(),
+                    readString(in), purchaseType));
+        }
+
+        count = in.readInt();
+        List<VirtualGood> goods = new ArrayList<VirtualGood>(count);
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            String name = readString(in);
+            String description = readString(in);
+            String itemId = readString(in);
+            PurchaseType purchaseType = readPurchaseType(in);
+            switch (type) {
+                case TYPE_SINGLE_USE:
+                    goods.add(new SingleUseVG(name, description, itemId, purchaseType));
+                    break;
+                case TYPE_LIFETIME:
+                    goods.add(new LifetimeVG(name, description, itemId, purchaseType));
+                    break;
+                case TYPE_EQUIPPABLE:
+                    goods.add(new EquippableVG(
+                            EquippableVG.EquippingModel.fromString(readString(in)),
+                            name, description, itemId, purchaseType));
+                    break;
+                case TYPE_GOOD_PACK:
+                    String goodItemId = readString(in);
+                    goods.add(new SingleUsePackVG(goodItemId, in.readInt(), name, description,
+                            itemId, purchaseType));
+                    break;
+                case TYPE_UPGRADE:
+                    goods.add(new UpgradeVG(readString(in), readString(in), readString(in),
+                            name, description, itemId, purchaseType));
+                    break;
+                default:
+                    throw new IOException("Unknown kind of virtual good: " + type);
+            }
+        }
+
+        count = in.readInt();
+        List<VirtualCategory> categories = new ArrayList<VirtualCategory>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            int goodsCount = in.readInt();
+            ArrayList<String> goodsItemIds = new ArrayList<String>(goodsCount);
+            for (int j = 0; j < goodsCount; j++) {
+                goodsItemIds.add(readString(in));
+            }
+            categories.add(new VirtualCategory(name, goodsItemIds));
+        }
+
+        return new StoreCatalog(currencies, packs, goods, categories);
+    }
+
+    /**
+     * Writes the fields every purchasable item has: name, description, itemId and purchase type.
+     */
+    private void writePurchasable(DataOutputStream out, PurchasableVirtualItem item)
+            throws IOException {
+        writeString(out, item.getName());
+        writeString(out, item.getDescription());
+        writeString(out, item.getItemId());
+
+        PurchaseType purchaseType = item.getPurchaseType();
+        if (purchaseType instanceof PurchaseWithMarket) {
+            PurchaseWithMarket pwm = (PurchaseWithMarket) purchaseType;
+            MarketItem mi = pwm.getMarketItem();
+            out.writeByte(PURCHASE_MARKET);
+            out.writeBoolean(pwm.isSubscription());
+            writeString(out, mi.getProductId());
+            out.writeDouble(mi.getPrice());
+            writeString(out, mi.getMarketPriceAndCurrency());
+            writeString(out, mi.getMarketTitle());
+            writeString(out, mi.getMarketDescription());
+            writeString(out, mi.getMarketCurrencyCode());
+            out.writeLong(mi.getMarketPriceMicros());
+        } else if (purchaseType instanceof PurchaseWithVirtualItem) {
+            out.writeByte(PURCHASE_VIRTUAL_ITEM);
+            writeString(out, ((PurchaseWithVirtualItem) purchaseType).getTargetItemId());
+            out.writeInt(((PurchaseWithVirtualItem) purchaseType).getAmount());
+        } else {
+            throw new IOException("No purchase type for: " + item.getItemId());
+        }
+    }
+
+    private PurchaseType readPurchaseType(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        if (kind == PURCHASE_MARKET) {
+            boolean isSubscription = in.readBoolean();
+            MarketItem mi = new MarketItem(readString(in), in.readDouble());
+            mi.setMarketInformation(readString(in), readString(in), readString(in),
+                    readString(in), in.readLong());
+            return new PurchaseWithMarket(mi, isSubscription);
+        } else if (kind == PURCHASE_VIRTUAL_ITEM) {
+            String targetItemId = readString(in);
+            return new PurchaseWithVirtualItem(targetItemId, in.readInt());
+        }
+        return null;
+    }
+
+    private void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        Integer index = mIndexes.get(s);
+        if (index == null) {
+            index = mStrings.size();
+            mStrings.add(s);
+            mIndexes.put(s, index);
+        }
+        out.writeInt(index);
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int index = in.readInt();
+        return index >= 0 ? mTable[index] : null;
+    }
+
+    /**
+     * Retrieves the type of the given good, checked in the same order as the metadata JSON does.
+     */
+    private static byte typeOf(VirtualGood good) {
+        if (good instanceof SingleUseVG) {
+            return TYPE_SINGLE_USE;
+        } else if (good instanceof UpgradeVG) {
+            return TYPE_UPGRADE;
+        } else if (good instanceof EquippableVG) {
+            return TYPE_EQUIPPABLE;
+        } else if (good instanceof SingleUsePackVG) {
+            return TYPE_GOOD_PACK;
+        } else if (good instanceof LifetimeVG) {
+            return TYPE_LIFETIME;
+        }
+        return 0;
+    }
+
+
+    /** Private Members **/
+
+    private static final String UTF_8 = "UTF-8";
+
+    private static final int MAGIC = 0x534f4d43; // "SOMC"
+
+    // bump when the layout changes. metadata of another version is reloaded from the JSON.
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final byte TYPE_SINGLE_USE = 1;
+    private static final byte TYPE_LIFETIME = 2;
+    private static final byte TYPE_EQUIPPABLE = 3;
+    private static final byte TYPE_GOOD_PACK = 4;
+    private static final byte TYPE_UPGRADE = 5;
+
+    private static final byte PURCHASE_MARKET = 1;
+    private static final byte PURCHASE_VIRTUAL_ITEM = 2;
+
+    // the string table while writing
+    private final List<String> mStrings = new ArrayList<String>();
+    private final HashMap<String, Integer> mIndexes = new HashMap<String, Integer>();
+
+    // the string table while reading
+    private String[] mTable;
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the store's metadata, together with all the lookups
+ * <code>StoreInfo</code> serves from it.
+ *
+ * <code>StoreInfo</code> publishes the current snapshot through a single volatile reference.
+ * Changing the metadata builds a new snapshot and swaps it in, so readers never lock and never
+ * see a half-updated catalog, and the lists they get can be iterated while the catalog changes.
+ *
+ * See {@link LazyStoreCatalog} for a snapshot that builds its items on first access.
+ */
+class StoreCatalog {
+
+    static final StoreCatalog EMPTY = new StoreCatalog(new ArrayList<VirtualCurrency>(),
+            new ArrayList<VirtualCurrencyPack>(), new ArrayList<VirtualGood>(),
+            new ArrayList<VirtualCategory>());
+
+    /**
+     * Constructor.
+     * Builds all the lookups of the given metadata. The given lists are copied.
+     *
+     * @param currencies the virtual currencies
+     * @param currencyPacks the virtual currency packs
+     * @param goods all kinds of virtual goods
+     * @param categories the virtual categories
+     */
+    StoreCatalog(List<VirtualCurrency> currencies, List<VirtualCurrencyPack> currencyPacks,
+                 List<VirtualGood> goods, List<VirtualCategory> categories) {
+        mCurrencies = Collections.unmodifiableList(new ArrayList<VirtualCurrency>(currencies));
+        mCurrencyPacks = Collections.unmodifiableList(
+                new ArrayList<VirtualCurrencyPack>(currencyPacks));
+        mGoods = Collections.unmodifiableList(new ArrayList<VirtualGood>(goods));
+        mCategories = Collections.unmodifiableList(new ArrayList<VirtualCategory>(categories));
+
+        // items are visited in catalog order so that they get the lowest (densest) ordinals
+        for (int i = 0; i < mCurrencies.size(); i++) {
+            VirtualCurrency currency = mCurrencies.get(i);
+            mCurrencyOrdinals.set(currency.getOrdinal());
+            mVirtualItems.put(currency.getItemId(), currency);
+            mPositions.put(currency.getItemId(), i);
+            mCurrencyItemIds.add(currency.getItemId());
+        }
+
+        for (int i = 0; i < mCurrencyPacks.size(); i++) {
+            VirtualCurrencyPack pack = mCurrencyPacks.get(i);
+            pack.getOrdinal();
+            mVirtualItems.put(pack.getItemId(), pack);
+            mPositions.put(pack.getItemId(), i);
+            addPurchasable(pack);
+        }
+
+        HashMap<String, List<UpgradeVG>> goodsUpgrades = new HashMap<String, List<UpgradeVG>>();
+        for (int i = 0; i < mGoods.size(); i++) {
+            VirtualGood good = mGoods.get(i);
+            mGoodOrdinals.set(good.getOrdinal());
+            mVirtualItems.put(good.getItemId(), good);
+            mPositions.put(good.getItemId(), i);
+            mGoodItemIds.add(good.getItemId());
+            addPurchasable(good);
+            addToIndex(mGoodsByJSONType, StoreJSONReader.typeOf(good), good);
+            for (Class<?> c = good.getClass(); VirtualGood.class.isAssignableFrom(c);
+                 c = c.getSuperclass()) {
+                addToIndex(mGoodsByClass, c, good);
+            }
+
+            if (good instanceof EquippableVG) {
+                mEquippableGoodOrdinals.set(good.getOrdinal());
+            }
+
+            if (good instanceof UpgradeVG) {
+                List<UpgradeVG> upgrades = goodsUpgrades.get(((UpgradeVG) good).getGoodItemId());
+                if (upgrades == null) {
+                    upgrades = new ArrayList<UpgradeVG>();
+                    goodsUpgrades.put(((UpgradeVG) good).getGoodItemId(), upgrades);
+                }
+                upgrades.add((UpgradeVG) good);
+            }
+        }
+
+        for (Map.Entry<String, List<UpgradeVG>> entry : goodsUpgrades.entrySet()) {
+            mGoodsUpgrades.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+            mUpgradeableGoodOrdinals.set(StoreInfo.getOrdinal(entry.getKey()));
+        }
+
+        for (VirtualCategory category : mCategories) {
+            BitSet ordinals = new BitSet();
+            List<VirtualGood> categoryGoods = new ArrayList<VirtualGood>();
+            for (String goodItemId : category.getGoodsItemIds()) {
+                mGoodsCategories.put(goodItemId, category);
+                ordinals.set(StoreInfo.getOrdinal(goodItemId));
+                VirtualItem good = mVirtualItems.get(goodItemId);
+                if (good instanceof VirtualGood) {
+                    categoryGoods.add((VirtualGood) good);
+                }
+            }
+            mCategoryGoodOrdinals.put(category, ordinals);
+            mCategoryGoods.put(category, Collections.unmodifiableList(categoryGoods));
+        }
+
+        freezeIndex(mGoodsByClass);
+        freezeIndex(mGoodsByJSONType);
+        freezeIndex(mItemsByPurchaseType);
+        freezeIndex(mItemsByPriceItemId);
+        mSubscriptions = Collections.unmodifiableList(mSubscriptions);
+
+        mUpgradeLevels = buildUpgradeChains();
+    }
+
+    /**
+     * Creates a new snapshot in which the given virtual items replace the items with the same
+     * itemIds, at the same positions. Items that don't exist yet are added at the end of their
+     * list. Each item is found through the position index, so a replacement costs O(1) on top of
+     * building the new snapshot, which is O(n) in the number of items.
+     *
+     * @param virtualItems the virtual items that replace the old ones if exist
+     * @return the new snapshot
+     */
+    StoreCatalog replace(List<? extends VirtualItem> virtualItems) {
+        List<VirtualCurrency> currencies = new ArrayList<VirtualCurrency>(mCurrencies);
+        List<VirtualCurrencyPack> currencyPacks = new ArrayList<VirtualCurrencyPack>(mCurrencyPacks);
+        List<VirtualGood> goods = new ArrayList<VirtualGood>(mGoods);
+
+        // positions of the items added by this replacement
+        HashMap<String, Integer> added = new HashMap<String, Integer>();
+        for (VirtualItem virtualItem : virtualItems) {
+            if (virtualItem instanceof VirtualCurrency) {
+                replaceIn(currencies, (VirtualCurrency) virtualItem, added);
+            } else if (virtualItem instanceof VirtualCurrencyPack) {
+                replaceIn(currencyPacks, (VirtualCurrencyPack) virtualItem, added);
+            } else if (virtualItem instanceof VirtualGood) {
+                replaceIn(goods, (VirtualGood) virtualItem, added);
+            }
+        }
+
+        return new StoreCatalog(currencies, currencyPacks, goods, mCategories);
+    }
+
+    /**
+     * Converts this catalog to the store's metadata JSON.
+     *
+     * @return a <code>JSONObject</code> representation of this catalog.
+     */
+    JSONObject toJSONObject() {
+        JSONArray currencies = new JSONArray();
+        for (VirtualCurrency c : mCurrencies) {
+            currencies.put(c.toJSONObject());
+        }
+
+        JSONArray currencyPacks = new JSONArray();
+        for (VirtualCurrencyPack pack : mCurrencyPacks) {
+            currencyPacks.put(pack.toJSONObject());
+        }
+
+        JSONObject goods = new JSONObject();
+        JSONArray suGoods = toJSONArray(mGoodsByJSONType.get(StoreJSONConsts.STORE_GOODS_SU));
+        JSONArray ltGoods = toJSONArray(mGoodsByJSONType.get(StoreJSONConsts.STORE_GOODS_LT));
+        JSONArray eqGoods = toJSONArray(mGoodsByJSONType.get(StoreJSONConsts.STORE_GOODS_EQ));
+        JSONArray paGoods = toJSONArray(mGoodsByJSONType.get(StoreJSONConsts.STORE_GOODS_PA));
+        JSONArray upGoods = toJSONArray(mGoodsByJSONType.get(StoreJSONConsts.STORE_GOODS_UP));
+
+        JSONArray categories = new JSONArray();
+        for (VirtualCategory cat : mCategories) {
+            categories.put(cat.toJSONObject());
+        }
+
+        JSONObject jsonObject = new JSONObject();
+        try {
+            goods.put(StoreJSONConsts.STORE_GOODS_SU, suGoods);
+            goods.put(StoreJSONConsts.STORE_GOODS_LT, ltGoods);
+            goods.put(StoreJSONConsts.STORE_GOODS_EQ, eqGoods);
+            goods.put(StoreJSONConsts.STORE_GOODS_PA, paGoods);
+            goods.put(StoreJSONConsts.STORE_GOODS_UP, upGoods);
+
+            jsonObject.put(StoreJSONConsts.STORE_CATEGORIES, categories);
+            jsonObject.put(StoreJSONConsts.STORE_CURRENCIES, currencies);
+            jsonObject.put(StoreJSONConsts.STORE_GOODS, goods);
+            jsonObject.put(StoreJSONConsts.STORE_CURRENCYPACKS, currencyPacks);
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "An error occurred while generating JSON object.");
+        }
+
+        return jsonObject;
+    }
+
+    /**
+     * Links the references of the items to other items (the currency of a currency pack, the
+     * good of a single use pack or of an upgrade, the previous upgrade, and the item a price is
+     * paid in) to the items of this catalog, so that using the items needs no lookups.
+     * References to items that aren't in this catalog, or that aren't of the expected type, are
+     * reported here and left unlinked.
+     *
+     * Items are shared between snapshots, so this is done when a snapshot is published.
+     */
+    void link() {
+        for (VirtualCurrencyPack pack : mCurrencyPacks) {
+            linkItem(pack);
+        }
+        for (VirtualGood good : mGoods) {
+            linkItem(good);
+        }
+    }
+
+    /**
+     * Links the references of the given item to the items of this catalog.
+     *
+     * @see #link()
+     */
+    void linkItem(VirtualItem item) {
+        if (item instanceof VirtualCurrencyPack) {
+            VirtualCurrencyPack pack = (VirtualCurrencyPack) item;
+            pack.setCurrency(resolve(pack, pack.getCurrencyItemId(), VirtualCurrency.class));
+        } else if (item instanceof SingleUsePackVG) {
+            SingleUsePackVG pack = (SingleUsePackVG) item;
+            pack.setGood(resolve(pack, pack.getGoodItemId(), SingleUseVG.class));
+        } else if (item instanceof UpgradeVG) {
+            UpgradeVG upgrade = (UpgradeVG) item;
+            upgrade.setLinks(resolve(upgrade, upgrade.getGoodItemId(), VirtualGood.class),
+                    TextUtils.isEmpty(upgrade.getPrevItemId()) ? null
+                            : resolve(upgrade, upgrade.getPrevItemId(), UpgradeVG.class));
+        }
+
+        if (item instanceof PurchasableVirtualItem) {
+            PurchaseType purchaseType = ((PurchasableVirtualItem) item).getPurchaseType();
+            if (purchaseType instanceof PurchaseWithVirtualItem) {
+                PurchaseWithVirtualItem purchase = (PurchaseWithVirtualItem) purchaseType;
+                purchase.setTargetItem(resolve(item, purchase.getTargetItemId(),
+                        VirtualItem.class));
+            }
+        }
+    }
+
+    /**
+     * Retrieves the item with the given itemId to link another item to. Unlike
+     * {@link #getVirtualItem(String)}, the item doesn't need to be linked itself.
+     */
+    VirtualItem getLinkTarget(String itemId) {
+        return mVirtualItems.get(itemId);
+    }
+
+
+    /** Setters and Getters */
+
+    VirtualItem getVirtualItem(String itemId) {
+        return mVirtualItems.get(itemId);
+    }
+
+    int getPosition(String itemId) {
+        Integer position = mPositions.get(itemId);
+        return position != null ? position : -1;
+    }
+
+    PurchasableVirtualItem getPurchasableItem(String productId) {
+        return mPurchasableItems.get(productId);
+    }
+
+    VirtualCategory getCategory(String goodItemId) {
+        return mGoodsCategories.get(goodItemId);
+    }
+
+    List<UpgradeVG> getGoodUpgrades(String goodItemId) {
+        return mGoodsUpgrades.get(goodItemId);
+    }
+
+    UpgradeVG[] getGoodUpgradeChain(String goodItemId) {
+        return mGoodsUpgradeChains.get(goodItemId);
+    }
+
+    int getUpgradeLevel(int ordinal) {
+        return ordinal < mUpgradeLevels.length ? mUpgradeLevels[ordinal] : 0;
+    }
+
+    BitSet getCurrencyOrdinals() {
+        return mCurrencyOrdinals;
+    }
+
+    BitSet getGoodOrdinals() {
+        return mGoodOrdinals;
+    }
+
+    BitSet getUpgradeableGoodOrdinals() {
+        return mUpgradeableGoodOrdinals;
+    }
+
+    BitSet getEquippableGoodOrdinals() {
+        return mEquippableGoodOrdinals;
+    }
+
+    BitSet getCategoryGoodOrdinals(VirtualCategory category) {
+        return mCategoryGoodOrdinals.get(category);
+    }
+
+    List<VirtualCurrency> getCurrencies() {
+        return mCurrencies;
+    }
+
+    List<VirtualCurrencyPack> getCurrencyPacks() {
+        return mCurrencyPacks;
+    }
+
+    List<VirtualGood> getGoods() {
+        return mGoods;
+    }
+
+    List<VirtualCategory> getCategories() {
+        return mCategories;
+    }
+
+    List<String> getAllProductIds() {
+        return new ArrayList<String>(mPurchasableItems.keySet());
+    }
+
+    @SuppressWarnings("unchecked")
+    <T extends VirtualGood> List<T> getGoods(Class<T> goodClass) {
+        List<VirtualGood> goods = mGoodsByClass.get(goodClass);
+        return goods != null ? (List<T>) goods : Collections.<T>emptyList();
+    }
+
+    List<PurchasableVirtualItem> getPurchasableItems(Class<? extends PurchaseType> purchaseType) {
+        List<PurchasableVirtualItem> items = mItemsByPurchaseType.get(purchaseType);
+        return items != null ? items : Collections.<PurchasableVirtualItem>emptyList();
+    }
+
+    List<PurchasableVirtualItem> getItemsPricedIn(String itemId) {
+        List<PurchasableVirtualItem> items = mItemsByPriceItemId.get(itemId);
+        return items != null ? items : Collections.<PurchasableVirtualItem>emptyList();
+    }
+
+    List<VirtualGood> getCategoryGoods(VirtualCategory category) {
+        List<VirtualGood> goods = mCategoryGoods.get(category);
+        return goods != null ? goods : Collections.<VirtualGood>emptyList();
+    }
+
+    List<VirtualGood> getSubscriptions() {
+        return mSubscriptions;
+    }
+
+    /**
+     * Retrieves the itemIds of all the currencies, without building any item that wasn't built
+     * yet. See {@link LazyStoreCatalog}.
+     */
+    List<String> getCurrencyItemIds() {
+        return mCurrencyItemIds;
+    }
+
+    /**
+     * Retrieves the itemIds of all the goods, without building any item that wasn't built yet.
+     * See {@link LazyStoreCatalog}.
+     */
+    List<String> getGoodItemIds() {
+        return mGoodItemIds;
+    }
+
+
+    /** Private functions **/
+
+    private void addPurchasable(PurchasableVirtualItem item) {
+        PurchaseType purchaseType = item.getPurchaseType();
+        if (purchaseType == null) {
+            return;
+        }
+
+        for (Class<?> c = purchaseType.getClass(); PurchaseType.class.isAssignableFrom(c);
+             c = c.getSuperclass()) {
+            addToIndex(mItemsByPurchaseType, c, item);
+        }
+
+        if (purchaseType instanceof PurchaseWithMarket) {
+            mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
+                    .getProductId(), item);
+            if (((PurchaseWithMarket) purchaseType).isSubscription()
+                    && item instanceof VirtualGood) {
+                mSubscriptions.add((VirtualGood) item);
+            }
+        } else if (purchaseType instanceof PurchaseWithVirtualItem) {
+            addToIndex(mItemsByPriceItemId,
+                    ((PurchaseWithVirtualItem) purchaseType).getTargetItemId(), item);
+        }
+    }
+
+    /**
+     * Resolves the reference of the given item to the item with the given itemId.
+     *
+     * @return the referenced item, or null if it's not in the catalog or not of the given type
+     */
+    private <T extends VirtualItem> T resolve(VirtualItem item, String itemId, Class<T> type) {
+        VirtualItem target = itemId != null ? getLinkTarget(itemId) : null;
+        if (!type.isInstance(target)) {
+            SoomlaUtils.LogError(TAG, item.getItemId() + " refers to " + itemId + ", which "
+                    + (target == null ? "doesn't exist" : "is not a " + type.getSimpleName())
+                    + ". It won't work until the metadata is fixed.");
+            return null;
+        }
+        return type.cast(target);
+    }
+
+    private static <K, V> void addToIndex(HashMap<K, List<V>> index, K key, V value) {
+        List<V> values = index.get(key);
+        if (values == null) {
+            values = new ArrayList<V>();
+            index.put(key, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * Makes the lists of the given index read-only, once the index is built.
+     */
+    private static <K, V> void freezeIndex(HashMap<K, List<V>> index) {
+        for (Map.Entry<K, List<V>> entry : index.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+    }
+
+    private static JSONArray toJSONArray(List<VirtualGood> goods) {
+        JSONArray array = new JSONArray();
+        if (goods != null) {
+            for (VirtualGood good : goods) {
+                array.put(good.toJSONObject());
+            }
+        }
+        return array;
+    }
+
+    private <T extends VirtualItem> void replaceIn(List<T> items, T virtualItem,
+                                                  HashMap<String, Integer> added) {
+        String itemId = virtualItem.getItemId();
+        Integer position = added.get(itemId);
+        if (position == null) {
+            position = mPositions.get(itemId);
+        }
+
+        // the position may belong to a list of another type if the item changed its type
+        if (position != null && position < items.size()
+                && items.get(position).getItemId().equals(itemId)) {
+            items.set(position, virtualItem);
+        } else {
+            added.put(itemId, items.size());
+            items.add(virtualItem);
+        }
+    }
+
+    /**
+     * Orders the upgrades of each good by following their next links from the first upgrade, and
+     * records the level of every upgrade, so that upgrade lookups don't walk the links.
+     *
+     * @return the level of each upgrade by its ordinal
+     */
+    private int[] buildUpgradeChains() {
+        int maxOrdinal = -1;
+        for (List<UpgradeVG> upgrades : mGoodsUpgrades.values()) {
+            for (UpgradeVG upgradeVG : upgrades) {
+                maxOrdinal = Math.max(maxOrdinal, upgradeVG.getOrdinal());
+            }
+        }
+        int[] levels = new int[maxOrdinal + 1];
+
+        for (Map.Entry<String, List<UpgradeVG>> entry : mGoodsUpgrades.entrySet()) {
+            HashMap<String, UpgradeVG> byItemId = new HashMap<String, UpgradeVG>();
+            UpgradeVG upgradeVG = null;
+            for (UpgradeVG candidate : entry.getValue()) {
+                byItemId.put(candidate.getItemId(), candidate);
+                if (TextUtils.isEmpty(candidate.getPrevItemId())) {
+                    upgradeVG = candidate;
+                }
+            }
+
+            List<UpgradeVG> chain = new ArrayList<UpgradeVG>();
+            while (upgradeVG != null && chain.size() < byItemId.size()) {
+                chain.add(upgradeVG);
+                levels[upgradeVG.getOrdinal()] = chain.size();
+                upgradeVG = TextUtils.isEmpty(upgradeVG.getNextItemId()) ? null
+                        : byItemId.get(upgradeVG.getNextItemId());
+            }
+            if (chain.size() < byItemId.size()) {
+                SoomlaUtils.LogError(TAG, "The upgrades of " + entry.getKey() + " don't form one "
+                        + "series. Only " + chain.size() + " of " + byItemId.size()
+                        + " are reachable from the first upgrade.");
+            }
+            if (!chain.isEmpty()) {
+                mGoodsUpgradeChains.put(entry.getKey(), chain.toArray(new UpgradeVG[chain.size()]));
+            }
+        }
+
+        return levels;
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA StoreCatalog"; //used for Log messages
+
+    private final List<VirtualCurrency> mCurrencies;
+    private final List<VirtualCurrencyPack> mCurrencyPacks;
+    private final List<VirtualGood> mGoods;
+    private final List<VirtualCategory> mCategories;
+    private final List<String> mCurrencyItemIds = new ArrayList<String>();
+    private final List<String> mGoodItemIds = new ArrayList<String>();
+
+    // position of each currency, currency pack and good in its own list
+    private final HashMap<String, Integer> mPositions = new HashMap<String, Integer>();
+
+    // convenient hashes of virtual items, purchasable virtual items, goods-categories and
+    // good-upgrades
+    private final HashMap<String, VirtualItem> mVirtualItems = new HashMap<String, VirtualItem>();
+    private final HashMap<String, PurchasableVirtualItem> mPurchasableItems =
+            new HashMap<String, PurchasableVirtualItem>();
+    private final HashMap<String, VirtualCategory> mGoodsCategories =
+            new HashMap<String, VirtualCategory>();
+    private final HashMap<String, List<UpgradeVG>> mGoodsUpgrades =
+            new HashMap<String, List<UpgradeVG>>();
+
+    // the upgrades of each good, ordered by level, and the level of each upgrade by ordinal
+    private final HashMap<String, UpgradeVG[]> mGoodsUpgradeChains =
+            new HashMap<String, UpgradeVG[]>();
+    private final int[] mUpgradeLevels;
+
+    // secondary indexes, each list in catalog order. goods and purchase types are indexed under
+    // their class and each of its superclasses, so a query by class matches like instanceof.
+    private final HashMap<Class<?>, List<VirtualGood>> mGoodsByClass =
+            new HashMap<Class<?>, List<VirtualGood>>();
+    private final HashMap<String, List<VirtualGood>> mGoodsByJSONType =
+            new HashMap<String, List<VirtualGood>>();
+    private final HashMap<Class<?>, List<PurchasableVirtualItem>> mItemsByPurchaseType =
+            new HashMap<Class<?>, List<PurchasableVirtualItem>>();
+    private final HashMap<String, List<PurchasableVirtualItem>> mItemsByPriceItemId =
+            new HashMap<String, List<PurchasableVirtualItem>>();
+    private final HashMap<VirtualCategory, List<VirtualGood>> mCategoryGoods =
+            new HashMap<VirtualCategory, List<VirtualGood>>();
+    private List<VirtualGood> mSubscriptions = new ArrayList<VirtualGood>();
+
+    // ordinals of all the currencies, all the goods, the goods that have upgrades, all the
+    // equippable goods, and the goods of each category
+    private final BitSet mCurrencyOrdinals = new BitSet();
+    private final BitSet mGoodOrdinals = new BitSet();
+    private final BitSet mUpgradeableGoodOrdinals = new BitSet();
+    private final BitSet mEquippableGoodOrdinals = new BitSet();
+    private final HashMap<VirtualCategory, BitSet> mCategoryGoodOrdinals =
+            new HashMap<VirtualCategory, BitSet>();
+}
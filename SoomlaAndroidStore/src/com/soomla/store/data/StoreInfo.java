@@ -19,6 +19,7 @@ package com.soomla.store.data;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.text.TextUtils;
+import android.util.Base64;
 import com.soomla.BusProvider;
 import com.soomla.SoomlaApp;
 import com.soomla.SoomlaConfig;
@@ -33,8 +34,6 @@ import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
 import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
 import com.soomla.store.domain.virtualGoods.EquippableVG;
 import com.soomla.store.domain.virtualGoods.LifetimeVG;
-import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
-import com.soomla.store.domain.virtualGoods.SingleUseVG;
 import com.soomla.store.domain.virtualGoods.UpgradeVG;
 import com.soomla.store.domain.virtualGoods.VirtualGood;
 import com.soomla.store.events.UnexpectedStoreErrorEvent;
@@ -46,13 +45,20 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.lang.IllegalArgumentException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class holds the store's metadata including:
@@ -77,54 +83,131 @@ public class StoreInfo {
      */
     public static void setStoreAssets(IStoreAssets storeAssets) {
         try {
-            validateStoreAssets(storeAssets);
-            mCurrentAssetsVersion = storeAssets.getVersion();
-
-            //checkAndResetMetadata();
-
-            // we always initialize from the database, unless this is the first time the game is
-            // loaded - in that case we initialize with setStoreAssets.
-            // BUT we don't need to load from DB if metadata was reset.
-            if (!loadFromDB()) {
-                initializeWithStoreAssets(storeAssets);
-            }
+            loadStoreAssets(storeAssets);
         } catch (IllegalArgumentException invalidStoreAssetsException) {
             SoomlaUtils.LogError(TAG, invalidStoreAssetsException.getMessage());
         }
     }
 
+    /**
+     * Initializes <code>StoreInfo</code> the same way as {@link #setStoreAssets(IStoreAssets)},
+     * on the given executor instead of the calling thread.
+     *
+     * Until the metadata is loaded, any other thread that reads it (or changes it) waits for it.
+     * A read never sees the metadata as it was before loading; if loading takes longer than
+     * {@link #LOAD_WAIT_WARNING_MS}, the waiting thread logs an error and keeps waiting.
+     *
+     * @param storeAssets the definition of your application specific assets.
+     * @param executor the executor to load the metadata on
+     * @param listener called on the executor's thread once loading is over, may be null
+     */
+    public static void setStoreAssetsAsync(final IStoreAssets storeAssets, Executor executor,
+                                           final StoreAssetsLoadListener listener) {
+        final CountDownLatch loading = new CountDownLatch(1);
+        mLoading = loading;
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mLoadingThread = Thread.currentThread();
+                    String error = null;
+                    try {
+                        loadStoreAssets(storeAssets);
+                    } catch (RuntimeException e) {
+                        error = e.getMessage();
+                        SoomlaUtils.LogError(TAG, "Couldn't load the store assets: " + error);
+                    } finally {
+                        mLoadingThread = null;
+                        mLoading = null;
+                        loading.countDown();
+                    }
+
+                    if (listener == null) {
+                        return;
+                    }
+                    if (error == null) {
+                        listener.success();
+                    } else {
+                        listener.fail(error);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mLoading = null;
+            loading.countDown();
+            throw e;
+        }
+    }
+
+    /**
+     * Listens for the end of {@link #setStoreAssetsAsync(IStoreAssets, Executor,
+     * StoreAssetsLoadListener)}.
+     */
+    public interface StoreAssetsLoadListener {
+
+        /**
+         * The metadata was loaded.
+         */
+        public void success();
+
+        /**
+         * The metadata couldn't be loaded, for example because the given assets are invalid.
+         *
+         * @param message reason for failure
+         */
+        public void fail(String message);
+    }
+
     /**
      * Another option to set the data of StoreInfo. This will usually be used from game engine
      * wrappers like Unity or Cocos2dx.
      *
+     * The given JSON is fingerprinted, and the fingerprint is kept with the metadata built from
+     * it. That metadata is kept in its binary form, as with {@link StoreConfig#binaryMetadata},
+     * so as long as the same JSON is given, the metadata in the database is used and no JSON is
+     * parsed at all. When the JSON changes, the metadata is rebuilt from it, even if the version
+     * wasn't bumped.
+     *
      * @param version       the version of IStoreAssets.
      * @param storeMetaJSON the store metadata as JSON.
      */
     public static void setStoreAssets(int version, String storeMetaJSON) {
-        SoomlaUtils.LogDebug(TAG, "trying to set json: " + storeMetaJSON);
-
         if (TextUtils.isEmpty(storeMetaJSON)) {
             SoomlaUtils.LogError(TAG, "The given store assets JSON can't be empty or null!");
             return;
         }
 
+        String fingerprint = fingerprintOf(storeMetaJSON);
+        SoomlaUtils.LogDebug(TAG, "trying to set json of " + storeMetaJSON.length()
+                + " chars. fingerprint: " + fingerprint);
+
         mCurrentAssetsVersion = version;
 
 //        checkAndResetMetadata();
 
+        if (!fingerprint.equals(KeyValueStorage.getValue(keyMetaFingerprint()))) {
+            SoomlaUtils.LogDebug(TAG, "the store assets json changed. rebuilding the metadata.");
+            deleteMetadata();
+        }
+
         // we always initialize from the database, unless this is the first time the game is
-        // loaded - in that case we initialize with setStoreAssets.
+        // loaded (or the json changed) - in that case we initialize with setStoreAssets.
         if (!loadFromDB()) {
             SoomlaUtils.LogDebug(TAG, "didn't find anything in DB to load. continuing with store assets json.");
             try {
-                fromJSONObject(new JSONObject(storeMetaJSON));
-                save();
+                fromJSON(storeMetaJSON);
+                saveMetadata(true);
+                // written last, so it never vouches for metadata that wasn't saved
+                KeyValueStorage.setValue(keyMetaFingerprint(), fingerprint);
             } catch (JSONException e) {
                 SoomlaUtils.LogError(TAG, "Can't parse store metadata json. That's a major issue." + storeMetaJSON);
                 BusProvider.getInstance().post(
                         new UnexpectedStoreErrorEvent(UnexpectedStoreErrorEvent.ErrorCode.GENERAL));
+                return;
             }
         }
+        prefetchInventory();
     }
 
     /**
@@ -137,6 +220,11 @@ public class StoreInfo {
     public static boolean loadFromDB() {
         checkAndResetMetadata();
 
+        if (loadBinaryFromDB()) {
+            loadItemRecords();
+            return true;
+        }
+
         String key = keyMetaStoreInfo();
         String val = KeyValueStorage.getValue(key);
 
@@ -157,7 +245,13 @@ public class StoreInfo {
         SoomlaUtils.LogDebug(TAG, "the metadata-economy json (from DB) is " + val);
 
         try {
-            fromJSONObject(new JSONObject(val));
+            fromJSON(val);
+            loadItemRecords();
+
+            if (isBinaryMetadata()) {
+                SoomlaUtils.LogDebug(TAG, "converting the metadata to its binary form.");
+                saveMetadata(true);
+            }
 
             // everything went well... StoreInfo is initialized from the local DB.
             // it's ok to return now.
@@ -180,7 +274,7 @@ public class StoreInfo {
      * <code>goodItemId</code>, otherwise false.
      */
     public static boolean hasUpgrades(String goodItemId) {
-        return mGoodsUpgrades.containsKey(goodItemId);
+        return catalog().getGoodUpgrades(goodItemId) != null;
     }
 
     /**
@@ -194,8 +288,87 @@ public class StoreInfo {
     }
 
 
+    /**
+     * Retrieves the ordinal of the given itemId: a small int that identifies the item for the
+     * rest of the process, so the storages can keep its state in arrays instead of maps.
+     * Catalog items get consecutive ordinals when the catalog is loaded. Any other itemId gets
+     * the next free ordinal the first time it's asked for. An itemId never changes its ordinal,
+     * even when the catalog is replaced.
+     *
+     * @param itemId the itemId to look up
+     * @return the ordinal of the given itemId
+     */
+    public static int getOrdinal(String itemId) {
+        Integer ordinal = mOrdinals.get(itemId);
+        if (ordinal != null) {
+            return ordinal;
+        }
+
+        synchronized (mOrdinalsLock) {
+            ordinal = mOrdinals.get(itemId);
+            if (ordinal == null) {
+                ordinal = mOrdinalCount++;
+                String[] itemIds = mOrdinalItemIds;
+                if (ordinal == itemIds.length) {
+                    itemIds = Arrays.copyOf(itemIds, itemIds.length * 2);
+                }
+                itemIds[ordinal] = itemId;
+                mOrdinalItemIds = itemIds;
+                mOrdinals.put(itemId, ordinal);
+            }
+            return ordinal;
+        }
+    }
+
+    /**
+     * Retrieves the ordinal of the given itemId if it already has one, without giving it one
+     * otherwise (see {@link #getOrdinal(String)}). Reads use this, so asking about unknown or
+     * mistyped itemIds doesn't use up ordinals.
+     *
+     * @param itemId the itemId to look up
+     * @return the ordinal of the given itemId, or -1 if it has none
+     */
+    public static int findOrdinal(String itemId) {
+        Integer ordinal = itemId == null ? null : mOrdinals.get(itemId);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * Retrieves the itemId that was given the given ordinal. See {@link #getOrdinal(String)}.
+     *
+     * @param ordinal the ordinal to look up
+     * @return the itemId of the given ordinal, or null if no itemId has it
+     */
+    public static String getItemIdByOrdinal(int ordinal) {
+        String[] itemIds = mOrdinalItemIds;
+        return ordinal >= 0 && ordinal < itemIds.length ? itemIds[ordinal] : null;
+    }
+
+
     /** Setters and Getters */
 
+    /**
+     * Retrieves the ordinals (see {@link #getOrdinal(String)}) of all the
+     * <code>EquippableVG</code>s in the metadata.
+     *
+     * @return a copy of the ordinals of all the <code>EquippableVG</code>s
+     */
+    public static BitSet getEquippableGoodOrdinals() {
+        return (BitSet) catalog().getEquippableGoodOrdinals().clone();
+    }
+
+    /**
+     * Retrieves the ordinals (see {@link #getOrdinal(String)}) of all the goods in the given
+     * category.
+     *
+     * @param category the category to fetch the goods of
+     * @return a copy of the ordinals of the goods in the given category
+     */
+    public static BitSet getCategoryGoodOrdinals(VirtualCategory category) {
+        BitSet ordinals = catalog().getCategoryGoodOrdinals(category);
+        return ordinals != null ? (BitSet) ordinals.clone() : new BitSet();
+    }
+
     /**
      * Retrieves a single <code>VirtualItem</code> that resides in the metadata.
      *
@@ -205,7 +378,7 @@ public class StoreInfo {
      *                                      <code>itemId</code> was found.
      */
     public static VirtualItem getVirtualItem(String itemId) throws VirtualItemNotFoundException {
-        VirtualItem item = mVirtualItems.get(itemId);
+        VirtualItem item = findVirtualItem(itemId);
         if (item == null) {
             throw new VirtualItemNotFoundException("itemId", itemId);
         }
@@ -225,7 +398,7 @@ public class StoreInfo {
      */
     public static PurchasableVirtualItem getPurchasableItem(String productId)
             throws VirtualItemNotFoundException {
-        PurchasableVirtualItem item = mPurchasableItems.get(productId);
+        PurchasableVirtualItem item = findPurchasableItem(productId);
         if (item == null) {
             throw new VirtualItemNotFoundException("productId", productId);
         }
@@ -243,7 +416,7 @@ public class StoreInfo {
      */
     public static VirtualCategory getCategory(String goodItemId)
             throws VirtualItemNotFoundException {
-        VirtualCategory item = mGoodsCategories.get(goodItemId);
+        VirtualCategory item = findCategory(goodItemId);
         if (item == null) {
             throw new VirtualItemNotFoundException("goodItemId", goodItemId);
         }
@@ -251,6 +424,58 @@ public class StoreInfo {
         return item;
     }
 
+    /*
+     * The find functions below are the same lookups as the get functions above, but they return
+     * null instead of throwing when there's nothing to find. Use them where not finding is part of
+     * the normal flow (such as a good that has no current upgrade), since creating an exception
+     * costs a stack trace.
+     */
+
+    /**
+     * Retrieves a single <code>VirtualItem</code> that resides in the metadata.
+     *
+     * @param itemId the itemId of the required <code>VirtualItem</code>, may be null or empty
+     * @return virtual item for the given <code>itemId</code>, or null if there's none
+     */
+    public static VirtualItem findVirtualItem(String itemId) {
+        return TextUtils.isEmpty(itemId) ? null : catalog().getVirtualItem(itemId);
+    }
+
+    /**
+     * Retrieves a single <code>VirtualItem</code> of the given type that resides in the metadata.
+     *
+     * @param itemId the itemId of the required <code>VirtualItem</code>, may be null or empty
+     * @param type the class the item is expected to be of
+     * @return virtual item for the given <code>itemId</code>, or null if there's none or it's
+     * not of the given type
+     */
+    public static <T extends VirtualItem> T findVirtualItem(String itemId, Class<T> type) {
+        VirtualItem item = findVirtualItem(itemId);
+        return type.isInstance(item) ? type.cast(item) : null;
+    }
+
+    /**
+     * Retrieves a single <code>PurchasableVirtualItem</code> that resides in the metadata, by the
+     * product id of its <code>PurchaseWithMarket</code>.
+     *
+     * @param productId the product id of the purchasable item to be fetched
+     * @return <code>PurchasableVirtualItem</code>, or null if there's none
+     */
+    public static PurchasableVirtualItem findPurchasableItem(String productId) {
+        return TextUtils.isEmpty(productId) ? null : catalog().getPurchasableItem(productId);
+    }
+
+    /**
+     * Retrieves the <code>VirtualCategory</code> that the virtual good with the given
+     * <code>goodItemId</code> belongs to.
+     *
+     * @param goodItemId the id of the virtual good whose category is to be fetched
+     * @return the virtual category of the good, or null if it doesn't belong to any
+     */
+    public static VirtualCategory findCategory(String goodItemId) {
+        return TextUtils.isEmpty(goodItemId) ? null : catalog().getCategory(goodItemId);
+    }
+
     /**
      * Retrieves the first <code>UpgradeVG</code> for the given <code>goodItemId</code>.
      *
@@ -260,15 +485,8 @@ public class StoreInfo {
      * null if it has no upgrades.
      */
     public static UpgradeVG getGoodFirstUpgrade(String goodItemId) {
-        List<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId);
-        if (upgrades != null) {
-            for (UpgradeVG upgradeVG : upgrades) {
-                if (TextUtils.isEmpty(upgradeVG.getPrevItemId())) {
-                    return upgradeVG;
-                }
-            }
-        }
-        return null;
+        UpgradeVG[] chain = catalog().getGoodUpgradeChain(goodItemId);
+        return chain != null ? chain[0] : null;
     }
 
     /**
@@ -280,15 +498,33 @@ public class StoreInfo {
      * if there are no upgrades.
      */
     public static UpgradeVG getGoodLastUpgrade(String goodItemId) {
-        List<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId);
-        if (upgrades != null) {
-            for (UpgradeVG upgradeVG : upgrades) {
-                if (TextUtils.isEmpty(upgradeVG.getNextItemId())) {
-                    return upgradeVG;
-                }
-            }
-        }
-        return null;
+        UpgradeVG[] chain = catalog().getGoodUpgradeChain(goodItemId);
+        return chain != null ? chain[chain.length - 1] : null;
+    }
+
+    /**
+     * Retrieves the <code>UpgradeVG</code> of the given level for the given
+     * <code>goodItemId</code>.
+     *
+     * @param goodItemId The item id of the <code>VirtualGood</code> whose upgrade we are looking
+     *                   for.
+     * @param level the level of the upgrade, where the first upgrade is level 1
+     * @return The upgrade of the given level, or null if the good has no such upgrade.
+     */
+    public static UpgradeVG getGoodUpgrade(String goodItemId, int level) {
+        UpgradeVG[] chain = catalog().getGoodUpgradeChain(goodItemId);
+        return chain != null && level >= 1 && level <= chain.length ? chain[level - 1] : null;
+    }
+
+    /**
+     * Retrieves the level of the given <code>UpgradeVG</code> in the upgrade series of its good,
+     * where the first upgrade is level 1.
+     *
+     * @param upgradeVG the upgrade whose level is to be fetched
+     * @return the level of the given upgrade, or 0 if it's not part of its good's series
+     */
+    public static int getUpgradeLevel(UpgradeVG upgradeVG) {
+        return catalog().getUpgradeLevel(upgradeVG.getOrdinal());
     }
 
     /**
@@ -300,34 +536,171 @@ public class StoreInfo {
      * @return list of all UpgradeVGs for the virtual good with the given <code>goodItemId</code>
      */
     public static List<UpgradeVG> getGoodUpgrades(String goodItemId) {
-        if (mGoodsUpgrades == null) {
-            return new LinkedList<UpgradeVG>();
-        }
-        return mGoodsUpgrades.get(goodItemId);
+        return catalog().getGoodUpgrades(goodItemId);
+    }
+
+    /**
+     * Retrieves the position of the virtual currency, currency pack or good with the given
+     * <code>itemId</code> in the list it belongs to ({@link #getCurrencies()},
+     * {@link #getCurrencyPacks()} or {@link #getGoods()}).
+     *
+     * @param itemId the itemId of the item whose position is to be fetched
+     * @return the position of the item in its list, or -1 if it's not in any of them
+     */
+    public static int getItemPosition(String itemId) {
+        return catalog().getPosition(itemId);
     }
 
+    /*
+     * The lists below are read-only, random access snapshots: get(position) is O(1). They are
+     * never changed after they are returned, even when the metadata is replaced, so they can be
+     * iterated without copying or locking.
+     */
+
     public static List<VirtualCurrency> getCurrencies() {
-        return mCurrencies;
+        return catalog().getCurrencies();
     }
 
     public static List<VirtualCurrencyPack> getCurrencyPacks() {
-        return mCurrencyPacks;
+        return catalog().getCurrencyPacks();
     }
 
     public static List<VirtualGood> getGoods() {
-        return mGoods;
+        return catalog().getGoods();
     }
 
     public static List<VirtualCategory> getCategories() {
-        return mCategories;
+        return catalog().getCategories();
     }
 
     public static List<String> getAllProductIds() {
-        return new ArrayList<String>(mPurchasableItems.keySet());
+        return catalog().getAllProductIds();
+    }
+
+    /**
+     * Retrieves all the virtual goods of the given class, including its subclasses, in the order
+     * of {@link #getGoods()}. For example, <code>getGoods(LifetimeVG.class)</code> also lists the
+     * <code>EquippableVG</code>s and <code>UpgradeVG</code>s.
+     *
+     * @param goodClass the class of the goods to fetch
+     * @return the goods of the given class, or an empty list if there are none
+     */
+    public static <T extends VirtualGood> List<T> getGoods(Class<T> goodClass) {
+        return catalog().getGoods(goodClass);
+    }
+
+    /**
+     * Retrieves all the currency packs and virtual goods that are bought with the given purchase
+     * type, e.g. <code>PurchaseWithMarket.class</code>. Packs are listed before goods.
+     *
+     * @param purchaseType the class of the purchase type
+     * @return the items bought with the given purchase type, or an empty list if there are none
+     */
+    public static List<PurchasableVirtualItem> getPurchasableItems(
+            Class<? extends PurchaseType> purchaseType) {
+        return catalog().getPurchasableItems(purchaseType);
+    }
+
+    /**
+     * Retrieves all the currency packs and virtual goods that are bought with the virtual item
+     * (usually a currency) with the given <code>itemId</code>.
+     *
+     * @param itemId the itemId of the item the prices are in
+     * @return the items priced in the given item, or an empty list if there are none
+     */
+    public static List<PurchasableVirtualItem> getItemsPricedIn(String itemId) {
+        return catalog().getItemsPricedIn(itemId);
+    }
+
+    /**
+     * Retrieves the virtual goods of the given category, in the category's order.
+     *
+     * @param category the category whose goods are to be fetched
+     * @return the goods of the given category, or an empty list if it's not in the store
+     */
+    public static List<VirtualGood> getCategoryGoods(VirtualCategory category) {
+        return catalog().getCategoryGoods(category);
+    }
+
+    /**
+     * Retrieves the virtual goods that are bought in the market as subscriptions.
+     *
+     * @return the subscription goods, or an empty list if there are none
+     */
+    public static List<VirtualGood> getSubscriptions() {
+        return catalog().getSubscriptions();
+    }
+
+    /**
+     * Retrieves the itemIds of all the currencies. Unlike {@link #getCurrencies()}, this never
+     * creates the items of a lazy catalog (see {@link StoreConfig#lazyCatalog}).
+     */
+    static List<String> getCurrencyItemIds() {
+        return catalog().getCurrencyItemIds();
+    }
+
+    /**
+     * Retrieves the itemIds of all the goods. Unlike {@link #getGoods()}, this never creates the
+     * items of a lazy catalog (see {@link StoreConfig#lazyCatalog}).
+     */
+    static List<String> getGoodItemIds() {
+        return catalog().getGoodItemIds();
+    }
+
+    /**
+     * Retrieves the ordinals of all the currencies. The returned set is the catalog's own and
+     * must not be changed.
+     */
+    static BitSet getCurrencyOrdinals() {
+        return catalog().getCurrencyOrdinals();
+    }
+
+    /**
+     * Retrieves the ordinals of all the goods. The returned set is the catalog's own and must not
+     * be changed.
+     */
+    static BitSet getGoodOrdinals() {
+        return catalog().getGoodOrdinals();
+    }
+
+    /**
+     * Retrieves the ordinals of the goods that have upgrades. The returned set is the catalog's
+     * own and must not be changed.
+     */
+    static BitSet getUpgradeableGoodOrdinals() {
+        return catalog().getUpgradeableGoodOrdinals();
+    }
+
+    /**
+     * Retrieves the level of the <code>UpgradeVG</code> with the given ordinal, without creating
+     * it. See {@link #getUpgradeLevel(UpgradeVG)}.
+     */
+    static int getUpgradeLevel(int upgradeOrdinal) {
+        return catalog().getUpgradeLevel(upgradeOrdinal);
     }
 
 
     /** Private functions **/
+
+    /**
+     * Loads the metadata the way {@link #setStoreAssets(IStoreAssets)} does.
+     *
+     * @throws IllegalArgumentException if the given assets are invalid
+     */
+    private static void loadStoreAssets(IStoreAssets storeAssets) {
+        validateStoreAssets(storeAssets);
+        mCurrentAssetsVersion = storeAssets.getVersion();
+
+        //checkAndResetMetadata();
+
+        // we always initialize from the database, unless this is the first time the game is
+        // loaded - in that case we initialize with setStoreAssets.
+        // BUT we don't need to load from DB if metadata was reset.
+        if (!loadFromDB()) {
+            initializeWithStoreAssets(storeAssets);
+        }
+        prefetchInventory();
+    }
     /**
      * Checks if given storeAssets is correct IStoreAssets instance
      *
@@ -373,125 +746,57 @@ public class StoreInfo {
     }
 
     /**
-     * Transforms given jsonObject to StoreInfo
+     * Transforms the given metadata JSON to StoreInfo. The JSON is read one item at a time (see
+     * {@link StoreJSONReader#read(String)}), so it's never held in memory as a whole JSON tree.
      *
-     * @param jsonObject
+     * @param json the metadata JSON
      * @throws JSONException
      */
-    private static void fromJSONObject(JSONObject jsonObject) throws JSONException {
-
-        mVirtualItems = new HashMap<String, VirtualItem>();
-        mPurchasableItems = new HashMap<String, PurchasableVirtualItem>();
-        mGoodsCategories = new HashMap<String, VirtualCategory>();
-        mGoodsUpgrades = new HashMap<String, List<UpgradeVG>>();
-        mCurrencyPacks = new LinkedList<VirtualCurrencyPack>();
-        mGoods = new LinkedList<VirtualGood>();
-        mCategories = new LinkedList<VirtualCategory>();
-        mCurrencies = new LinkedList<VirtualCurrency>();
-
-        if (jsonObject.has(StoreJSONConsts.STORE_CURRENCIES)) {
-            JSONArray virtualCurrencies = jsonObject.getJSONArray(StoreJSONConsts.STORE_CURRENCIES);
-            for (int i = 0; i < virtualCurrencies.length(); i++) {
-                JSONObject o = virtualCurrencies.getJSONObject(i);
-                VirtualCurrency c = new VirtualCurrency(o);
-                mCurrencies.add(c);
-
-                mVirtualItems.put(c.getItemId(), c);
-            }
-        }
-
-        if (jsonObject.has(StoreJSONConsts.STORE_CURRENCYPACKS)) {
-            JSONArray currencyPacks = jsonObject.getJSONArray(StoreJSONConsts.STORE_CURRENCYPACKS);
-            for (int i = 0; i < currencyPacks.length(); i++) {
-                JSONObject o = currencyPacks.getJSONObject(i);
-                VirtualCurrencyPack pack = new VirtualCurrencyPack(o);
-                mCurrencyPacks.add(pack);
-
-                mVirtualItems.put(pack.getItemId(), pack);
+    private static void fromJSON(String json) throws JSONException {
+        load(StoreJSONReader.read(json, StoreConfig.lazyCatalog));
+    }
 
-                PurchaseType purchaseType = pack.getPurchaseType();
-                if (purchaseType instanceof PurchaseWithMarket) {
-                    mPurchasableItems.put(((PurchaseWithMarket) purchaseType)
-                            .getMarketItem().getProductId(), pack);
-                }
-            }
+    /**
+     * Loads the binary form of the metadata (see {@link StoreBinaryFormat}) from the database,
+     * if it's there.
+     *
+     * @return success
+     */
+    private static boolean loadBinaryFromDB() {
+        String key = keyMetaStoreInfoBinary();
+        String val = KeyValueStorage.getValue(key);
+        if (TextUtils.isEmpty(val)) {
+            return false;
         }
 
-        // The order in which VirtualGoods are created matters!
-        // For example: VGU and VGP depend on other VGs
-        if (jsonObject.has(StoreJSONConsts.STORE_GOODS)) {
-            JSONObject virtualGoods = jsonObject.getJSONObject(StoreJSONConsts.STORE_GOODS);
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_SU)) {
-                JSONArray suGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_SU);
-                for (int i = 0; i < suGoods.length(); i++) {
-                    JSONObject o = suGoods.getJSONObject(i);
-                    SingleUseVG g = new SingleUseVG(o);
-                    addVG(g);
-                }
-            }
-
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_LT)) {
-                JSONArray ltGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_LT);
-                for (int i = 0; i < ltGoods.length(); i++) {
-                    JSONObject o = ltGoods.getJSONObject(i);
-                    LifetimeVG g = new LifetimeVG(o);
-                    addVG(g);
-                }
-            }
-
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_EQ)) {
-                JSONArray eqGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_EQ);
-                for (int i = 0; i < eqGoods.length(); i++) {
-                    JSONObject o = eqGoods.getJSONObject(i);
-                    EquippableVG g = new EquippableVG(o);
-                    addVG(g);
-                }
-            }
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_PA)) {
-                JSONArray paGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_PA);
-                for (int i = 0; i < paGoods.length(); i++) {
-                    JSONObject o = paGoods.getJSONObject(i);
-                    SingleUsePackVG g = new SingleUsePackVG(o);
-                    addVG(g);
-                }
-            }
-
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_UP)) {
-                JSONArray upGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_UP);
-                for (int i = 0; i < upGoods.length(); i++) {
-                    JSONObject o = upGoods.getJSONObject(i);
-                    UpgradeVG g = new UpgradeVG(o);
-                    addVG(g);
-
-                    List<UpgradeVG> upgrades = mGoodsUpgrades.get(g.getGoodItemId());
-                    if (upgrades == null) {
-                        upgrades = new ArrayList<UpgradeVG>();
-                        mGoodsUpgrades.put(g.getGoodItemId(), upgrades);
-                    }
-                    upgrades.add(g);
-                }
-            }
-
+        StoreCatalog catalog;
+        try {
+            catalog = StoreBinaryFormat.read(Base64.decode(val, Base64.NO_WRAP));
+        } catch (IOException e) {
+            catalog = null;
+            SoomlaUtils.LogError(TAG, "Can't read the binary metadata: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            catalog = null;
+            SoomlaUtils.LogError(TAG, "Can't decode the binary metadata: " + e.getMessage());
         }
-
-        // Categories depend on virtual goods. That's why the have to be initialized after!
-        if (jsonObject.has(StoreJSONConsts.STORE_CATEGORIES)) {
-            JSONArray virtualCategories = jsonObject.getJSONArray(StoreJSONConsts.STORE_CATEGORIES);
-            for (int i = 0; i < virtualCategories.length(); i++) {
-                JSONObject o = virtualCategories.getJSONObject(i);
-                VirtualCategory category = new VirtualCategory(o);
-                mCategories.add(category);
-                for (String goodItemId : category.getGoodsItemIds()) {
-                    mGoodsCategories.put(goodItemId, category);
-                }
-            }
+        if (catalog == null) {
+            KeyValueStorage.deleteKeyValue(key);
+            return false;
         }
 
+        SoomlaUtils.LogDebug(TAG, "the metadata-economy was loaded from its binary form.");
+        load(catalog);
+        return true;
+    }
+
+    /**
+     * Makes the given catalog the store's metadata, right after it was loaded.
+     *
+     * @param catalog the loaded metadata
+     */
+    private static void load(StoreCatalog catalog) {
+        publish(catalog);
+
         // This is only for NonConsumable balance migration to LifetimeVGs.
         // Remove this code when no longer needed.
         if (mNonConsumableMigrationNeeded) {
@@ -501,94 +806,74 @@ public class StoreInfo {
     }
 
     /**
-     * Adds the given virtual good to <code>StoreInfo</code>'s <code>mGoods</code>,
-     * <code>mVirtualItems</code>, and if the good has purchase type <code>PurchaseWithMarket</code>
-     * then it is also added to <code>mPurchasableItems</code>.
+     * Converts <code>StoreInfo</code> to a <code>JSONObject</code>.
      *
-     * @param g virtual good to be added
+     * @return a <code>JSONObject</code> representation of <code>StoreInfo</code>.
      */
-    private static void addVG(VirtualGood g) {
-        mGoods.add(g);
-
-        mVirtualItems.put(g.getItemId(), g);
+    public static JSONObject toJSONObject() {
+        return catalog().toJSONObject();
+    }
 
-        PurchaseType purchaseType = g.getPurchaseType();
-        if (purchaseType instanceof PurchaseWithMarket) {
-            mPurchasableItems.put(((PurchaseWithMarket) purchaseType)
-                    .getMarketItem().getProductId(), g);
-        }
+    /**
+     * Saves the store's metadata in the database as JSON, or in its binary form (see
+     * {@link StoreConfig#binaryMetadata} and {@link #setStoreAssets(int, String)}).
+     */
+    public static void save() {
+        saveMetadata(isBinaryMetadata());
     }
 
     /**
-     * Converts <code>StoreInfo</code> to a <code>JSONObject</code>.
+     * Saves the store's metadata in the database.
      *
-     * @return a <code>JSONObject</code> representation of <code>StoreInfo</code>.
+     * @param binary true to save it in its binary form, false to save it as JSON
      */
-    public static JSONObject toJSONObject() {
-
-        JSONArray currencies = new JSONArray();
-        for (VirtualCurrency c : mCurrencies) {
-            currencies.put(c.toJSONObject());
-        }
-
-        JSONArray currencyPacks = new JSONArray();
-        for (VirtualCurrencyPack pack : mCurrencyPacks) {
-            currencyPacks.put(pack.toJSONObject());
-        }
-
-        JSONObject goods = new JSONObject();
-        JSONArray suGoods = new JSONArray();
-        JSONArray ltGoods = new JSONArray();
-        JSONArray eqGoods = new JSONArray();
-        JSONArray paGoods = new JSONArray();
-        JSONArray upGoods = new JSONArray();
-        for (VirtualGood good : mGoods) {
-            if (good instanceof SingleUseVG) {
-                suGoods.put(good.toJSONObject());
-            } else if (good instanceof UpgradeVG) {
-                upGoods.put(good.toJSONObject());
-            } else if (good instanceof EquippableVG) {
-                eqGoods.put(good.toJSONObject());
-            } else if (good instanceof SingleUsePackVG) {
-                paGoods.put(good.toJSONObject());
-            } else if (good instanceof LifetimeVG) {
-                ltGoods.put(good.toJSONObject());
+    private static void saveMetadata(boolean binary) {
+        awaitLoaded();
+        synchronized (mCatalogLock) {
+            if (!binary || !saveBinary()) {
+                String store_json = mCatalog.toJSONObject().toString();
+                SoomlaUtils.LogDebug(TAG, "saving StoreInfo to DB. json is: " + store_json);
+                String key = keyMetaStoreInfo();
+                KeyValueStorage.setValue(key, store_json);
+                KeyValueStorage.deleteKeyValue(keyMetaStoreInfoBinary());
             }
-        }
-
-
-        JSONArray categories = new JSONArray();
-        for (VirtualCategory cat : mCategories) {
-            categories.put(cat.toJSONObject());
-        }
 
-        JSONObject jsonObject = new JSONObject();
-        try {
-            goods.put(StoreJSONConsts.STORE_GOODS_SU, suGoods);
-            goods.put(StoreJSONConsts.STORE_GOODS_LT, ltGoods);
-            goods.put(StoreJSONConsts.STORE_GOODS_EQ, eqGoods);
-            goods.put(StoreJSONConsts.STORE_GOODS_PA, paGoods);
-            goods.put(StoreJSONConsts.STORE_GOODS_UP, upGoods);
-
-            jsonObject.put(StoreJSONConsts.STORE_CATEGORIES, categories);
-            jsonObject.put(StoreJSONConsts.STORE_CURRENCIES, currencies);
-            jsonObject.put(StoreJSONConsts.STORE_GOODS, goods);
-            jsonObject.put(StoreJSONConsts.STORE_CURRENCYPACKS, currencyPacks);
-        } catch (JSONException e) {
-            SoomlaUtils.LogError(TAG, "An error occurred while generating JSON object.");
+            // the full metadata includes all the item records, so they can go
+            deleteItemRecords();
         }
+    }
 
-        return jsonObject;
+    /**
+     * Checks if the store's metadata is kept in its binary form: when
+     * {@link StoreConfig#binaryMetadata} is on, or when it was built from a fingerprinted JSON
+     * (see {@link #setStoreAssets(int, String)}).
+     */
+    private static boolean isBinaryMetadata() {
+        return StoreConfig.binaryMetadata
+                || KeyValueStorage.getValue(keyMetaFingerprint()) != null;
     }
 
     /**
-     * Saves the store's metadata in the database as JSON.
+     * Saves the store's metadata in the database in its binary form, instead of the JSON.
+     *
+     * @return success
      */
-    public static void save() {
-        String store_json = toJSONObject().toString();
-        SoomlaUtils.LogDebug(TAG, "saving StoreInfo to DB. json is: " + store_json);
-        String key = keyMetaStoreInfo();
-        KeyValueStorage.setValue(key, store_json);
+    private static boolean saveBinary() {
+        byte[] bytes;
+        try {
+            bytes = StoreBinaryFormat.write(mCatalog);
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Can't save the metadata in binary form. Saving it as JSON: "
+                    + e.getMessage());
+            return false;
+        }
+
+        SoomlaUtils.LogDebug(TAG, "saving StoreInfo to DB in binary form (" + bytes.length
+                + " bytes).");
+        KeyValueStorage.setValue(keyMetaStoreInfoBinary(),
+                Base64.encodeToString(bytes, Base64.NO_WRAP));
+        KeyValueStorage.deleteKeyValue(keyMetaStoreInfo());
+        return true;
     }
 
     /**
@@ -606,10 +891,10 @@ public class StoreInfo {
      * @param saveToDB should the store's metadata be saved.
      */
     public static void save(VirtualItem virtualItem, boolean saveToDB) {
-        replaceVirtualItem(virtualItem);
-
         if (saveToDB) {
-            save();
+            save(Collections.singletonList(virtualItem), true);
+        } else {
+            replaceVirtualItem(virtualItem);
         }
     }
 
@@ -634,12 +919,15 @@ public class StoreInfo {
             return;
         }
 
-        for (VirtualItem virtualItem : virtualItems) {
-            replaceVirtualItem(virtualItem);
+        if (!saveToDB) {
+            replaceVirtualItems(virtualItems);
+            return;
         }
 
-        if (saveToDB) {
-            save();
+        awaitLoaded();
+        synchronized (mCatalogLock) {
+            replaceVirtualItems(virtualItems);
+            saveItemRecords(virtualItems);
         }
     }
 
@@ -647,66 +935,29 @@ public class StoreInfo {
      * Replaces an old virtual item with a new one by doing the following:
      * 1. Determines the type of the given virtual item.
      * 2. Looks for the given virtual item in the relevant list, according to its type.
-     * 3. If found, removes it.
-     * 4. Adds the given virtual item.
+     * 3. If found, puts the given virtual item in its position.
+     * 4. Otherwise, adds the given virtual item at the end of the list.
+     *
+     * The catalog is immutable, so each call builds a new one with all of its indexes: it costs
+     * O(n) in the number of items, however few items are replaced. To replace several items, use
+     * {@link #save(List, boolean)}, which builds the new catalog only once for all of them.
      *
      * @param virtualItem the virtual item that replaces the old one if exists.
      */
     public static void replaceVirtualItem(VirtualItem virtualItem) {
-        mVirtualItems.put(virtualItem.getItemId(), virtualItem);
-
-        if (virtualItem instanceof VirtualCurrency) {
-            for (int i = 0; i < mCurrencies.size(); i++) {
-                if (mCurrencies.get(i).getItemId().equals(virtualItem.getItemId())) {
-                    mCurrencies.remove(i);
-                    break;
-                }
-            }
-            mCurrencies.add((VirtualCurrency) virtualItem);
-        }
-
-        if (virtualItem instanceof VirtualCurrencyPack) {
-            VirtualCurrencyPack vcp = (VirtualCurrencyPack) virtualItem;
-            PurchaseType purchaseType = vcp.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vcp);
-            }
-
-            for (int i = 0; i < mCurrencyPacks.size(); i++) {
-                if (mCurrencyPacks.get(i).getItemId().equals(vcp.getItemId())) {
-                    mCurrencyPacks.remove(i);
-                    break;
-                }
-            }
-            mCurrencyPacks.add(vcp);
-        }
-
-        if (virtualItem instanceof VirtualGood) {
-            VirtualGood vg = (VirtualGood) virtualItem;
-
-            if (vg instanceof UpgradeVG) {
-                List<UpgradeVG> upgrades = mGoodsUpgrades.get(((UpgradeVG) vg).getGoodItemId());
-                if (upgrades == null) {
-                    upgrades = new ArrayList<UpgradeVG>();
-                    mGoodsUpgrades.put(((UpgradeVG) vg).getGoodItemId(), upgrades);
-                }
-                upgrades.add((UpgradeVG) vg);
-            }
-
-            PurchaseType purchaseType = vg.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vg);
-            }
+        replaceVirtualItems(Collections.singletonList(virtualItem));
+    }
 
-            for (int i = 0; i < mGoods.size(); i++) {
-                if (mGoods.get(i).getItemId().equals(vg.getItemId())) {
-                    mGoods.remove(i);
-                    break;
-                }
-            }
-            mGoods.add(vg);
+    /**
+     * Replaces old virtual items with new ones, the same way as
+     * {@link #replaceVirtualItem(VirtualItem)}, and publishes the result as one change.
+     *
+     * @param virtualItems the virtual items that replace the old ones if exist.
+     */
+    private static void replaceVirtualItems(List<? extends VirtualItem> virtualItems) {
+        awaitLoaded();
+        synchronized (mCatalogLock) {
+            publish(mCatalog.replace(virtualItems));
         }
     }
 
@@ -719,63 +970,196 @@ public class StoreInfo {
     private static void initializeWithStoreAssets(IStoreAssets storeAssets) {
         // fall-back here if the json doesn't exist,
         // we load the store from the given {@link IStoreAssets}.
-        mCurrencies = new LinkedList<VirtualCurrency>(Arrays.asList(storeAssets.getCurrencies()));
-        mCurrencyPacks = new LinkedList<VirtualCurrencyPack>(Arrays.asList(storeAssets.getCurrencyPacks()));
-        mGoods = new LinkedList<VirtualGood>(Arrays.asList(storeAssets.getGoods()));
-        mCategories = new LinkedList<VirtualCategory>(Arrays.asList(storeAssets.getCategories()));
+        publish(new StoreCatalog(Arrays.asList(storeAssets.getCurrencies()),
+                Arrays.asList(storeAssets.getCurrencyPacks()),
+                Arrays.asList(storeAssets.getGoods()),
+                Arrays.asList(storeAssets.getCategories())));
 
-        mVirtualItems = new HashMap<String, VirtualItem>();
-        mPurchasableItems = new HashMap<String, PurchasableVirtualItem>();
-        mGoodsCategories = new HashMap<String, VirtualCategory>();
-        mGoodsUpgrades = new HashMap<String, List<UpgradeVG>>();
+        // This is only for NonConsumable balance migration to LifetimeVGs.
+        // Remove this code when no longer needed.
+        if (mNonConsumableMigrationNeeded) {
+            SoomlaUtils.LogDebug(TAG, "NonConsumables balance migration is required. Doing it now.");
+            nonConsBalancesToLTVGs();
+        }
+
+        save();
+    }
 
-        for (VirtualCurrency vi : mCurrencies) {
-            mVirtualItems.put(vi.getItemId(), vi);
+    /**
+     * Saves the given items as item records: each item is written under its own key, so saving a
+     * few items costs writes proportional to those items and not to the whole metadata. When
+     * there are more than {@link #MAX_ITEM_RECORDS} records, the full metadata is saved instead
+     * and the records are deleted.
+     *
+     * @param virtualItems the items to save
+     */
+    private static void saveItemRecords(List<? extends VirtualItem> virtualItems) {
+        List<String> recordItemIds = getItemRecordIds();
+        boolean indexChanged = false;
+        for (VirtualItem virtualItem : virtualItems) {
+            if (!recordItemIds.contains(virtualItem.getItemId())) {
+                recordItemIds.add(virtualItem.getItemId());
+                indexChanged = true;
+            }
         }
 
-        for (VirtualCurrencyPack vi : mCurrencyPacks) {
-            mVirtualItems.put(vi.getItemId(), vi);
+        if (recordItemIds.size() > MAX_ITEM_RECORDS) {
+            SoomlaUtils.LogDebug(TAG, "too many item records. compacting them into the metadata.");
+            save();
+            return;
+        }
 
-            PurchaseType purchaseType = vi.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vi);
+        for (VirtualItem virtualItem : virtualItems) {
+            JSONObject record = new JSONObject();
+            try {
+                record.put(StoreJSONReader.typeOf(virtualItem), virtualItem.toJSONObject());
+            } catch (JSONException e) {
+                SoomlaUtils.LogError(TAG, "An error occurred while generating JSON object.");
+                save();
+                return;
             }
+            KeyValueStorage.setValue(keyMetaItemRecord(virtualItem.getItemId()), record.toString());
         }
 
-        for (VirtualGood vi : mGoods) {
-            mVirtualItems.put(vi.getItemId(), vi);
+        // the index is written last, so it never lists a record that wasn't written
+        if (indexChanged) {
+            KeyValueStorage.setValue(keyMetaItemRecords(),
+                    new JSONArray(recordItemIds).toString());
+        }
+    }
 
-            if (vi instanceof UpgradeVG) {
-                List<UpgradeVG> upgrades = mGoodsUpgrades.get(((UpgradeVG) vi).getGoodItemId());
-                if (upgrades == null) {
-                    upgrades = new ArrayList<UpgradeVG>();
-                    mGoodsUpgrades.put(((UpgradeVG) vi).getGoodItemId(), upgrades);
-                }
-                upgrades.add((UpgradeVG) vi);
+    /**
+     * Applies the item records saved by {@link #saveItemRecords(List)} on top of the metadata
+     * that was just loaded.
+     */
+    private static void loadItemRecords() {
+        List<VirtualItem> virtualItems = new ArrayList<VirtualItem>();
+        for (String itemId : getItemRecordIds()) {
+            String val = KeyValueStorage.getValue(keyMetaItemRecord(itemId));
+            if (TextUtils.isEmpty(val)) {
+                continue;
             }
 
-            PurchaseType purchaseType = vi.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vi);
+            try {
+                JSONObject record = new JSONObject(val);
+                Iterator<?> types = record.keys();
+                String type = types.hasNext() ? (String) types.next() : "";
+                VirtualItem virtualItem = StoreJSONReader.newItem(type, record.getJSONObject(type));
+                if (virtualItem != null) {
+                    virtualItems.add(virtualItem);
+                }
+            } catch (JSONException e) {
+                // the metadata still has the item as it was before the record was saved
+                SoomlaUtils.LogError(TAG, "Can't parse the item record of " + itemId + ": " + val);
             }
         }
 
-        for (VirtualCategory category : mCategories) {
-            for (String goodItemId : category.getGoodsItemIds()) {
-                mGoodsCategories.put(goodItemId, category);
+        if (!virtualItems.isEmpty()) {
+            SoomlaUtils.LogDebug(TAG, "applying " + virtualItems.size() + " item records.");
+            replaceVirtualItems(virtualItems);
+        }
+    }
+
+    private static List<String> getItemRecordIds() {
+        List<String> itemIds = new ArrayList<String>();
+        String val = KeyValueStorage.getValue(keyMetaItemRecords());
+        if (TextUtils.isEmpty(val)) {
+            return itemIds;
+        }
+
+        try {
+            JSONArray array = new JSONArray(val);
+            for (int i = 0; i < array.length(); i++) {
+                itemIds.add(array.getString(i));
             }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Can't parse the item records index: " + val);
         }
+        return itemIds;
+    }
 
-        // This is only for NonConsumable balance migration to LifetimeVGs.
-        // Remove this code when no longer needed.
-        if (mNonConsumableMigrationNeeded) {
-            SoomlaUtils.LogDebug(TAG, "NonConsumables balance migration is required. Doing it now.");
-            nonConsBalancesToLTVGs();
+    private static void deleteItemRecords() {
+        List<String> itemIds = getItemRecordIds();
+        if (itemIds.isEmpty()) {
+            return;
         }
 
-        save();
+        // the index goes first, so a record is never applied without the index listing it
+        KeyValueStorage.deleteKeyValue(keyMetaItemRecords());
+        for (String itemId : itemIds) {
+            KeyValueStorage.deleteKeyValue(keyMetaItemRecord(itemId));
+        }
+    }
+
+    /**
+     * Publishes the given snapshot as the store's metadata. The items are linked to each other
+     * first (see {@link StoreCatalog#link()}) and the storage keys of currencies and goods are
+     * built, so that neither using the items nor balance reads and writes need any lookups.
+     *
+     * @param catalog the new metadata
+     */
+    private static void publish(StoreCatalog catalog) {
+        catalog.link();
+        for (String itemId : catalog.getCurrencyItemIds()) {
+            StorageManager.getVirtualCurrencyStorage().prepareKeys(itemId);
+        }
+        for (String itemId : catalog.getGoodItemIds()) {
+            StorageManager.getVirtualGoodsStorage().prepareKeys(itemId);
+        }
+        mCatalog = catalog;
+    }
+
+    /**
+     * Retrieves the store's metadata, waiting for it if it's being loaded by
+     * {@link #setStoreAssetsAsync(IStoreAssets, Executor, StoreAssetsLoadListener)}.
+     */
+    private static StoreCatalog catalog() {
+        awaitLoaded();
+        return mCatalog;
+    }
+
+    /**
+     * Waits for the metadata to be loaded, if it's being loaded on another thread. Waiting is
+     * done outside of {@link #mCatalogLock}, which the loading thread needs.
+     */
+    private static void awaitLoaded() {
+        CountDownLatch loading = mLoading;
+        if (loading == null || Thread.currentThread() == mLoadingThread) {
+            return;
+        }
+
+        // an empty or old catalog would look like a store without items, so never go on without it
+        boolean interrupted = false;
+        long waitedMs = 0;
+        while (true) {
+            try {
+                if (loading.await(LOAD_WAIT_WARNING_MS, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+                waitedMs += LOAD_WAIT_WARNING_MS;
+                SoomlaUtils.LogError(TAG, "The metadata wasn't loaded after " + waitedMs
+                        + " ms. Still waiting for it.");
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Prefetches the inventory of the catalog that was just set. The loading thread of
+     * {@link #setStoreAssetsAsync(IStoreAssets, Executor, Runnable)} prefetches right away, so the
+     * inventory is in memory by the time loading is done. Any other thread (usually the UI
+     * thread) leaves it to the storage's background thread.
+     */
+    private static void prefetchInventory() {
+        if (Thread.currentThread() == mLoadingThread) {
+            StorageManager.prefetch();
+        } else {
+            StorageManager.prefetchInBackground();
+        }
     }
 
     private static void checkAndResetMetadata() {
@@ -803,8 +1187,34 @@ public class StoreInfo {
             edit.putInt("SA_VER_OLD", mCurrentAssetsVersion);
             edit.commit();
 
-            KeyValueStorage.deleteKeyValue(keyMetaStoreInfo());
+            deleteMetadata();
+        }
+    }
+
+    /**
+     * Deletes the store's metadata from the database, so it gets rebuilt from the store assets.
+     */
+    private static void deleteMetadata() {
+        KeyValueStorage.deleteKeyValue(keyMetaFingerprint());
+        KeyValueStorage.deleteKeyValue(keyMetaStoreInfo());
+        KeyValueStorage.deleteKeyValue(keyMetaStoreInfoBinary());
+        deleteItemRecords();
+    }
+
+    /**
+     * Computes a fingerprint of the given store assets JSON: its 64-bit FNV-1a hash, taken over
+     * the chars so that the JSON isn't copied into bytes first.
+     *
+     * @param json the store assets JSON
+     * @return the fingerprint, in hex
+     */
+    private static String fingerprintOf(String json) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < json.length(); i++) {
+            hash ^= json.charAt(i);
+            hash *= 0x100000001b3L;
         }
+        return Long.toHexString(hash);
     }
 
     /**
@@ -813,8 +1223,8 @@ public class StoreInfo {
      * We just need to set the balances of the lifetime items instead of the non-consumables.
      */
     private static void nonConsBalancesToLTVGs() {
-        for(VirtualGood good : mGoods) {
-            if ((good instanceof LifetimeVG) && good.getPurchaseType() instanceof PurchaseWithMarket) {
+        for(LifetimeVG good : mCatalog.getGoods(LifetimeVG.class)) {
+            if (good.getPurchaseType() instanceof PurchaseWithMarket) {
                 String keyNonConsExist = DB_NONCONSUMABLE_KEY_PREFIX + good.getItemId() + ".exists";
                 if (KeyValueStorage.getValue(keyNonConsExist) != null) {
                     good.give(1);
@@ -833,34 +1243,50 @@ public class StoreInfo {
         return "meta.storeinfo";
     }
 
-    private static final String TAG = "SOOMLA StoreInfo"; //used for Log messages
-    public static final String DB_NONCONSUMABLE_KEY_PREFIX = "nonconsumable.";
-
-    private static boolean mNonConsumableMigrationNeeded = false;
-
-    // convenient hash of virtual items
-    private static HashMap<String, VirtualItem> mVirtualItems;
+    private static String keyMetaStoreInfoBinary() {
+        return "meta.storeinfo.bin";
+    }
 
-    // convenient hash of purchasable virtual items
-    private static HashMap<String, PurchasableVirtualItem> mPurchasableItems;
+    private static String keyMetaFingerprint() {
+        return "meta.storeinfo.fingerprint";
+    }
 
-    // convenient hash of goods-categories
-    private static HashMap<String, VirtualCategory> mGoodsCategories;
+    private static String keyMetaItemRecords() {
+        return "meta.storeinfo.items";
+    }
 
-    // convenient hash of good-upgrades
-    private static HashMap<String, List<UpgradeVG>> mGoodsUpgrades;
+    private static String keyMetaItemRecord(String itemId) {
+        return "meta.storeinfo.item." + itemId;
+    }
 
-    // list of virtual currencies
-    private static List<VirtualCurrency> mCurrencies;
+    private static final String TAG = "SOOMLA StoreInfo"; //used for Log messages
+    public static final String DB_NONCONSUMABLE_KEY_PREFIX = "nonconsumable.";
 
-    // list of currency-packs
-    private static List<VirtualCurrencyPack> mCurrencyPacks;
+    // the number of item records kept before they're compacted into the full metadata
+    private static final int MAX_ITEM_RECORDS = 64;
 
-    // list of virtual goods
-    private static List<VirtualGood> mGoods;
+    private static boolean mNonConsumableMigrationNeeded = false;
 
-    // list of virtul categories
-    private static List<VirtualCategory> mCategories;
+    // the store's metadata. replaced as a whole, never changed in place.
+    private static volatile StoreCatalog mCatalog = StoreCatalog.EMPTY;
+    private static final Object mCatalogLock = new Object();
 
     private static int mCurrentAssetsVersion = 0;
+
+    /**
+     * How long a read of the metadata waits for it while it's loaded asynchronously before
+     * logging an error. The read then keeps waiting, logging again after each such period.
+     */
+    public static final long LOAD_WAIT_WARNING_MS = 3000;
+
+    // set while the metadata is loaded asynchronously, with the thread that loads it
+    private static volatile CountDownLatch mLoading;
+    private static volatile Thread mLoadingThread;
+
+    // ordinals of itemIds, see getOrdinal. ordinals are never reused or taken back.
+    private static final ConcurrentHashMap<String, Integer> mOrdinals =
+            new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] mOrdinalItemIds = new String[64];
+    private static int mOrdinalCount = 0;
+    private static final Object mOrdinalsLock = new Object();
 }
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.data.JSONConsts;
+import com.soomla.store.domain.VirtualCategory;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Indexes the store's metadata JSON (see {@link StoreCatalog#toJSONObject()}) into a
+ * {@link LazyStoreCatalog}, without parsing the items.
+ *
+ * The text is only scanned: each item is cut out as its own JSON text, and the few values the
+ * index needs (its itemId, and its productId if it's bought in the market) are the only values
+ * that get parsed. Everything else in the item is skipped over, so indexing costs a pass over the
+ * characters rather than building a JSON tree. Categories are parsed in full.
+ *
+ * The scanner accepts what <code>JSONTokener</code> accepts in the metadata: quoted and unquoted
+ * keys and strings, ':' or '=' after keys, and ',' or ';' between members.
+ */
+final class StoreJSONIndexer {
+
+    /**
+     * Indexes the given metadata JSON text.
+     *
+     * @param json the metadata JSON
+     * @return a lazy catalog of the metadata
+     * @throws JSONException if the given text is not a valid metadata JSON, or an item has no
+     *                       itemId
+     */
+    static LazyStoreCatalog index(String json) throws JSONException {
+        StoreJSONIndexer indexer = new StoreJSONIndexer(json);
+
+        int start = indexer.skipWhitespace(0);
+        for (int[] member : indexer.members(start)) {
+            String key = indexer.stringAt(member[0]);
+            if (StoreJSONConsts.STORE_GOODS.equals(key)) {
+                // the goods are an object of arrays, one array per good type
+                for (int[] goods : indexer.members(member[1])) {
+                    indexer.indexItems(indexer.stringAt(goods[0]), goods[1]);
+                }
+            } else {
+                indexer.indexItems(key, member[1]);
+            }
+        }
+
+        return new LazyStoreCatalog(indexer.mEntries, indexer.mCategories);
+    }
+
+
+    /** Private functions **/
+
+    private StoreJSONIndexer(String json) {
+        mJSON = json;
+    }
+
+    /**
+     * Indexes the items of the array of the given type, which starts at the given position.
+     * Values of unknown keys are skipped.
+     */
+    private void indexItems(String type, int start) throws JSONException {
+        boolean isCategories = StoreJSONConsts.STORE_CATEGORIES.equals(type);
+        if (!isCategories && !isItemType(type)) {
+            return;
+        }
+
+        List<LazyStoreCatalog.Entry> entries = new ArrayList<LazyStoreCatalog.Entry>();
+        if (charAt(start) != '[') {
+            throw syntaxError("'" + type + "' must be an array", start);
+        }
+        int i = skipWhitespace(start + 1);
+        while (charAt(i) != ']') {
+            if (charAt(i) != '{') {
+                throw syntaxError("The items of '" + type + "' must be objects", i);
+            }
+            int end = skipValue(i);
+            if (isCategories) {
+                mCategories.add(new VirtualCategory(new JSONObject(mJSON.substring(i, end))));
+            } else {
+                List<int[]> members = members(i);
+                entries.add(new LazyStoreCatalog.Entry(type, itemIdOf(i, members),
+                        productIdOf(members), mJSON.substring(i, end)));
+            }
+
+            i = skipWhitespace(end);
+            if (charAt(i) == ',') {
+                i = skipWhitespace(i + 1);
+            } else if (charAt(i) != ']') {
+                throw syntaxError("Expected a ',' or ']'", i);
+            }
+        }
+
+        if (!isCategories) {
+            mEntries.put(type, entries);
+        }
+    }
+
+    private String itemIdOf(int item, List<int[]> members) throws JSONException {
+        int itemId = member(members, JSONConsts.SOOM_ENTITY_ID);
+        if (itemId < 0) {
+            throw syntaxError("An item has no " + JSONConsts.SOOM_ENTITY_ID, item);
+        }
+        return stringAt(itemId);
+    }
+
+    /**
+     * Reads the productId of the purchasable item with the given members, the same way
+     * <code>PurchasableVirtualItem</code> and <code>MarketItem</code> do, without parsing the
+     * rest of the item.
+     *
+     * @return the productId, or null if the item isn't bought in the market
+     */
+    private String productIdOf(List<int[]> members) throws JSONException {
+        int purchasable = member(members, StoreJSONConsts.PURCHASABLE_ITEM);
+        if (purchasable < 0 || charAt(purchasable) != '{') {
+            return null;
+        }
+        List<int[]> purchasableMembers = members(purchasable);
+        int purchaseType = member(purchasableMembers, StoreJSONConsts.PURCHASE_TYPE);
+        if (purchaseType < 0
+                || !StoreJSONConsts.PURCHASE_TYPE_MARKET.equals(stringAt(purchaseType))) {
+            return null;
+        }
+
+        int marketItem = member(purchasableMembers, StoreJSONConsts.PURCHASE_MARKET_ITEM);
+        if (marketItem < 0 || charAt(marketItem) != '{') {
+            throw syntaxError("A market item is missing", purchasable);
+        }
+        List<int[]> marketItemMembers = members(marketItem);
+        int productId = member(marketItemMembers, StoreJSONConsts.MARKETITEM_ANDROID_ID);
+        if (productId < 0) {
+            productId = member(marketItemMembers, StoreJSONConsts.MARKETITEM_PRODUCT_ID);
+        }
+        if (productId < 0) {
+            throw syntaxError("A market item has no productId", marketItem);
+        }
+        return stringAt(productId);
+    }
+
+    /**
+     * Finds the value of the given key among the given members of an object.
+     *
+     * @return the position of the value, or -1 if the object doesn't have the key
+     */
+    private int member(List<int[]> members, String key) throws JSONException {
+        for (int[] member : members) {
+            if (key.equals(stringAt(member[0]))) {
+                return member[1];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Lists the members of the object at the given position.
+     *
+     * @return the position of the key and of the value of each member
+     */
+    private List<int[]> members(int object) throws JSONException {
+        if (charAt(object) != '{') {
+            throw syntaxError("A JSON object text must begin with '{'", object);
+        }
+
+        List<int[]> members = new ArrayList<int[]>();
+        int i = skipWhitespace(object + 1);
+        while (charAt(i) != '}') {
+            int key = i;
+            i = skipWhitespace(skipKey(i));
+            if (charAt(i) == '=') {
+                i = charAt(i + 1) == '>' ? i + 2 : i + 1;
+            } else if (charAt(i) == ':') {
+                i++;
+            } else {
+                throw syntaxError("Expected a ':' after a key", i);
+            }
+            int value = skipWhitespace(i);
+            members.add(new int[] { key, value });
+
+            i = skipWhitespace(skipValue(value));
+            if (charAt(i) == ',' || charAt(i) == ';') {
+                i = skipWhitespace(i + 1);
+            } else if (charAt(i) != '}') {
+                throw syntaxError("Expected a ',' or '}'", i);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Reads the string (or any other simple value) at the given position.
+     */
+    private String stringAt(int i) throws JSONException {
+        int end = charAt(i) == '"' || charAt(i) == '\'' ? skipString(i) : skipKey(i);
+        if (end == i) {
+            throw syntaxError("Expected a string", i);
+        }
+        String value = mJSON.substring(i, end);
+        if (value.charAt(0) == '"' && value.indexOf('\\') < 0) {
+            return value.substring(1, value.length() - 1);
+        }
+        // escapes, single quotes and unquoted values are decoded the way JSONTokener does
+        return new JSONTokener(value).nextValue().toString();
+    }
+
+    /**
+     * Skips the value that starts at the given position.
+     *
+     * @return the position right after the value
+     */
+    private int skipValue(int i) throws JSONException {
+        char c = charAt(i);
+        if (c == '"' || c == '\'') {
+            return skipString(i);
+        }
+        if (c != '{' && c != '[') {
+            int end = skipKey(i);
+            if (end == i) {
+                throw syntaxError("Missing value", i);
+            }
+            return end;
+        }
+
+        int depth = 0;
+        while (true) {
+            c = charAt(i);
+            if (c == '"' || c == '\'') {
+                i = skipString(i);
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return i + 1;
+                }
+            } else if (c == 0) {
+                throw syntaxError("Unterminated object or array", i);
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Skips the quoted string that starts at the given position.
+     *
+     * @return the position right after the closing quote
+     */
+    private int skipString(int i) throws JSONException {
+        char quote = charAt(i);
+        i++;
+        while (true) {
+            char c = charAt(i);
+            if (c == quote) {
+                return i + 1;
+            }
+            if (c == '\\') {
+                i++;
+            } else if (c == 0 || c == '\n' || c == '\r') {
+                throw syntaxError("Unterminated string", i);
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Skips a key, quoted or not, or an unquoted value.
+     *
+     * @return the position right after it
+     */
+    private int skipKey(int i) throws JSONException {
+        if (charAt(i) == '"' || charAt(i) == '\'') {
+            return skipString(i);
+        }
+        while (true) {
+            char c = charAt(i);
+            if (c <= ' ' || ",:]}/\\\"[{;=#".indexOf(c) >= 0) {
+                return i;
+            }
+            i++;
+        }
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < mJSON.length() && mJSON.charAt(i) <= ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Retrieves the character at the given position, or 0 at the end of the text.
+     */
+    private char charAt(int i) {
+        return i < mJSON.length() ? mJSON.charAt(i) : 0;
+    }
+
+    private static boolean isItemType(String type) {
+        return StoreJSONConsts.STORE_CURRENCIES.equals(type)
+                || StoreJSONConsts.STORE_CURRENCYPACKS.equals(type)
+                || StoreJSONConsts.STORE_GOODS_SU.equals(type)
+                || StoreJSONConsts.STORE_GOODS_LT.equals(type)
+                || StoreJSONConsts.STORE_GOODS_EQ.equals(type)
+                || StoreJSONConsts.STORE_GOODS_PA.equals(type)
+                || StoreJSONConsts.STORE_GOODS_UP.equals(type);
+    }
+
+    private JSONException syntaxError(String message, int i) {
+        return new JSONException(message + " at character " + i);
+    }
+
+
+    /** Private Members **/
+
+    private final String mJSON;
+
+    // the entries of the items by their type
+    private final HashMap<String, List<LazyStoreCatalog.Entry>> mEntries =
+            new HashMap<String, List<LazyStoreCatalog.Entry>>();
+    private final List<VirtualCategory> mCategories = new ArrayList<VirtualCategory>();
+}
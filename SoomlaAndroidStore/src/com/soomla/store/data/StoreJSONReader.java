@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the store's metadata JSON (see {@link StoreCatalog#toJSONObject()}) into a
+ * <code>StoreCatalog</code>.
+ *
+ * {@link #read(String)} streams over the JSON text and parses one item at a time, so the
+ * metadata is never held as a whole JSON tree: besides the text itself, only the item being
+ * parsed and the items already created are in memory. {@link #read(JSONObject)} reads a JSON tree
+ * that was already parsed. Both create the same items, in the same order.
+ *
+ * When reading lazily, items are not created at all: {@link StoreJSONIndexer} only indexes the
+ * text, and the result is a {@link LazyStoreCatalog} that creates each item the first time it's
+ * needed.
+ */
+final class StoreJSONReader {
+
+    /**
+     * Reads the given metadata JSON text, one item at a time.
+     *
+     * @param json the metadata JSON
+     * @return the catalog of the metadata
+     * @throws JSONException if the given text is not a valid metadata JSON
+     */
+    static StoreCatalog read(String json) throws JSONException {
+        return read(json, false);
+    }
+
+    /**
+     * Reads the given metadata JSON text, one item at a time.
+     *
+     * @param json the metadata JSON
+     * @param lazy true to only index the items and create them on first access
+     *             (see {@link LazyStoreCatalog}), false to create all of them now
+     * @return the catalog of the metadata
+     * @throws JSONException if the given text is not a valid metadata JSON
+     */
+    static StoreCatalog read(String json, boolean lazy) throws JSONException {
+        if (lazy) {
+            return StoreJSONIndexer.index(json);
+        }
+
+        StoreJSONReader reader = new StoreJSONReader();
+        JSONTokener x = new JSONTokener(json);
+
+        if (x.nextClean() != '{') {
+            throw x.syntaxError("The store metadata must begin with '{'");
+        }
+        if (!endOfObject(x)) {
+            do {
+                String key = nextKey(x);
+                if (StoreJSONConsts.STORE_GOODS.equals(key)) {
+                    // the goods are an object of arrays, one array per good type
+                    if (x.nextClean() != '{') {
+                        throw x.syntaxError("The goods must be an object");
+                    }
+                    if (!endOfObject(x)) {
+                        do {
+                            reader.readItems(x, nextKey(x));
+                        } while (nextMember(x));
+                    }
+                } else {
+                    reader.readItems(x, key);
+                }
+            } while (nextMember(x));
+        }
+
+        return reader.toCatalog();
+    }
+
+    /**
+     * Reads the given metadata JSON tree.
+     *
+     * @param jsonObject the metadata JSON
+     * @return the catalog of the metadata
+     * @throws JSONException if the given JSON is not a valid metadata JSON
+     */
+    static StoreCatalog read(JSONObject jsonObject) throws JSONException {
+        StoreJSONReader reader = new StoreJSONReader();
+
+        reader.addItems(jsonObject, StoreJSONConsts.STORE_CURRENCIES);
+        reader.addItems(jsonObject, StoreJSONConsts.STORE_CURRENCYPACKS);
+        if (jsonObject.has(StoreJSONConsts.STORE_GOODS)) {
+            JSONObject virtualGoods = jsonObject.getJSONObject(StoreJSONConsts.STORE_GOODS);
+            reader.addItems(virtualGoods, StoreJSONConsts.STORE_GOODS_SU);
+            reader.addItems(virtualGoods, StoreJSONConsts.STORE_GOODS_LT);
+            reader.addItems(virtualGoods, StoreJSONConsts.STORE_GOODS_EQ);
+            reader.addItems(virtualGoods, StoreJSONConsts.STORE_GOODS_PA);
+            reader.addItems(virtualGoods, StoreJSONConsts.STORE_GOODS_UP);
+        }
+        reader.addItems(jsonObject, StoreJSONConsts.STORE_CATEGORIES);
+
+        return reader.toCatalog();
+    }
+
+    /**
+     * Creates a virtual item from its JSON.
+     *
+     * @param type the key of the item's list in the metadata JSON, such as
+     *             {@link StoreJSONConsts#STORE_GOODS_SU}
+     * @param o the item's JSON
+     * @return the item, or null if the given type is not a type of virtual item
+     * @throws JSONException if the given JSON is not a valid item JSON
+     */
+    static VirtualItem newItem(String type, JSONObject o) throws JSONException {
+        if (StoreJSONConsts.STORE_CURRENCIES.equals(type)) {
+            return new VirtualCurrency(o);
+        } else if (StoreJSONConsts.STORE_CURRENCYPACKS.equals(type)) {
+            return new VirtualCurrencyPack(o);
+        } else if (StoreJSONConsts.STORE_GOODS_SU.equals(type)) {
+            return new SingleUseVG(o);
+        } else if (StoreJSONConsts.STORE_GOODS_LT.equals(type)) {
+            return new LifetimeVG(o);
+        } else if (StoreJSONConsts.STORE_GOODS_EQ.equals(type)) {
+            return new EquippableVG(o);
+        } else if (StoreJSONConsts.STORE_GOODS_PA.equals(type)) {
+            return new SingleUsePackVG(o);
+        } else if (StoreJSONConsts.STORE_GOODS_UP.equals(type)) {
+            return new UpgradeVG(o);
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the key of the given item's list in the metadata JSON, the type that
+     * {@link #newItem(String, JSONObject)} expects.
+     *
+     * @param virtualItem the item whose type is to be fetched
+     * @return the key of the item's list, such as {@link StoreJSONConsts#STORE_GOODS_SU}
+     */
+    static String typeOf(VirtualItem virtualItem) {
+        if (virtualItem instanceof VirtualCurrency) {
+            return StoreJSONConsts.STORE_CURRENCIES;
+        } else if (virtualItem instanceof VirtualCurrencyPack) {
+            return StoreJSONConsts.STORE_CURRENCYPACKS;
+        } else if (virtualItem instanceof SingleUseVG) {
+            return StoreJSONConsts.STORE_GOODS_SU;
+        } else if (virtualItem instanceof UpgradeVG) {
+            return StoreJSONConsts.STORE_GOODS_UP;
+        } else if (virtualItem instanceof EquippableVG) {
+            return StoreJSONConsts.STORE_GOODS_EQ;
+        } else if (virtualItem instanceof SingleUsePackVG) {
+            return StoreJSONConsts.STORE_GOODS_PA;
+        }
+        return StoreJSONConsts.STORE_GOODS_LT;
+    }
+
+
+    /** Private functions **/
+
+    /**
+     * Reads the array of the given type at the current position of the given tokener, and
+     * creates its items one by one. Values of unknown keys are skipped.
+     */
+    private void readItems(JSONTokener x, String type) throws JSONException {
+        List<?> items = itemsOf(type);
+        if (items == null) {
+            x.nextValue();
+            return;
+        }
+
+        if (x.nextClean() != '[') {
+            throw x.syntaxError("'" + type + "' must be an array");
+        }
+        if (x.nextClean() == ']') {
+            return;
+        }
+        x.back();
+
+        while (true) {
+            Object value = x.nextValue();
+            if (!(value instanceof JSONObject)) {
+                throw x.syntaxError("The items of '" + type + "' must be objects");
+            }
+            add(type, (JSONObject) value);
+
+            char c = x.nextClean();
+            if (c == ']') {
+                return;
+            }
+            if (c != ',') {
+                throw x.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+
+    private void addItems(JSONObject jsonObject, String type) throws JSONException {
+        if (!jsonObject.has(type)) {
+            return;
+        }
+
+        JSONArray array = jsonObject.getJSONArray(type);
+        for (int i = 0; i < array.length(); i++) {
+            add(type, array.getJSONObject(i));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void add(String type, JSONObject o) throws JSONException {
+        if (StoreJSONConsts.STORE_CATEGORIES.equals(type)) {
+            mCategories.add(new VirtualCategory(o));
+        } else {
+            ((List<VirtualItem>) itemsOf(type)).add(newItem(type, o));
+        }
+    }
+
+    private List<?> itemsOf(String type) {
+        if (StoreJSONConsts.STORE_CURRENCIES.equals(type)) {
+            return mCurrencies;
+        } else if (StoreJSONConsts.STORE_CURRENCYPACKS.equals(type)) {
+            return mCurrencyPacks;
+        } else if (StoreJSONConsts.STORE_GOODS_SU.equals(type)) {
+            return mSingleUseGoods;
+        } else if (StoreJSONConsts.STORE_GOODS_LT.equals(type)) {
+            return mLifetimeGoods;
+        } else if (StoreJSONConsts.STORE_GOODS_EQ.equals(type)) {
+            return mEquippableGoods;
+        } else if (StoreJSONConsts.STORE_GOODS_PA.equals(type)) {
+            return mGoodPacks;
+        } else if (StoreJSONConsts.STORE_GOODS_UP.equals(type)) {
+            return mGoodUpgrades;
+        } else if (StoreJSONConsts.STORE_CATEGORIES.equals(type)) {
+            return mCategories;
+        }
+        return null;
+    }
+
+    /**
+     * Creates the catalog of the items that were read. The goods are ordered by type, the same
+     * way as in the metadata JSON, whatever order the types were read in.
+     */
+    private StoreCatalog toCatalog() {
+        List<VirtualGood> goods = new ArrayList<VirtualGood>(mSingleUseGoods.size()
+                + mLifetimeGoods.size() + mEquippableGoods.size() + mGoodPacks.size()
+                + mGoodUpgrades.size());
+        goods.addAll(mSingleUseGoods);
+        goods.addAll(mLifetimeGoods);
+        goods.addAll(mEquippableGoods);
+        goods.addAll(mGoodPacks);
+        goods.addAll(mGoodUpgrades);
+
+        return new StoreCatalog(mCurrencies, mCurrencyPacks, goods, mCategories);
+    }
+
+    /**
+     * Reads a key and the separator after it, the same way <code>JSONObject</code> does.
+     */
+    private static String nextKey(JSONTokener x) throws JSONException {
+        char c = x.nextClean();
+        if (c == 0) {
+            throw x.syntaxError("A JSON object text must end with '}'");
+        }
+        x.back();
+        String key = x.nextValue().toString();
+
+        c = x.nextClean();
+        if (c == '=') {
+            if (x.next() != '>') {
+                x.back();
+            }
+        } else if (c != ':') {
+            throw x.syntaxError("Expected a ':' after a key");
+        }
+        return key;
+    }
+
+    /**
+     * Checks if the object that was just opened is empty, and consumes its end if it is.
+     */
+    private static boolean endOfObject(JSONTokener x) throws JSONException {
+        if (x.nextClean() == '}') {
+            return true;
+        }
+        x.back();
+        return false;
+    }
+
+    /**
+     * Reads the separator after a member of an object.
+     *
+     * @return true if another member follows, false if the object ended
+     */
+    private static boolean nextMember(JSONTokener x) throws JSONException {
+        switch (x.nextClean()) {
+            case ';':
+            case ',':
+                if (x.nextClean() == '}') {
+                    return false;
+                }
+                x.back();
+                return true;
+            case '}':
+                return false;
+            default:
+                throw x.syntaxError("Expected a ',' or '}'");
+        }
+    }
+
+
+    /** Private Members **/
+
+    private final List<VirtualCurrency> mCurrencies = new ArrayList<VirtualCurrency>();
+    private final List<VirtualCurrencyPack> mCurrencyPacks = new ArrayList<VirtualCurrencyPack>();
+    private final List<SingleUseVG> mSingleUseGoods = new ArrayList<SingleUseVG>();
+    private final List<LifetimeVG> mLifetimeGoods = new ArrayList<LifetimeVG>();
+    private final List<EquippableVG> mEquippableGoods = new ArrayList<EquippableVG>();
+    private final List<SingleUsePackVG> mGoodPacks = new ArrayList<SingleUsePackVG>();
+    private final List<UpgradeVG> mGoodUpgrades = new ArrayList<UpgradeVG>();
+    private final List<VirtualCategory> mCategories = new ArrayList<VirtualCategory>();
+}
@@ -17,7 +17,6 @@
 package com.soomla.store.data;
 
 
-import com.soomla.BusProvider;
 import com.soomla.store.events.CurrencyBalanceChangedEvent;
 
 /**
@@ -45,7 +44,7 @@ public class VirtualCurrencyStorage extends VirtualItemStorage{
      */
     @Override
     protected void postBalanceChangeEvent(String itemId, int balance, int amountAdded) {
-        BusProvider.getInstance().post(new CurrencyBalanceChangedEvent(itemId,
+        StorageManager.post(new CurrencyBalanceChangedEvent(itemId,
                 balance, amountAdded));
     }
 
@@ -16,16 +16,17 @@
 
 package com.soomla.store.data;
 
-import android.text.TextUtils;
-import com.soomla.BusProvider;
 import com.soomla.SoomlaUtils;
-import com.soomla.data.KeyValueStorage;
 import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
 import com.soomla.store.events.GoodBalanceChangedEvent;
 import com.soomla.store.events.GoodEquippedEvent;
 import com.soomla.store.events.GoodUnEquippedEvent;
 import com.soomla.store.events.GoodUpgradeEvent;
-import com.soomla.store.exceptions.VirtualItemNotFoundException;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class provides basic storage operations on virtual goods.
@@ -58,12 +59,19 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         SoomlaUtils.LogDebug(mTag, "Removing upgrade information from virtual good: " +
                 goodItemId);
 
-        String key = keyGoodUpgrade(goodItemId);
-
-        KeyValueStorage.deleteKeyValue(key);
+        int ordinal = StoreInfo.getOrdinal(goodItemId);
+        ReentrantLock lock = StorageManager.lockItem(ordinal);
+        try {
+            String upgradeItemId = getCurrentUpgrade(goodItemId, ordinal);
+            StorageManager.deleteKeyValue(keyGoodUpgrade(goodItemId, ordinal), upgradeItemId);
+            cacheUpgrade(ordinal, upgradeItemId == null ? NO_UPGRADE
+                    : StoreInfo.getOrdinal(upgradeItemId), NO_UPGRADE);
+        } finally {
+            StorageManager.unlockItem(lock);
+        }
 
         if (notify) {
-            BusProvider.getInstance().post(new GoodUpgradeEvent(goodItemId, null));
+            StorageManager.post(new GoodUpgradeEvent(goodItemId, null));
         }
     }
 
@@ -85,30 +93,28 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
      * @param notify if true post event to bus
      */
     public void assignCurrentUpgrade(String goodItemId, String upgradeVGItemId, boolean notify) {
-
-        String upgradeItemId = getCurrentUpgrade(goodItemId);
-        if (!TextUtils.isEmpty(upgradeItemId)) {
-            try {
-                UpgradeVG upgrade = (UpgradeVG) StoreInfo.getVirtualItem(upgradeItemId);
-
-                if (upgrade != null && upgrade.getItemId().equals(
-                        upgradeVGItemId)) {
-                    return;
-                }
-            } catch (VirtualItemNotFoundException ignored) {
-
+        int ordinal = StoreInfo.getOrdinal(goodItemId);
+        ReentrantLock lock = StorageManager.lockItem(ordinal);
+        try {
+            String upgradeItemId = getCurrentUpgrade(goodItemId, ordinal);
+            UpgradeVG upgrade = StoreInfo.findVirtualItem(upgradeItemId, UpgradeVG.class);
+            if (upgrade != null && upgrade.getItemId().equals(upgradeVGItemId)) {
+                return;
             }
-        }
-
-        SoomlaUtils.LogDebug(mTag, "Assigning upgrade " + upgradeVGItemId + " to virtual good: "
-                + goodItemId);
 
-        String key = keyGoodUpgrade(goodItemId);
+            SoomlaUtils.LogDebug(mTag, "Assigning upgrade " + upgradeVGItemId
+                    + " to virtual good: " + goodItemId);
 
-        KeyValueStorage.setValue(key, upgradeVGItemId);
+            StorageManager.setValue(keyGoodUpgrade(goodItemId, ordinal), upgradeVGItemId,
+                    upgradeItemId);
+            cacheUpgrade(ordinal, upgradeItemId == null ? NO_UPGRADE
+                    : StoreInfo.getOrdinal(upgradeItemId), StoreInfo.getOrdinal(upgradeVGItemId));
+        } finally {
+            StorageManager.unlockItem(lock);
+        }
 
         if (notify) {
-            BusProvider.getInstance().post(new GoodUpgradeEvent(goodItemId, upgradeVGItemId));
+            StorageManager.post(new GoodUpgradeEvent(goodItemId, upgradeVGItemId));
         }
     }
 
@@ -119,26 +125,17 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
      * @return the current upgrade for the given virtual good
      */
     public String getCurrentUpgrade(String goodItemId) {
-        SoomlaUtils.LogDebug(mTag, "Fetching upgrade to virtual good: " + goodItemId);
-
-        String key = keyGoodUpgrade(goodItemId);
-
-        String upItemId = KeyValueStorage.getValue(key);
-
-        if (upItemId == null) {
-            SoomlaUtils.LogDebug(mTag, "You tried to fetch the current upgrade of " + goodItemId
-                    + " but there's not upgrade to it.");
-            return null;
-        }
-
-        try {
-            return upItemId;
-        } catch (ClassCastException e) {
-            SoomlaUtils.LogError(mTag,
-                    "The current upgrade's itemId from the DB is not an UpgradeVG.");
-        }
+        return getCurrentUpgrade(goodItemId, StoreInfo.findOrdinal(goodItemId));
+    }
 
-        return null;
+    /**
+     * Retrieves the current upgrade for the given virtual good.
+     *
+     * @param good the virtual good to retrieve upgrade for
+     * @return the current upgrade for the given virtual good
+     */
+    public String getCurrentUpgrade(VirtualGood good) {
+        return getCurrentUpgrade(good.getItemId(), good.getOrdinal());
     }
 
     /**
@@ -148,13 +145,77 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
      * @return true if the given good is equipped, false otherwise
      */
     public boolean isEquipped(String goodItemId){
-        SoomlaUtils.LogDebug(mTag, "checking if virtual good with itemId: " + goodItemId +
-                " is equipped.");
+        return isEquipped(goodItemId, StoreInfo.findOrdinal(goodItemId));
+    }
 
-        String key = keyGoodEquipped(goodItemId);
-        String val = KeyValueStorage.getValue(key);
+    /**
+     * Checks if the given <code>EquippableVG</code> is currently equipped or not.
+     *
+     * @param good the <code>EquippableVG</code> to check the status for
+     * @return true if the given good is equipped, false otherwise
+     */
+    public boolean isEquipped(VirtualGood good){
+        return isEquipped(good.getItemId(), good.getOrdinal());
+    }
+
+    /**
+     * Finds which of the given goods are currently equipped. Only the equipped goods are
+     * visited: the cached equipping statuses are kept as a bitset, so this is a bitset
+     * intersection (once the statuses of the given goods are cached).
+     *
+     * @param goodOrdinals the ordinals of the goods to check (see
+     *                     {@link StoreInfo#getOrdinal(String)})
+     * @return the ordinals of the given goods that are currently equipped
+     */
+    public BitSet getEquippedGoods(BitSet goodOrdinals) {
+        BitSet equipped = new BitSet();
+        if (StorageManager.inTransaction()) {
+            // equipping changes of the transaction aren't cached yet, so check each good
+            for (int o = goodOrdinals.nextSetBit(0); o >= 0; o = goodOrdinals.nextSetBit(o + 1)) {
+                if (isEquipped(StoreInfo.getItemIdByOrdinal(o), o)) {
+                    equipped.set(o);
+                }
+            }
+            return equipped;
+        }
+
+        BitSet notLoaded = (BitSet) goodOrdinals.clone();
+        synchronized (mEquipped) {
+            notLoaded.andNot(mEquippedLoaded);
+        }
+        for (int o = notLoaded.nextSetBit(0); o >= 0; o = notLoaded.nextSetBit(o + 1)) {
+            isEquipped(StoreInfo.getItemIdByOrdinal(o), o);
+        }
 
-        return val != null;
+        equipped.or(goodOrdinals);
+        synchronized (mEquipped) {
+            equipped.and(mEquipped);
+            equipped.and(mEquippedLoaded);
+        }
+        return equipped;
+    }
+
+    /**
+     * Copies the ordinals of the current upgrades (see {@link StoreInfo#getOrdinal(String)}) of
+     * the goods with the given ordinals into the given array, each at the good's ordinal, where
+     * -1 means no upgrade. Cached upgrades are copied in one pass; the others are fetched (and
+     * cached) first.
+     *
+     * @param goodOrdinals the ordinals of the goods
+     * @param upgradeOrdinals the array to copy into, at least as long as the highest given ordinal
+     */
+    void copyUpgrades(BitSet goodOrdinals, int[] upgradeOrdinals) {
+        BitSet notLoaded;
+        if (StorageManager.inTransaction()) {
+            // upgrade changes of the transaction aren't cached yet, so check each good
+            notLoaded = goodOrdinals;
+        } else {
+            notLoaded = mUpgrades.copyTo(goodOrdinals, upgradeOrdinals);
+        }
+        for (int o = notLoaded.nextSetBit(0); o >= 0; o = notLoaded.nextSetBit(o + 1)) {
+            String upItemId = getCurrentUpgrade(StoreInfo.getItemIdByOrdinal(o), o);
+            upgradeOrdinals[o] = upItemId == null ? NO_UPGRADE : StoreInfo.getOrdinal(upItemId);
+        }
     }
 
     /**
@@ -173,9 +234,6 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
      * @param notify if notify is true post event to bus
      */
     public void equip(String goodItemId, boolean notify) {
-        if (isEquipped(goodItemId)) {
-            return;
-        }
         equipPriv(goodItemId, true, notify);
     }
 
@@ -195,12 +253,56 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
      * @param notify if true post event to bus
      */
     public void unequip(String goodItemId, boolean notify) {
-        if (!isEquipped(goodItemId)) {
-            return;
-        }
         equipPriv(goodItemId, false, notify);
     }
 
+    /**
+     * @{inheritDoc}
+     * Also drops the cached equipping status and upgrades of all goods.
+     */
+    @Override
+    public void clearCache() {
+        super.clearCache();
+        synchronized (mEquipped) {
+            mEquippedLoaded.clear();
+        }
+        mUpgrades.clear();
+    }
+
+    /**
+     * @{inheritDoc}
+     * Also builds the equipping and upgrade keys of the given good.
+     */
+    @Override
+    void prepareKeys(String itemId) {
+        super.prepareKeys(itemId);
+        keyGoodEquipped(itemId, StoreInfo.getOrdinal(itemId));
+        keyGoodUpgrade(itemId, StoreInfo.getOrdinal(itemId));
+    }
+
+    /**
+     * @{inheritDoc}
+     * Also fills the cached equipping status and upgrade of the given good.
+     */
+    @Override
+    void prefetch(String itemId, Map<String, String> values, int cacheGeneration) {
+        super.prefetch(itemId, values, cacheGeneration);
+
+        int ordinal = StoreInfo.getOrdinal(itemId);
+        boolean equipped = values.get(keyGoodEquipped(itemId, ordinal)) != null;
+        synchronized (mEquipped) {
+            if (!mEquippedLoaded.get(ordinal)) {
+                mEquipped.set(ordinal, equipped);
+                mEquippedLoaded.set(ordinal);
+            }
+        }
+
+        String upItemId = values.get(keyGoodUpgrade(itemId, ordinal));
+        // the upgrades are always cleared along with the balances, so they share the generation
+        mUpgrades.setIfNotLoaded(ordinal,
+                upItemId == null ? NO_UPGRADE : StoreInfo.getOrdinal(upItemId), cacheGeneration);
+    }
+
     /**
      * @{inheritDoc}
      */
@@ -214,31 +316,167 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
      */
     @Override
     protected void postBalanceChangeEvent(String itemId, int balance, int amountAdded) {
-        BusProvider.getInstance().post(new GoodBalanceChangedEvent(itemId,
+        StorageManager.post(new GoodBalanceChangedEvent(itemId,
                 balance, amountAdded));
     }
 
+    private String getCurrentUpgrade(String goodItemId, int ordinal) {
+        if (ordinal < 0) {
+            // never read or written in this process: read it without giving it an ordinal
+            return StorageManager.getValue(keyGoodUpgrade(goodItemId));
+        }
+
+        String key = keyGoodUpgrade(goodItemId, ordinal);
+        if (StorageManager.inTransaction() && StorageManager.isStaged(key)) {
+            return StorageManager.getValue(key);
+        }
+
+        int upgradeOrdinal = mUpgrades.get(ordinal);
+        if (upgradeOrdinal == NOT_LOADED) {
+            SoomlaUtils.LogDebug(mTag, "Fetching upgrade to virtual good: " + goodItemId);
+
+            int generation = mUpgrades.getGeneration();
+            String upItemId = StorageManager.getValue(key);
+            upgradeOrdinal = upItemId == null ? NO_UPGRADE : StoreInfo.getOrdinal(upItemId);
+            mUpgrades.setIfNotLoaded(ordinal, upgradeOrdinal, generation);
+        }
+
+        if (upgradeOrdinal == NO_UPGRADE) {
+            SoomlaUtils.LogDebug(mTag, "You tried to fetch the current upgrade of " + goodItemId
+                    + " but there's not upgrade to it.");
+            return null;
+        }
+        return StoreInfo.getItemIdByOrdinal(upgradeOrdinal);
+    }
+
+    private boolean isEquipped(String goodItemId, int ordinal) {
+        if (ordinal < 0) {
+            // never read or written in this process: read it without giving it an ordinal
+            return StorageManager.getValue(keyGoodEquipped(goodItemId)) != null;
+        }
+
+        String key = keyGoodEquipped(goodItemId, ordinal);
+        if (StorageManager.inTransaction() && StorageManager.isStaged(key)) {
+            return StorageManager.getValue(key) != null;
+        }
+
+        synchronized (mEquipped) {
+            if (mEquippedLoaded.get(ordinal)) {
+                return mEquipped.get(ordinal);
+            }
+        }
+
+        SoomlaUtils.LogDebug(mTag, "checking if virtual good with itemId: " + goodItemId +
+                " is equipped.");
+
+        boolean equipped = StorageManager.getValue(key) != null;
+
+        synchronized (mEquipped) {
+            if (!mEquippedLoaded.get(ordinal)) {
+                mEquipped.set(ordinal, equipped);
+                mEquippedLoaded.set(ordinal);
+            }
+        }
+        return equipped;
+    }
+
     /**
      * Helper function for <code>equip</code> and <code>unequip</code> functions.
      */
     private void equipPriv(String goodItemId, boolean equip, boolean notify){
-        SoomlaUtils.LogDebug(mTag, (!equip ? "unequipping " : "equipping ") + goodItemId + ".");
+        int ordinal = StoreInfo.getOrdinal(goodItemId);
+        ReentrantLock lock = StorageManager.lockItem(ordinal);
+        try {
+            if (isEquipped(goodItemId, ordinal) == equip) {
+                return;
+            }
 
-        String key = keyGoodEquipped(goodItemId);
+            SoomlaUtils.LogDebug(mTag, (!equip ? "unequipping " : "equipping ") + goodItemId + ".");
 
-        if (equip) {
-            KeyValueStorage.setValue(key, "");
-            if (notify) {
-                BusProvider.getInstance().post(new GoodEquippedEvent(goodItemId));
+            String key = keyGoodEquipped(goodItemId, ordinal);
+            if (equip) {
+                StorageManager.setValue(key, "", null);
+            } else {
+                StorageManager.deleteKeyValue(key, "");
             }
-        } else {
-            KeyValueStorage.deleteKeyValue(key);
-            if (notify) {
-                BusProvider.getInstance().post(new GoodUnEquippedEvent(goodItemId));
+            cacheEquipped(ordinal, equip);
+        } finally {
+            StorageManager.unlockItem(lock);
+        }
+
+        if (notify) {
+            StorageManager.post(equip ? new GoodEquippedEvent(goodItemId)
+                    : new GoodUnEquippedEvent(goodItemId));
+        }
+    }
+
+    /**
+     * Updates the cached equipping status of the given good and records the change, or schedules
+     * both for when the current transaction is committed. The status must be a change.
+     */
+    private void cacheEquipped(final int ordinal, final boolean equipped) {
+        if (!StorageManager.inTransaction()) {
+            setEquipped(ordinal, equipped);
+            return;
+        }
+        StorageManager.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                setEquipped(ordinal, equipped);
             }
+        });
+    }
+
+    private void setEquipped(int ordinal, boolean equipped) {
+        synchronized (mEquipped) {
+            mEquipped.set(ordinal, equipped);
+            mEquippedLoaded.set(ordinal);
         }
+        StorageManager.recordChange(InventoryChange.Kind.EQUIPPED, ordinal, equipped ? 0 : 1,
+                equipped ? 1 : 0);
     }
 
+    /**
+     * Updates the cached upgrade of the given good and records the change, or schedules both for
+     * when the current transaction is committed.
+     */
+    private void cacheUpgrade(final int ordinal, final int oldUpgradeOrdinal,
+                              final int upgradeOrdinal) {
+        if (!StorageManager.inTransaction()) {
+            setUpgrade(ordinal, oldUpgradeOrdinal, upgradeOrdinal);
+            return;
+        }
+        StorageManager.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                setUpgrade(ordinal, oldUpgradeOrdinal, upgradeOrdinal);
+            }
+        });
+    }
+
+    private void setUpgrade(int ordinal, int oldUpgradeOrdinal, int upgradeOrdinal) {
+        mUpgrades.set(ordinal, upgradeOrdinal);
+        StorageManager.recordChange(InventoryChange.Kind.UPGRADE, ordinal, oldUpgradeOrdinal,
+                upgradeOrdinal);
+    }
+
+    private String keyGoodEquipped(String itemId, int ordinal) {
+        String key = mEquippedKeys.get(ordinal);
+        if (key == null) {
+            key = keyGoodEquipped(itemId);
+            mEquippedKeys.set(ordinal, key);
+        }
+        return key;
+    }
+
+    private String keyGoodUpgrade(String itemId, int ordinal) {
+        String key = mUpgradeKeys.get(ordinal);
+        if (key == null) {
+            key = keyGoodUpgrade(itemId);
+            mUpgradeKeys.set(ordinal, key);
+        }
+        return key;
+    }
 
     private static String keyGoodBalance(String itemId) {
         return DB_KEY_GOOD_PREFIX + itemId + ".balance";
@@ -253,4 +491,17 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
     }
 
     public final static String DB_KEY_GOOD_PREFIX = "good.";
+
+    // write-through caches by good ordinal: equipping status, and the ordinal of the current
+    // upgrade (NO_UPGRADE if there's none)
+    private final BitSet mEquipped = new BitSet();
+    private final BitSet mEquippedLoaded = new BitSet();
+    private final OrdinalIntArray mUpgrades = new OrdinalIntArray(NOT_LOADED);
+
+    // equipping and upgrade keys of each good ordinal
+    private final OrdinalKeys mEquippedKeys = new OrdinalKeys();
+    private final OrdinalKeys mUpgradeKeys = new OrdinalKeys();
+
+    private static final int NO_UPGRADE = -1;
+    private static final int NOT_LOADED = -2;
 }
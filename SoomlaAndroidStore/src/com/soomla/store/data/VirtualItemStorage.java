@@ -23,10 +23,23 @@
 package com.soomla.store.data;
 
 import com.soomla.SoomlaUtils;
-import com.soomla.data.KeyValueStorage;
+import com.soomla.store.domain.VirtualItem;
+
+import java.util.BitSet;
+import java.util.Map;
+
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class is an abstract definition of a Virtual Item Storage.
+ *
+ * Balance changes may be made from any thread. Each change of an item's balance runs under the
+ * lock of that item's key, so concurrent changes of the same item are applied one after the other
+ * and none of them is lost.
+ *
+ * Reading a cached balance takes no lock, so it never waits for writers. The
+ * <code>VirtualItem</code> overloads also skip the itemId lookup: a cached read is then a single
+ * array read.
  */
 public abstract class VirtualItemStorage {
 
@@ -37,20 +50,34 @@ public abstract class VirtualItemStorage {
      * @return the balance of the required virtual item
      */
     public int getBalance(String itemId){
-        SoomlaUtils.LogDebug(mTag, "fetching balance for virtual item with itemId: "
-                + itemId);
+        return getBalance(itemId, StoreInfo.findOrdinal(itemId));
+    }
 
-        String key = keyBalance(itemId);
-        String val = KeyValueStorage.getValue(key);
+    /**
+     * Retrieves the balance of the given virtual item.
+     *
+     * @param item the required virtual item
+     * @return the balance of the required virtual item
+     */
+    public int getBalance(VirtualItem item){
+        return getBalance(item.getItemId(), item.getOrdinal());
+    }
 
-        int balance = 0;
-        if (val != null) {
-            balance = Integer.parseInt(val);
+    /**
+     * Retrieves the balance of the given virtual item in order to change it based on it. Inside a
+     * transaction, the item stays locked until the transaction is committed or rolled back, so no
+     * other thread can change the balance between this check and the transaction's changes.
+     *
+     * @param item the required virtual item
+     * @return the balance of the required virtual item
+     */
+    public int getBalanceForUpdate(VirtualItem item) {
+        ReentrantLock lock = StorageManager.lockItem(item.getOrdinal());
+        try {
+            return getBalance(item.getItemId(), item.getOrdinal());
+        } finally {
+            StorageManager.unlockItem(lock);
         }
-
-        SoomlaUtils.LogDebug(mTag, "the balance for " + itemId + " is " + balance);
-
-        return balance;
     }
 
     /**
@@ -74,23 +101,20 @@ public abstract class VirtualItemStorage {
      * @return the balance of the required virtual item
      */
     public int setBalance(String itemId, int balance, boolean notify) {
-        SoomlaUtils.LogDebug(mTag, "setting balance " + balance + " to " + itemId + ".");
-
-        int oldBalance = getBalance(itemId);
-        if (oldBalance == balance) {
-            return balance;
-        }
-
-        String balanceStr = "" + balance;
-        String key = keyBalance(itemId);
-
-        KeyValueStorage.setValue(key, balanceStr);
-
-        if (notify) {
-            postBalanceChangeEvent(itemId, balance, 0);
-        }
+        return setBalance(itemId, StoreInfo.getOrdinal(itemId), balance, notify);
+    }
 
-        return balance;
+    /**
+     * Sets the balance of the given virtual item to be the given balance, and if notify is true
+     * posts the change in the balance to the event bus.
+     *
+     * @param item the required virtual item
+     * @param balance the new balance to be set
+     * @param notify if notify is true post balance change event
+     * @return the balance of the required virtual item
+     */
+    public int setBalance(VirtualItem item, int balance, boolean notify) {
+        return setBalance(item.getItemId(), item.getOrdinal(), balance, notify);
     }
 
     /**
@@ -114,22 +138,20 @@ public abstract class VirtualItemStorage {
      * @return new balance
      */
     public int add(String itemId, int amount, boolean notify){
-        SoomlaUtils.LogDebug(mTag, "adding " + amount + " " + itemId);
-
-        int balance = getBalance(itemId);
-        if (balance < 0) { /* in case the user "adds" a negative value */
-            balance = 0;
-            amount = 0;
-        }
-        String balanceStr = "" + (balance + amount);
-        String key = keyBalance(itemId);
-        KeyValueStorage.setValue(key, balanceStr);
-
-        if (notify) {
-            postBalanceChangeEvent(itemId, balance+amount, amount);
-        }
+        return add(itemId, StoreInfo.getOrdinal(itemId), amount, notify);
+    }
 
-        return balance + amount;
+    /**
+     * Adds the given amount of items to the storage, and if notify is true
+     * posts the change in the balance to the event bus.
+     *
+     * @param item the required virtual item
+     * @param amount the amount of items to add
+     * @param notify if true posts balance change event
+     * @return new balance
+     */
+    public int add(VirtualItem item, int amount, boolean notify){
+        return add(item.getItemId(), item.getOrdinal(), amount, notify);
     }
 
     /**
@@ -153,16 +175,152 @@ public abstract class VirtualItemStorage {
      * @return new balance
      */
     public int remove(String itemId, int amount, boolean notify){
+        return remove(itemId, StoreInfo.getOrdinal(itemId), amount, notify);
+    }
+
+    /**
+     * Removes the given amount from the given virtual item's balance, and if notify is true
+     * posts the change in the balance to the event bus.
+     *
+     * @param item is the virtual item to remove the given amount from
+     * @param amount is the amount to remove
+     * @param notify if notify is true post balance change event
+     * @return new balance
+     */
+    public int remove(VirtualItem item, int amount, boolean notify){
+        return remove(item.getItemId(), item.getOrdinal(), amount, notify);
+    }
+
+    /**
+     * Drops all cached balances. The next <code>getBalance</code> of every item will go back to
+     * <code>KeyValueStorage</code>.
+     * Call this whenever balances were changed in the database without going through this
+     * storage (for example, when store keys are deleted directly). Since such changes aren't
+     * recorded, this also drops the recorded inventory changes (see
+     * {@link StorageManager#changesSince(long)}).
+     */
+    public void clearCache() {
+        mBalances.clear();
+        StorageManager.invalidateChanges();
+    }
+
+    /**
+     * Copies the balances of the items with the given ordinals into the given array, each at its
+     * ordinal. Cached balances are copied in one pass; the others are fetched (and cached) first.
+     *
+     * @param ordinals the ordinals of the items (see {@link StoreInfo#getOrdinal(String)})
+     * @param balances the array to copy into, at least as long as the highest given ordinal
+     */
+    void copyBalances(BitSet ordinals, int[] balances) {
+        BitSet notLoaded;
+        if (StorageManager.inTransaction()) {
+            // balance changes of the transaction aren't cached yet, so check each item
+            notLoaded = ordinals;
+        } else {
+            notLoaded = mBalances.copyTo(ordinals, balances);
+        }
+        for (int o = notLoaded.nextSetBit(0); o >= 0; o = notLoaded.nextSetBit(o + 1)) {
+            balances[o] = getBalance(StoreInfo.getItemIdByOrdinal(o), o);
+        }
+    }
+
+    private int getBalance(String itemId, int ordinal) {
+        if (ordinal < 0) {
+            // never read or written in this process: read it without giving it an ordinal
+            String val = StorageManager.getValue(keyBalance(itemId));
+            return val == null ? 0 : Integer.parseInt(val);
+        }
+
+        String key = keyBalance(itemId, ordinal);
+        if (StorageManager.inTransaction() && StorageManager.isStaged(key)) {
+            // the balance was changed in the current transaction and isn't cached yet
+            return Integer.parseInt(StorageManager.getValue(key));
+        }
+
+        int cached = mBalances.get(ordinal);
+        if (cached != NOT_LOADED) {
+            return cached;
+        }
+
+        SoomlaUtils.LogDebug(mTag, "fetching balance for virtual item with itemId: "
+                + itemId);
+
+        int generation = mBalances.getGeneration();
+        String val = StorageManager.getValue(key);
+
+        int balance = 0;
+        if (val != null) {
+            balance = Integer.parseInt(val);
+        }
+
+        SoomlaUtils.LogDebug(mTag, "the balance for " + itemId + " is " + balance);
+
+        mBalances.setIfNotLoaded(ordinal, balance, generation);
+        return balance;
+    }
+
+    private int setBalance(String itemId, int ordinal, int balance, boolean notify) {
+        SoomlaUtils.LogDebug(mTag, "setting balance " + balance + " to " + itemId + ".");
+
+        ReentrantLock lock = StorageManager.lockItem(ordinal);
+        try {
+            int oldBalance = getBalance(itemId, ordinal);
+            if (oldBalance == balance) {
+                return balance;
+            }
+
+            writeBalance(itemId, ordinal, oldBalance, balance);
+        } finally {
+            StorageManager.unlockItem(lock);
+        }
+
+        if (notify) {
+            postBalanceChangeEvent(itemId, balance, 0);
+        }
+
+        return balance;
+    }
+
+    private int add(String itemId, int ordinal, int amount, boolean notify){
+        SoomlaUtils.LogDebug(mTag, "adding " + amount + " " + itemId);
+
+        int balance;
+        ReentrantLock lock = StorageManager.lockItem(ordinal);
+        try {
+            int oldBalance = getBalance(itemId, ordinal);
+            balance = oldBalance;
+            if (balance < 0) { /* in case the user "adds" a negative value */
+                balance = 0;
+                amount = 0;
+            }
+            writeBalance(itemId, ordinal, oldBalance, balance + amount);
+        } finally {
+            StorageManager.unlockItem(lock);
+        }
+
+        if (notify) {
+            postBalanceChangeEvent(itemId, balance+amount, amount);
+        }
+
+        return balance + amount;
+    }
+
+    private int remove(String itemId, int ordinal, int amount, boolean notify){
         SoomlaUtils.LogDebug(mTag, "Removing " + amount + " " + itemId + ".");
 
-        int balance = getBalance(itemId) - amount;
-        if (balance < 0) {
-            balance = 0;
-            amount = 0;
+        int balance;
+        ReentrantLock lock = StorageManager.lockItem(ordinal);
+        try {
+            int oldBalance = getBalance(itemId, ordinal);
+            balance = oldBalance - amount;
+            if (balance < 0) {
+                balance = 0;
+                amount = 0;
+            }
+            writeBalance(itemId, ordinal, oldBalance, balance);
+        } finally {
+            StorageManager.unlockItem(lock);
         }
-        String balanceStr = "" + balance;
-        String key = keyBalance(itemId);
-        KeyValueStorage.setValue(key, balanceStr);
 
         if (notify) {
             postBalanceChangeEvent(itemId, balance, -1*amount);
@@ -171,6 +329,89 @@ public abstract class VirtualItemStorage {
         return balance;
     }
 
+    /**
+     * Persists the given balance, and updates the cache and records the change. Inside a
+     * transaction the cache is only updated once the transaction is committed.
+     * Must be called while holding the lock of the item.
+     */
+    private void writeBalance(String itemId, final int ordinal, final int oldBalance,
+                              final int balance) {
+        StorageManager.setValue(keyBalance(itemId, ordinal), "" + balance, "" + oldBalance);
+        if (!StorageManager.inTransaction()) {
+            mBalances.set(ordinal, balance);
+            StorageManager.recordChange(InventoryChange.Kind.BALANCE, ordinal, oldBalance, balance);
+            return;
+        }
+        StorageManager.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                mBalances.set(ordinal, balance);
+                StorageManager.recordChange(InventoryChange.Kind.BALANCE, ordinal, oldBalance,
+                        balance);
+            }
+        });
+    }
+
+    /**
+     * Builds the storage keys of the item with the given itemId ahead of its first access.
+     * <code>StoreInfo</code> calls this for every catalog item when the catalog is loaded.
+     *
+     * @param itemId the itemId of the item to build the keys of
+     */
+    void prepareKeys(String itemId) {
+        keyBalance(itemId, StoreInfo.getOrdinal(itemId));
+    }
+
+    /**
+     * Fills the cache of the item with the given itemId from the given values, so its first read
+     * doesn't go to the database. Values that were already cached (or written meanwhile) are
+     * kept.
+     *
+     * @param itemId the itemId of the item to prefetch
+     * @param values all the existing storage keys with their values; a missing key means the
+     *               item has no value for it
+     * @param cacheGeneration the generation of the cache, read before the values were (see
+     *                        {@link #getCacheGeneration()})
+     */
+    void prefetch(String itemId, Map<String, String> values, int cacheGeneration) {
+        int ordinal = StoreInfo.getOrdinal(itemId);
+        String val = values.get(keyBalance(itemId, ordinal));
+        int balance = 0;
+        if (val != null) {
+            try {
+                balance = Integer.parseInt(val);
+            } catch (NumberFormatException e) {
+                SoomlaUtils.LogError(mTag, "Couldn't parse the balance of " + itemId
+                        + ". It will be read again on first access.");
+                return;
+            }
+        }
+        mBalances.setIfNotLoaded(ordinal, balance, cacheGeneration);
+    }
+
+    /**
+     * Retrieves the generation of the cache, which changes whenever it's cleared (see
+     * {@link #clearCache()}). Read it before reading the values to prefetch, so values read
+     * before the cache was cleared aren't cached.
+     *
+     * @return the current generation of the cache
+     */
+    int getCacheGeneration() {
+        return mBalances.getGeneration();
+    }
+
+    /**
+     * Retrieves the balance key of the given item, building it only on the item's first access.
+     */
+    protected final String keyBalance(String itemId, int ordinal) {
+        String key = mBalanceKeys.get(ordinal);
+        if (key == null) {
+            key = keyBalance(itemId);
+            mBalanceKeys.set(ordinal, key);
+        }
+        return key;
+    }
+
     /**
      * Retrieves the balance of the virtual item with the given itemId from the
      * <code>KeyValDatabase</code>.
@@ -193,4 +434,14 @@ public abstract class VirtualItemStorage {
     /** Private Members */
 
     protected String mTag = "SOOMLA VirtualItemStorage"; //used for Log messages
+
+    // write-through cache of balances by item ordinal, filled on first read and updated on
+    // every write
+    private final OrdinalIntArray mBalances = new OrdinalIntArray(NOT_LOADED);
+
+    // balance key of each item ordinal
+    private final OrdinalKeys mBalanceKeys = new OrdinalKeys();
+
+    // marks a balance that isn't cached (no real balance gets near it)
+    private static final int NOT_LOADED = Integer.MIN_VALUE;
 }
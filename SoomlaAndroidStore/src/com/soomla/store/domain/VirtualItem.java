@@ -145,8 +145,25 @@ public abstract class VirtualItem extends SoomlaEntity<VirtualItem> {
         return mID;
     }
 
+    /**
+     * Retrieves the ordinal of this item: a small int the storages use to keep this item's
+     * balance and state in arrays. See {@link StoreInfo#getOrdinal(String)}.
+     *
+     * @return the ordinal of this item
+     */
+    public int getOrdinal() {
+        int ordinal = mOrdinal;
+        if (ordinal < 0) {
+            ordinal = StoreInfo.getOrdinal(mID);
+            mOrdinal = ordinal;
+        }
+        return ordinal;
+    }
+
 
     /** Private Members **/
 
     private static final String TAG = "SOOMLA VirtualItem"; //used for Log messages
+
+    private int mOrdinal = -1;
 }
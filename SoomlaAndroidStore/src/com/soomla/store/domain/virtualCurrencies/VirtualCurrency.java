@@ -74,7 +74,7 @@ public class VirtualCurrency extends VirtualItem {
      */
     @Override
     public int give(int amount, boolean notify) {
-        return StorageManager.getVirtualCurrencyStorage().add(this.getItemId(), amount, notify);
+        return StorageManager.getVirtualCurrencyStorage().add(this, amount, notify);
     }
 
     /**
@@ -82,7 +82,7 @@ public class VirtualCurrency extends VirtualItem {
      */
     @Override
     public int take(int amount, boolean notify) {
-        return StorageManager.getVirtualCurrencyStorage().remove(this.getItemId(), amount, notify);
+        return StorageManager.getVirtualCurrencyStorage().remove(this, amount, notify);
     }
 
     /**
@@ -90,6 +90,6 @@ public class VirtualCurrency extends VirtualItem {
      */
     @Override
     public int resetBalance(int balance, boolean notify) {
-        return StorageManager.getVirtualCurrencyStorage().setBalance(this.getItemId(), balance, notify);
+        return StorageManager.getVirtualCurrencyStorage().setBalance(this, balance, notify);
     }
 }
@@ -22,7 +22,6 @@ import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.StoreJSONConsts;
 import com.soomla.store.domain.PurchasableVirtualItem;
 import com.soomla.store.domain.VirtualItem;
-import com.soomla.store.exceptions.VirtualItemNotFoundException;
 import com.soomla.store.purchaseTypes.PurchaseType;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -107,16 +106,14 @@ public class VirtualCurrencyPack extends PurchasableVirtualItem {
      */
     @Override
     public int give(int amount, boolean notify) {
-        VirtualCurrency currency = null;
-        try {
-            currency = (VirtualCurrency) StoreInfo.getVirtualItem(mCurrencyItemId);
-        } catch (VirtualItemNotFoundException e) {
+        VirtualCurrency currency = getLinkedCurrency();
+        if (currency == null) {
             SoomlaUtils.LogError(TAG, "VirtualCurrency with itemId: " + mCurrencyItemId
                     + " doesn't exist! Can't give this pack.");
             return 0;
         }
         return StorageManager.getVirtualCurrencyStorage().add(
-                currency.getItemId(), mCurrencyAmount * amount, notify);
+                currency, mCurrencyAmount * amount, notify);
     }
 
     /**
@@ -124,15 +121,13 @@ public class VirtualCurrencyPack extends PurchasableVirtualItem {
      */
     @Override
     public int take(int amount, boolean notify) {
-        VirtualCurrency currency = null;
-        try {
-            currency = (VirtualCurrency)StoreInfo.getVirtualItem(mCurrencyItemId);
-        } catch (VirtualItemNotFoundException e) {
+        VirtualCurrency currency = getLinkedCurrency();
+        if (currency == null) {
             SoomlaUtils.LogError(TAG, "VirtualCurrency with itemId: " + mCurrencyItemId +
                     " doesn't exist! Can't take this pack.");
             return 0;
         }
-        return StorageManager.getVirtualCurrencyStorage().remove(currency.getItemId(),
+        return StorageManager.getVirtualCurrencyStorage().remove(currency,
                 mCurrencyAmount * amount, notify);
     }
 
@@ -155,6 +150,20 @@ public class VirtualCurrencyPack extends PurchasableVirtualItem {
         return true;
     }
 
+    /**
+     * Retrieves the currency of this pack.
+     *
+     * The store links its items when it loads its metadata. An item created or replaced outside
+     * of the metadata isn't linked, so its currency is looked up instead.
+     *
+     * @return the currency, or null if there's none
+     */
+    private VirtualCurrency getLinkedCurrency() {
+        VirtualCurrency currency = mCurrency;
+        return currency != null ? currency
+                : StoreInfo.findVirtualItem(mCurrencyItemId, VirtualCurrency.class);
+    }
+
 
     /** Setters and Getters **/
 
@@ -166,6 +175,15 @@ public class VirtualCurrencyPack extends PurchasableVirtualItem {
         return mCurrencyItemId;
     }
 
+    /**
+     * Links this pack to its currency. The store links its items when it loads its metadata.
+     *
+     * @param currency the currency with this pack's currency itemId, or null if there's none
+     */
+    public void setCurrency(VirtualCurrency currency) {
+        mCurrency = currency;
+    }
+
 
     /** Private Members **/
 
@@ -174,4 +192,6 @@ public class VirtualCurrencyPack extends PurchasableVirtualItem {
     private int mCurrencyAmount; //the amount of currency in the pack
 
     private String mCurrencyItemId; //the itemId of the currency associated with this pack
+
+    private VirtualCurrency mCurrency; //the currency associated with this pack, once linked
 }
@@ -25,11 +25,11 @@ import com.soomla.store.domain.PurchasableVirtualItem;
 import com.soomla.store.domain.VirtualCategory;
 import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.exceptions.NotEnoughGoodsException;
-import com.soomla.store.exceptions.VirtualItemNotFoundException;
 import com.soomla.store.purchaseTypes.PurchaseType;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.BitSet;
 import java.util.EnumSet;
 import java.util.Iterator;
 
@@ -155,44 +155,20 @@ public class EquippableVG extends LifetimeVG{
      */
     public void equip(boolean notify) throws NotEnoughGoodsException {
         // only if the user has bought this EquippableVG, the EquippableVG is equipped.
-        if (StorageManager.getVirtualGoodsStorage().getBalance(this.getItemId()) > 0){
+        if (StorageManager.getVirtualGoodsStorage().getBalance(this) > 0){
 
             if (mEquippingModel == EquippingModel.CATEGORY) {
-                VirtualCategory category = null;
-                try {
-                    category = StoreInfo.getCategory(getItemId());
-                } catch (VirtualItemNotFoundException e) {
+                VirtualCategory category = StoreInfo.findCategory(getItemId());
+                if (category == null) {
                     SoomlaUtils.LogError(TAG,
                             "Tried to unequip all other category VirtualGoods but there was no " +
                             "associated category. virtual good itemId: " + getItemId());
                     return;
                 }
 
-                for(String goodItemId : category.getGoodsItemIds()) {
-                    EquippableVG equippableVG = null;
-                    try {
-                        equippableVG = (EquippableVG) StoreInfo.getVirtualItem(goodItemId);
-
-                        if (equippableVG != null && equippableVG != this) {
-                            equippableVG.unequip(notify);
-                        }
-                    } catch (VirtualItemNotFoundException e) {
-                        SoomlaUtils.LogError(TAG, "On equip, couldn't find one of the itemIds "
-                                + "in the category. Continuing to the next one. itemId: "
-                                + goodItemId);
-                    } catch (ClassCastException ex) {
-                        SoomlaUtils.LogDebug(TAG, "On equip, an error occurred. It's a debug "
-                                + "message b/c the VirtualGood may just not be an EquippableVG. "
-                                + "itemId: " + goodItemId);
-                    }
-                }
+                unequipOthers(StoreInfo.getCategoryGoodOrdinals(category), notify);
             } else if (mEquippingModel == EquippingModel.GLOBAL) {
-                for(VirtualGood good : StoreInfo.getGoods()) {
-                    if (good != this &&
-                        good instanceof EquippableVG) {
-                        ((EquippableVG)good).unequip(notify);
-                    }
-                }
+                unequipOthers(StoreInfo.getEquippableGoodOrdinals(), notify);
             }
 
             StorageManager.getVirtualGoodsStorage().equip(this.getItemId(), notify);
@@ -218,6 +194,32 @@ public class EquippableVG extends LifetimeVG{
         StorageManager.getVirtualGoodsStorage().unequip(this.getItemId(), notify);
     }
 
+    /**
+     * Unequips the goods among the given ones that are currently equipped, except for this one.
+     * Only the equipped goods are visited, not all the given ones.
+     *
+     * @param goodOrdinals the ordinals of the goods to unequip
+     * @param notify if true post event to bus
+     */
+    private void unequipOthers(BitSet goodOrdinals, boolean notify) {
+        goodOrdinals.clear(getOrdinal());
+        BitSet equipped = StorageManager.getVirtualGoodsStorage().getEquippedGoods(goodOrdinals);
+        for (int o = equipped.nextSetBit(0); o >= 0; o = equipped.nextSetBit(o + 1)) {
+            String goodItemId = StoreInfo.getItemIdByOrdinal(o);
+            VirtualItem good = StoreInfo.findVirtualItem(goodItemId);
+            if (good instanceof EquippableVG) {
+                ((EquippableVG) good).unequip(notify);
+            } else if (good == null) {
+                SoomlaUtils.LogError(TAG, "On equip, couldn't find one of the equipped itemIds. "
+                        + "Continuing to the next one. itemId: " + goodItemId);
+            } else {
+                SoomlaUtils.LogDebug(TAG, "On equip, an error occurred. It's a debug "
+                        + "message b/c the VirtualGood may just not be an EquippableVG. "
+                        + "itemId: " + goodItemId);
+            }
+        }
+    }
+
     /**
      * EquippingModel is the way EquippableVG is equipped.
      * LOCAL    - The current EquippableVG's equipping status doesn't affect any other EquippableVG.
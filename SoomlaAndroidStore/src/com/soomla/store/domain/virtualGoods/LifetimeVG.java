@@ -93,10 +93,10 @@ import org.json.JSONObject;
             amount = 1;
         }
 
-        int balance = StorageManager.getVirtualGoodsStorage().getBalance(this.getItemId());
+        int balance = StorageManager.getVirtualGoodsStorage().getBalance(this);
 
         if (balance < 1) {
-            return StorageManager.getVirtualGoodsStorage().add(this.getItemId(), amount, notify);
+            return StorageManager.getVirtualGoodsStorage().add(this, amount, notify);
         }
         return 1;
     }
@@ -115,10 +115,10 @@ import org.json.JSONObject;
             amount = 1;
         }
 
-        int balance = StorageManager.getVirtualGoodsStorage().getBalance(this.getItemId());
+        int balance = StorageManager.getVirtualGoodsStorage().getBalance(this);
 
         if (balance > 0) {
-            return StorageManager.getVirtualGoodsStorage().remove(this.getItemId(), amount, notify);
+            return StorageManager.getVirtualGoodsStorage().remove(this, amount, notify);
         }
         return 0;
     }
@@ -134,7 +134,7 @@ import org.json.JSONObject;
      */
     @Override
     protected boolean canBuy() {
-        int balance = StorageManager.getVirtualGoodsStorage().getBalance(this.getItemId());
+        int balance = StorageManager.getVirtualGoodsStorage().getBalance(this);
 
         return balance < 1;
     }
@@ -22,7 +22,6 @@ import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.StoreJSONConsts;
 import com.soomla.store.domain.PurchasableVirtualItem;
 import com.soomla.store.domain.VirtualItem;
-import com.soomla.store.exceptions.VirtualItemNotFoundException;
 import com.soomla.store.purchaseTypes.PurchaseType;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -111,14 +110,12 @@ public class SingleUsePackVG extends VirtualGood {
      */
     @Override
     public int give(int amount, boolean notify) {
-        SingleUseVG good = null;
-        try {
-            good = (SingleUseVG) StoreInfo.getVirtualItem(mGoodItemId);
-        } catch (VirtualItemNotFoundException e) {
+        SingleUseVG good = getLinkedGood();
+        if (good == null) {
             SoomlaUtils.LogError(TAG, "SingleUseVG with itemId: " + mGoodItemId + " doesn't exist! Can't give this pack.");
             return 0;
         }
-        return StorageManager.getVirtualGoodsStorage().add(good.getItemId(), mGoodAmount*amount, notify);
+        return StorageManager.getVirtualGoodsStorage().add(good, mGoodAmount*amount, notify);
     }
 
     /**
@@ -126,14 +123,12 @@ public class SingleUsePackVG extends VirtualGood {
      */
     @Override
     public int take(int amount, boolean notify) {
-        SingleUseVG good = null;
-        try {
-            good = (SingleUseVG)StoreInfo.getVirtualItem(mGoodItemId);
-        } catch (VirtualItemNotFoundException e) {
+        SingleUseVG good = getLinkedGood();
+        if (good == null) {
             SoomlaUtils.LogError(TAG, "SingleUseVG with itemId: " + mGoodItemId + " doesn't exist! Can't take this pack.");
             return 0;
         }
-        return StorageManager.getVirtualGoodsStorage().remove(good.getItemId(), mGoodAmount*amount, notify);
+        return StorageManager.getVirtualGoodsStorage().remove(good, mGoodAmount*amount, notify);
     }
 
     /**
@@ -144,6 +139,19 @@ public class SingleUsePackVG extends VirtualGood {
         return true;
     }
 
+    /**
+     * Retrieves the <code>SingleUseVG</code> of this pack.
+     *
+     * The store links its items when it loads its metadata. An item created or replaced outside
+     * of the metadata isn't linked, so its good is looked up instead.
+     *
+     * @return the good, or null if there's none
+     */
+    private SingleUseVG getLinkedGood() {
+        SingleUseVG good = mGood;
+        return good != null ? good : StoreInfo.findVirtualItem(mGoodItemId, SingleUseVG.class);
+    }
+
 
     /** Setters and Getters **/
 
@@ -155,6 +163,17 @@ public class SingleUsePackVG extends VirtualGood {
         return mGoodAmount;
     }
 
+    /**
+     * Links this pack to its <code>SingleUseVG</code>. The store links its items when it loads
+     * its metadata.
+     *
+     * @param good the <code>SingleUseVG</code> with this pack's good itemId, or null if there's
+     *             none
+     */
+    public void setGood(SingleUseVG good) {
+        mGood = good;
+    }
+
 
     /** Private Members **/
 
@@ -162,5 +181,7 @@ public class SingleUsePackVG extends VirtualGood {
 
     private String mGoodItemId; //the itemId of the SingleUseVG associated with this Pack.
 
+    private SingleUseVG mGood; //the SingleUseVG associated with this Pack, once linked.
+
     private int mGoodAmount; //the number of SingleUseVGs in the pack.
 }
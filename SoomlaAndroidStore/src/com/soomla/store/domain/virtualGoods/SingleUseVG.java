@@ -78,7 +78,7 @@ public class SingleUseVG extends VirtualGood{
      */
     @Override
     public int give(int amount, boolean notify) {
-        return StorageManager.getVirtualGoodsStorage().add(this.getItemId(), amount, notify);
+        return StorageManager.getVirtualGoodsStorage().add(this, amount, notify);
     }
 
     /**
@@ -86,7 +86,7 @@ public class SingleUseVG extends VirtualGood{
      */
     @Override
     public int take(int amount, boolean notify) {
-        return StorageManager.getVirtualGoodsStorage().remove(this.getItemId(), amount, notify);
+        return StorageManager.getVirtualGoodsStorage().remove(this, amount, notify);
     }
 
     /**
@@ -23,7 +23,7 @@ import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.StoreJSONConsts;
 import com.soomla.store.domain.PurchasableVirtualItem;
 import com.soomla.store.domain.VirtualItem;
-import com.soomla.store.exceptions.VirtualItemNotFoundException;
+import com.soomla.store.exceptions.TransactionConflictException;
 import com.soomla.store.purchaseTypes.PurchaseType;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -137,18 +137,32 @@ public class UpgradeVG extends LifetimeVG {
     public int give(int amount, boolean notify) {
         SoomlaUtils.LogDebug(TAG, "Assigning " + getName() + " to: " + mGoodItemId);
 
-        VirtualGood good = null;
-        try {
-            good = (VirtualGood) StoreInfo.getVirtualItem(mGoodItemId);
-        } catch (VirtualItemNotFoundException e) {
+        VirtualGood good = getLinkedGood();
+        if (good == null) {
             SoomlaUtils.LogError(TAG, "VirtualGood with itemId: " + mGoodItemId +
                     " doesn't exist! Can't upgrade.");
             return 0;
         }
 
-        StorageManager.getVirtualGoodsStorage().assignCurrentUpgrade(good.getItemId(), this.getItemId(), notify);
-
-        return super.give(amount, notify);
+        // the upgrade pointer and the upgrade's balance are persisted together
+        for (int attempt = 1; ; attempt++) {
+            StorageManager.beginTransaction();
+            boolean committed = false;
+            try {
+                StorageManager.getVirtualGoodsStorage().assignCurrentUpgrade(good.getItemId(), this.getItemId(), notify);
+
+                int balance = super.give(amount, notify);
+                StorageManager.commitTransaction();
+                committed = true;
+                return balance;
+            } catch (TransactionConflictException e) {
+                StorageManager.retryAfterConflict(e, attempt);
+            } finally {
+                if (!committed && StorageManager.inTransaction()) {
+                    StorageManager.rollbackTransaction();
+                }
+            }
+        }
     }
 
      /**
@@ -165,23 +179,14 @@ public class UpgradeVG extends LifetimeVG {
      */
     @Override
     public int take(int amount, boolean notify) {
-        VirtualGood good = null;
-
-        try {
-            good = (VirtualGood)StoreInfo.getVirtualItem(mGoodItemId);
-        } catch (VirtualItemNotFoundException e) {
+        VirtualGood good = getLinkedGood();
+        if (good == null) {
             SoomlaUtils.LogError(TAG, "VirtualGood with itemId: " + mGoodItemId
                     + " doesn't exist! Can't downgrade.");
             return 0;
         }
 
-        String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good.getItemId());
-        UpgradeVG upgradeVG = null;
-        try {
-            upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(upgradeVGItemId);
-        } catch (VirtualItemNotFoundException e) {
-            SoomlaUtils.LogDebug(TAG, "This is BAD! Can't find the current upgrade (" + upgradeVGItemId + ") of: " + good.getItemId());
-        }
+        UpgradeVG upgradeVG = currentUpgradeOf(good);
 
         // Case: Upgrade is not assigned to this Virtual Good
         if (upgradeVG != this) {
@@ -191,30 +196,45 @@ public class UpgradeVG extends LifetimeVG {
             return 0;
         }
 
-        if (!TextUtils.isEmpty(mPrevItemId)) {
-            UpgradeVG prevUpgradeVG = null;
-            // Case: downgrade is not possible because previous upgrade does not exist
-            try {
-                prevUpgradeVG = (UpgradeVG)StoreInfo.getVirtualItem(mPrevItemId);
-            } catch (VirtualItemNotFoundException e) {
-                SoomlaUtils.LogError(TAG, "Previous UpgradeVG with itemId: " + mPrevItemId
-                        + " doesn't exist! Can't downgrade.");
-                return 0;
-            }
-            // Case: downgrade is successful!
-            SoomlaUtils.LogDebug(TAG, "Downgrading " + good.getName() + " to: "
-                    + prevUpgradeVG.getName());
-            StorageManager.getVirtualGoodsStorage().assignCurrentUpgrade(good.getItemId(),
-                    prevUpgradeVG.getItemId(), notify);
+        UpgradeVG prevUpgradeVG = getLinkedPrevUpgrade();
+        // Case: downgrade is not possible because previous upgrade does not exist
+        if (prevUpgradeVG == null && !TextUtils.isEmpty(mPrevItemId)) {
+            SoomlaUtils.LogError(TAG, "Previous UpgradeVG with itemId: " + mPrevItemId
+                    + " doesn't exist! Can't downgrade.");
+            return 0;
         }
 
-        // Case: first Upgrade in the series - so we downgrade to NO upgrade.
-        else {
-            SoomlaUtils.LogDebug(TAG, "Downgrading " + good.getName() + " to NO-UPGRADE");
-            StorageManager.getVirtualGoodsStorage().removeUpgrades(good.getItemId(), notify);
+        // the upgrade pointer and the upgrade's balance are persisted together
+        for (int attempt = 1; ; attempt++) {
+            StorageManager.beginTransaction();
+            boolean committed = false;
+            try {
+                if (prevUpgradeVG != null) {
+                    // Case: downgrade is successful!
+                    SoomlaUtils.LogDebug(TAG, "Downgrading " + good.getName() + " to: "
+                            + prevUpgradeVG.getName());
+                    StorageManager.getVirtualGoodsStorage().assignCurrentUpgrade(good.getItemId(),
+                            prevUpgradeVG.getItemId(), notify);
+                }
+
+                // Case: first Upgrade in the series - so we downgrade to NO upgrade.
+                else {
+                    SoomlaUtils.LogDebug(TAG, "Downgrading " + good.getName() + " to NO-UPGRADE");
+                    StorageManager.getVirtualGoodsStorage().removeUpgrades(good.getItemId(), notify);
+                }
+
+                int balance = super.take(amount, notify);
+                StorageManager.commitTransaction();
+                committed = true;
+                return balance;
+            } catch (TransactionConflictException e) {
+                StorageManager.retryAfterConflict(e, attempt);
+            } finally {
+                if (!committed && StorageManager.inTransaction()) {
+                    StorageManager.rollbackTransaction();
+                }
+            }
         }
-
-        return super.take(amount, notify);
     }
 
     /**
@@ -227,28 +247,78 @@ public class UpgradeVG extends LifetimeVG {
      */
     @Override
     protected boolean canBuy() {
-        VirtualGood good = null;
-        try {
-            good = (VirtualGood)StoreInfo.getVirtualItem(mGoodItemId);
-        } catch (VirtualItemNotFoundException e) {
+        VirtualGood good = getLinkedGood();
+        if (good == null) {
             SoomlaUtils.LogError(TAG, "VirtualGood with itemId: " + mGoodItemId +
                     " doesn't exist! Returning NO (can't buy).");
             return false;
         }
 
-        String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good.getItemId());
-        UpgradeVG upgradeVG = null;
-        try {
-            upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(upgradeVGItemId);
-        } catch (VirtualItemNotFoundException e) {
+        UpgradeVG upgradeVG = currentUpgradeOf(good);
+
+        // an upgrade can be bought only one level above or below the current one
+        int level = StoreInfo.getUpgradeLevel(this);
+        int currentLevel = upgradeVG != null ? StoreInfo.getUpgradeLevel(upgradeVG) : 0;
+        if (level > 0 && (upgradeVG == null || currentLevel > 0)) {
+            return Math.abs(level - currentLevel) == 1 && super.canBuy();
+        }
+
+        // a series that isn't reachable from its first upgrade has no levels, so its upgrades
+        // are checked against their neighbours
+        return isNextToCurrentUpgrade(upgradeVG) && super.canBuy();
+    }
+
+    /**
+     * Checks if this upgrade comes right before or after the given current upgrade of the good,
+     * or is the first upgrade when the good has none.
+     *
+     * @param upgradeVG the current upgrade of the good, or null if it has none
+     * @return true if this upgrade is next to the current one, false otherwise
+     */
+    private boolean isNextToCurrentUpgrade(UpgradeVG upgradeVG) {
+        if (upgradeVG == null) {
+            return TextUtils.isEmpty(mPrevItemId);
+        }
+        return getItemId().equals(upgradeVG.getNextItemId())
+                || getItemId().equals(upgradeVG.getPrevItemId());
+    }
+
+    /**
+     * Retrieves the current upgrade of the given good.
+     *
+     * @return the current upgrade, or null if the good has none
+     */
+    private static UpgradeVG currentUpgradeOf(VirtualGood good) {
+        String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good);
+        UpgradeVG upgradeVG = StoreInfo.findVirtualItem(upgradeVGItemId, UpgradeVG.class);
+        if (upgradeVG == null && !TextUtils.isEmpty(upgradeVGItemId)) {
             SoomlaUtils.LogDebug(TAG, "This is BAD! Can't find the current upgrade (" + upgradeVGItemId + ") of: " + good.getItemId());
         }
+        return upgradeVG;
+    }
 
+    /**
+     * Retrieves the <code>VirtualGood</code> of this upgrade.
+     *
+     * The store links its items when it loads its metadata. An item created or replaced outside
+     * of the metadata isn't linked, so its good is looked up instead.
+     *
+     * @return the good, or null if there's none
+     */
+    private VirtualGood getLinkedGood() {
+        VirtualGood good = mGood;
+        return good != null ? good : StoreInfo.findVirtualItem(mGoodItemId, VirtualGood.class);
+    }
 
-        return ((upgradeVG == null && TextUtils.isEmpty(mPrevItemId)) ||
-               (upgradeVG != null && ((upgradeVG.getNextItemId().equals(getItemId())) ||
-                       (upgradeVG.getPrevItemId().equals(getItemId())))))
-                && super.canBuy();
+    /**
+     * Retrieves the upgrade before this one. See {@link #getLinkedGood()}.
+     *
+     * @return the previous upgrade, or null if there's none
+     */
+    private UpgradeVG getLinkedPrevUpgrade() {
+        UpgradeVG prevUpgrade = mPrevUpgrade;
+        return prevUpgrade != null ? prevUpgrade
+                : StoreInfo.findVirtualItem(mPrevItemId, UpgradeVG.class);
     }
 
     /** Setters and Getters **/
@@ -265,6 +335,18 @@ public class UpgradeVG extends LifetimeVG {
         return mNextItemId;
     }
 
+    /**
+     * Links this upgrade to its <code>VirtualGood</code> and to the upgrade before it. The store
+     * links its items when it loads its metadata.
+     *
+     * @param good the good with this upgrade's good itemId, or null if there's none
+     * @param prevUpgrade the upgrade with this upgrade's previous itemId, or null if there's none
+     */
+    public void setLinks(VirtualGood good, UpgradeVG prevUpgrade) {
+        mGood = good;
+        mPrevUpgrade = prevUpgrade;
+    }
+
 
     /** Private Members **/
 
@@ -272,6 +354,10 @@ public class UpgradeVG extends LifetimeVG {
 
     private String mGoodItemId; //the itemId of the VirtualGood associated with this upgrade
 
+    private VirtualGood mGood; //the VirtualGood associated with this upgrade, once linked
+
+    private UpgradeVG mPrevUpgrade; //the UpgradeVG before, once linked
+
     /**
      * The itemId of the UpgradeVG before, or if this is the first UpgradeVG in the scale then
      * the value is null.
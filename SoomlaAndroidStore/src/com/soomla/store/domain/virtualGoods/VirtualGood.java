@@ -71,7 +71,7 @@ public abstract class VirtualGood extends PurchasableVirtualItem {
      */
     @Override
     public int resetBalance(int balance, boolean notify) {
-        return StorageManager.getVirtualGoodsStorage().setBalance(this.getItemId(), balance, notify);
+        return StorageManager.getVirtualGoodsStorage().setBalance(this, balance, notify);
     }
 
     /** Private Members **/
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.events;
+
+import com.soomla.events.SoomlaEvent;
+
+/**
+ * This event is fired when the balances, equipping statuses and upgrades of all the items in
+ * <code>StoreInfo</code> were loaded to memory. From this point on, reading them doesn't touch
+ * the database. It's posted from the thread that prefetched, usually a background one.
+ */
+public class InventoryPrefetchedEvent extends SoomlaEvent {
+    public InventoryPrefetchedEvent() {
+        this(null);
+    }
+
+    public InventoryPrefetchedEvent(Object sender) {
+        super(sender);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.exceptions;
+
+/**
+ * This exception is thrown when a storage transaction can't get the lock of an item it's about to
+ * change, because another transaction holds it and may be waiting for one of this transaction's
+ * own locks.
+ *
+ * The transaction must be rolled back. It can then be run again from the start:
+ * <code>StorageManager.runInTransaction</code> does so by itself.
+ */
+public class TransactionConflictException extends RuntimeException {
+
+    /**
+     * Constructor
+     *
+     * @param itemOrdinal ordinal of the item whose lock couldn't be acquired.
+     */
+    public TransactionConflictException(int itemOrdinal) {
+        super("A storage transaction couldn't lock the item with ordinal: " + itemOrdinal
+                + ". Another transaction holds it.");
+    }
+}
@@ -25,7 +25,7 @@ import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.events.ItemPurchaseStartedEvent;
 import com.soomla.store.events.ItemPurchasedEvent;
 import com.soomla.store.exceptions.InsufficientFundsException;
-import com.soomla.store.exceptions.VirtualItemNotFoundException;
+import com.soomla.store.exceptions.TransactionConflictException;
 
 /**
  * This type of purchase allows users to purchase <code>PurchasableVirtualItems</code> with other
@@ -59,10 +59,8 @@ public class PurchaseWithVirtualItem extends PurchaseType {
         SoomlaUtils.LogDebug(TAG, "Trying to buy a " + getAssociatedItem().getName() + " with "
                 + mAmount + " pieces of " + mTargetItemId);
 
-        VirtualItem item = null;
-        try {
-            item = StoreInfo.getVirtualItem(mTargetItemId);
-        } catch (VirtualItemNotFoundException e) {
+        VirtualItem item = getLinkedTargetItem();
+        if (item == null) {
             SoomlaUtils.LogError(TAG, "Target virtual item doesn't exist !");
             return;
         }
@@ -72,17 +70,50 @@ public class PurchaseWithVirtualItem extends PurchaseType {
         VirtualItemStorage storage = StorageManager.getVirtualItemStorage(item);
 
         assert storage != null;
-        int balance = storage.getBalance(item.getItemId());
-        if (balance < mAmount){
-            throw new InsufficientFundsException(mTargetItemId);
-        }
-
-        storage.remove(item.getItemId(), mAmount);
 
-        getAssociatedItem().give(1);
+        // paying and receiving are persisted together, so a killed process can't keep just one.
+        // The balance is checked under the transaction's lock on the target item, so no other
+        // purchase can spend it in between.
+        for (int attempt = 1; ; attempt++) {
+            StorageManager.beginTransaction();
+            boolean committed = false;
+            try {
+                int balance = storage.getBalanceForUpdate(item);
+                if (balance < mAmount){
+                    throw new InsufficientFundsException(mTargetItemId);
+                }
+
+                storage.remove(item, mAmount, true);
+
+                getAssociatedItem().give(1);
+
+                StorageManager.commitTransaction();
+                committed = true;
+                break;
+            } catch (TransactionConflictException e) {
+                StorageManager.retryAfterConflict(e, attempt);
+            } finally {
+                if (!committed && StorageManager.inTransaction()) {
+                    StorageManager.rollbackTransaction();
+                }
+            }
+        }
         BusProvider.getInstance().post(new ItemPurchasedEvent(getAssociatedItem().getItemId(), payload));
     }
 
+    /**
+     * Retrieves the target item of this purchase type.
+     *
+     * The store links its items when it loads its metadata. A purchase type created or replaced outside
+     * of the metadata isn't linked, so its target item is looked up instead.
+     *
+     * @return the target item, or null if there's none
+     */
+    private VirtualItem getLinkedTargetItem() {
+        VirtualItem targetItem = mTargetItem;
+        return targetItem != null ? targetItem : StoreInfo.findVirtualItem(mTargetItemId);
+    }
+
 
     /** Setters and Getters */
 
@@ -94,6 +125,16 @@ public class PurchaseWithVirtualItem extends PurchaseType {
         return mAmount;
     }
 
+    /**
+     * Links this purchase type to its target item. The store links its items when it loads its
+     * metadata.
+     *
+     * @param targetItem the item with this purchase's target itemId, or null if there's none
+     */
+    public void setTargetItem(VirtualItem targetItem) {
+        mTargetItem = targetItem;
+    }
+
     public void setAmount(int mAmount) {
         this.mAmount = mAmount;
     }
@@ -107,5 +148,8 @@ public class PurchaseWithVirtualItem extends PurchaseType {
     //the itemId of the VirtualItem that is used to "pay" with in order to make the purchase
     private String mTargetItemId;
 
+    //the VirtualItem that is used to "pay" with, once linked
+    private VirtualItem mTargetItem;
+
     private int mAmount; //the number of items to purchase.
 }
@@ -0,0 +1,64 @@
+package com.soomla.store.data;
+
+import com.soomla.store.domain.MarketItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds catalogs with every kind of item, for the metadata format tests and benchmark.
+ */
+class LargeCatalog {
+
+    /**
+     * Creates a catalog with one currency, 100 currency packs, and the given number of goods of
+     * each kind (single use, lifetime, equippable, pack and upgrade). Each single use good and
+     * the equippable of the same number share a category.
+     */
+    static StoreCatalog create(int goodsPerType) {
+        List<VirtualCurrency> currencies = new ArrayList<VirtualCurrency>();
+        List<VirtualCurrencyPack> packs = new ArrayList<VirtualCurrencyPack>();
+        List<VirtualGood> goods = new ArrayList<VirtualGood>();
+        List<VirtualCategory> categories = new ArrayList<VirtualCategory>();
+
+        currencies.add(new VirtualCurrency("Coins", "", "bench_coin"));
+        for (int i = 0; i < 100; i++) {
+            packs.add(new VirtualCurrencyPack("Pack " + i, "A pack of coins", "bench_pack_" + i,
+                    100 * i, "bench_coin",
+                    new PurchaseWithMarket(new MarketItem("bench.pack." + i, 0.99))));
+        }
+
+        for (int i = 0; i < goodsPerType; i++) {
+            String id = "bench_good_" + i;
+            ArrayList<String> categoryGoods = new ArrayList<String>();
+
+            goods.add(new SingleUseVG("Single use " + i, "Used once", id + "_su",
+                    new PurchaseWithVirtualItem("bench_coin", i)));
+            goods.add(new LifetimeVG("Lifetime " + i, "Owned forever", id + "_lt",
+                    new PurchaseWithMarket(new MarketItem("bench.lt." + i, 1.99))));
+            goods.add(new EquippableVG(EquippableVG.EquippingModel.CATEGORY, "Equippable " + i,
+                    "Can be equipped", id + "_eq", new PurchaseWithVirtualItem("bench_coin", i)));
+            goods.add(new SingleUsePackVG(id + "_su", 5, "Pack " + i, "Five of a kind",
+                    id + "_pa", new PurchaseWithVirtualItem("bench_coin", 5 * i)));
+            goods.add(new UpgradeVG(id + "_su", "", "", "Upgrade " + i, "The only upgrade",
+                    id + "_up", new PurchaseWithVirtualItem("bench_coin", i)));
+
+            categoryGoods.add(id + "_su");
+            categoryGoods.add(id + "_eq");
+            categories.add(new VirtualCategory("Category " + i, categoryGoods));
+        }
+
+        return new StoreCatalog(currencies, packs, goods, categories);
+    }
+}
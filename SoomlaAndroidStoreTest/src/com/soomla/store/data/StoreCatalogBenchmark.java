@@ -0,0 +1,112 @@
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.json.JSONObject;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * Compares the ways of loading the store's metadata on a catalog of a few MB: streaming the JSON,
+ * reading a whole JSON tree, indexing the JSON lazily, and reading the binary form. Logs the
+ * time and peak heap of each.
+ *
+ * It takes a while and its numbers depend on the machine, so it's not part of the test run.
+ * Remove the <code>@Ignore</code> locally to run it.
+ */
+@Ignore("benchmark, run by hand")
+@RunWith(RobolectricTestRunner.class)
+public class StoreCatalogBenchmark {
+
+    private static final String TAG = "SOOMLA StoreCatalogBenchmark";
+
+    private static final int GOODS_PER_TYPE = 4000;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void benchmarkLoadingPaths() throws Exception {
+        StoreCatalog catalog = LargeCatalog.create(GOODS_PER_TYPE);
+        String json = catalog.toJSONObject().toString();
+        byte[] binary = StoreBinaryFormat.write(catalog);
+        SoomlaUtils.LogDebug(TAG, "store metadata JSON: " + json.length() / 1024 + " KB, binary: "
+                + binary.length / 1024 + " KB");
+
+        // warm up all the paths before measuring
+        StoreJSONReader.read(json);
+        StoreJSONReader.read(new JSONObject(json));
+        StoreBinaryFormat.read(binary);
+        StoreJSONReader.read(json, true).getVirtualItem("bench_good_0_su");
+
+        long streamedNanos = 0;
+        long treeNanos = 0;
+        long binaryNanos = 0;
+        long lazyNanos = 0;
+        long streamedPeak = 0;
+        long treePeak = 0;
+        long binaryPeak = 0;
+        long lazyPeak = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long heap = resetPeakHeap();
+            long start = System.nanoTime();
+            StoreJSONReader.read(json);
+            streamedNanos += System.nanoTime() - start;
+            streamedPeak = Math.max(streamedPeak, peakHeap() - heap);
+
+            heap = resetPeakHeap();
+            start = System.nanoTime();
+            StoreJSONReader.read(new JSONObject(json));
+            treeNanos += System.nanoTime() - start;
+            treePeak = Math.max(treePeak, peakHeap() - heap);
+
+            heap = resetPeakHeap();
+            start = System.nanoTime();
+            StoreBinaryFormat.read(binary);
+            binaryNanos += System.nanoTime() - start;
+            binaryPeak = Math.max(binaryPeak, peakHeap() - heap);
+
+            // up to the first item a session needs
+            heap = resetPeakHeap();
+            start = System.nanoTime();
+            StoreJSONReader.read(json, true).getVirtualItem("bench_good_" + i + "_lt");
+            lazyNanos += System.nanoTime() - start;
+            lazyPeak = Math.max(lazyPeak, peakHeap() - heap);
+        }
+
+        logResult("streaming", streamedNanos, streamedPeak);
+        logResult("JSON tree", treeNanos, treePeak);
+        logResult("binary", binaryNanos, binaryPeak);
+        logResult("lazy JSON", lazyNanos, lazyPeak);
+    }
+
+    private static void logResult(String path, long nanos, long peak) {
+        SoomlaUtils.LogDebug(TAG, path + ": " + nanos / ROUNDS / 1000000 + " ms, peak heap +"
+                + peak / 1024 + " KB");
+    }
+
+    private static long resetPeakHeap() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,102 @@
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualItem;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that the ways of loading the store's metadata (streaming the JSON, reading a whole JSON
+ * tree, indexing the JSON lazily, and reading the binary form) give the same catalog. See
+ * {@link StoreCatalogBenchmark} for their time and memory.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StoreCatalogFormatsTest {
+
+    private static final int GOODS_PER_TYPE = 500;
+
+    private static StoreCatalog sCatalog;
+    private static String sJson;
+    private static byte[] sBinary;
+
+    @BeforeClass
+    public static void createCatalog() throws Exception {
+        sCatalog = LargeCatalog.create(GOODS_PER_TYPE);
+        sJson = sCatalog.toJSONObject().toString();
+        sBinary = StoreBinaryFormat.write(sCatalog);
+    }
+
+    @Test
+    public void shouldReadTheSameCatalogAsTheJSONTree() throws Exception {
+        StoreCatalog streamed = StoreJSONReader.read(sJson);
+        StoreCatalog tree = StoreJSONReader.read(new JSONObject(sJson));
+
+        assertSameItems(streamed.getCurrencies(), tree.getCurrencies());
+        assertSameItems(streamed.getCurrencyPacks(), tree.getCurrencyPacks());
+        assertSameItems(streamed.getGoods(), tree.getGoods());
+        assertThat(streamed.getCategories().size(), equalTo(tree.getCategories().size()));
+        for (int i = 0; i < tree.getCategories().size(); i++) {
+            assertThat(streamed.getCategories().get(i).toJSONObject().toString(),
+                    equalTo(tree.getCategories().get(i).toJSONObject().toString()));
+        }
+        assertThat(streamed.toJSONObject().toString(), equalTo(tree.toJSONObject().toString()));
+    }
+
+    @Test
+    public void shouldReadTheSameCatalogFromTheBinaryForm() throws Exception {
+        StoreCatalog binary = StoreBinaryFormat.read(sBinary);
+
+        assertSameItems(binary.getCurrencies(), sCatalog.getCurrencies());
+        assertSameItems(binary.getCurrencyPacks(), sCatalog.getCurrencyPacks());
+        assertSameItems(binary.getGoods(), sCatalog.getGoods());
+        assertThat(binary.toJSONObject().toString(), equalTo(sJson));
+    }
+
+    @Test
+    public void shouldCreateLazyItemsOnlyWhenAccessed() throws Exception {
+        StoreCatalog lazy = StoreJSONReader.read(sJson, true);
+        StoreCatalog eager = StoreJSONReader.read(sJson);
+
+        VirtualItem good = lazy.getVirtualItem("bench_good_7_lt");
+        assertThat(good.toJSONObject().toString(),
+                equalTo(eager.getVirtualItem("bench_good_7_lt").toJSONObject().toString()));
+        assertThat(lazy.getPurchasableItem("bench.lt.7") == good, equalTo(true));
+        assertThat(lazy.getPosition("bench_good_7_lt"),
+                equalTo(eager.getPosition("bench_good_7_lt")));
+        assertThat(lazy.getCategory("bench_good_7_eq").getName(), equalTo("Category 7"));
+        assertThat(lazy.getGoodUpgradeChain("bench_good_7_su")[0].getItemId(),
+                equalTo("bench_good_7_up"));
+        assertThat(lazy.getAllProductIds().size(), equalTo(eager.getAllProductIds().size()));
+
+        // listing the goods creates the rest, keeping the items that were already created
+        assertSameItems(lazy.getGoods(), eager.getGoods());
+        assertThat(lazy.getGoods().contains(good), equalTo(true));
+        assertThat(lazy.toJSONObject().toString(), equalTo(eager.toJSONObject().toString()));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectACorruptedBinaryForm() throws Exception {
+        byte[] corrupted = sBinary.clone();
+        corrupted[corrupted.length / 2] ^= 1;
+        StoreBinaryFormat.read(corrupted);
+    }
+
+    private static void assertSameItems(List<? extends VirtualItem> actual,
+                                        List<? extends VirtualItem> expected) {
+        assertThat(actual.size(), equalTo(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.get(i).getClass().getName(),
+                    equalTo(expected.get(i).getClass().getName()));
+            assertThat(actual.get(i).toJSONObject().toString(),
+                    equalTo(expected.get(i).toJSONObject().toString()));
+        }
+    }
+}
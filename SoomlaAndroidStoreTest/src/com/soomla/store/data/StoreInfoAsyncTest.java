@@ -0,0 +1,107 @@
+package com.soomla.store.data;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.IStoreAssets;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.test.InventoryTestAssets;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StoreInfoAsyncTest {
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+    }
+
+    @Test
+    public void shouldWaitForTheCatalogLongerThanTheWarning() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        StoreInfo.setStoreAssetsAsync(new SlowAssets(StoreInfo.LOAD_WAIT_WARNING_MS + 500),
+                executor, null);
+
+        // read while the catalog is still loading
+        assertThat(StoreInfo.getVirtualItem(InventoryTestAssets.COIN).getItemId(),
+                equalTo(InventoryTestAssets.COIN));
+        assertThat(StoreInfo.getCurrencies().size(), equalTo(2));
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldReportAssetsThatCantBeLoaded() throws Exception {
+        final String[] result = new String[1];
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        StoreInfo.setStoreAssetsAsync(null, executor, new StoreInfo.StoreAssetsLoadListener() {
+            @Override
+            public void success() {
+                result[0] = "loaded";
+            }
+
+            @Override
+            public void fail(String message) {
+                result[0] = message;
+            }
+        });
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+
+        assertThat(result[0], equalTo("The given store assets can't be null!"));
+    }
+
+    /**
+     * The test store, taking the given time to list its currencies.
+     */
+    private static class SlowAssets implements IStoreAssets {
+
+        SlowAssets(long delayMs) {
+            mDelayMs = delayMs;
+        }
+
+        @Override
+        public int getVersion() {
+            return mAssets.getVersion();
+        }
+
+        @Override
+        public VirtualCurrency[] getCurrencies() {
+            try {
+                Thread.sleep(mDelayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mAssets.getCurrencies();
+        }
+
+        @Override
+        public VirtualGood[] getGoods() {
+            return mAssets.getGoods();
+        }
+
+        @Override
+        public VirtualCurrencyPack[] getCurrencyPacks() {
+            return mAssets.getCurrencyPacks();
+        }
+
+        @Override
+        public VirtualCategory[] getCategories() {
+            return mAssets.getCategories();
+        }
+
+        private final long mDelayMs;
+        private final IStoreAssets mAssets = new InventoryTestAssets();
+    }
+}
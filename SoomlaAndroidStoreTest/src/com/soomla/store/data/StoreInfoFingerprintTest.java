@@ -0,0 +1,68 @@
+package com.soomla.store.data;
+
+import com.soomla.SoomlaApp;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.IStoreAssets;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.test.InventoryTestAssets;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static com.soomla.test.InventoryTestAssets.COIN;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StoreInfoFingerprintTest {
+
+    private String mAssetsJSON;
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        // the JSON is built straight from the assets, so the metadata of other tests can't leak in
+        IStoreAssets assets = new InventoryTestAssets();
+        mAssetsJSON = new StoreCatalog(Arrays.asList(assets.getCurrencies()),
+                Arrays.asList(assets.getCurrencyPacks()),
+                Arrays.asList(assets.getGoods()),
+                Arrays.asList(assets.getCategories())).toJSONObject().toString();
+    }
+
+    @Test
+    public void shouldReuseTheMetadataForTheSameJSON() throws Exception {
+        StoreInfo.setStoreAssets(0, mAssetsJSON);
+        StoreInfo.save(new VirtualCurrency("Gold", "", COIN));
+
+        // the metadata in the database is used, not the JSON
+        StoreInfo.setStoreAssets(0, mAssetsJSON);
+        assertThat(StoreInfo.getVirtualItem(COIN).getName(), equalTo("Gold"));
+    }
+
+    @Test
+    public void shouldKeepFingerprintedMetadataInBinaryForm() throws Exception {
+        StoreInfo.setStoreAssets(0, mAssetsJSON);
+        assertThat(KeyValueStorage.getValue("meta.storeinfo"), nullValue());
+
+        // saving it again keeps it binary, even with binaryMetadata off
+        StoreInfo.save();
+        assertThat(KeyValueStorage.getValue("meta.storeinfo"), nullValue());
+        assertThat(KeyValueStorage.getValue("meta.storeinfo.bin") != null, equalTo(true));
+    }
+
+    @Test
+    public void shouldRebuildTheMetadataWhenTheJSONChanges() throws Exception {
+        StoreInfo.setStoreAssets(0, mAssetsJSON);
+        StoreInfo.save(new VirtualCurrency("Gold", "", COIN));
+
+        // the same version, with a changed JSON
+        StoreInfo.setStoreAssets(0, mAssetsJSON.replace("\"Coins\"", "\"Copper\""));
+        assertThat(StoreInfo.getVirtualItem(COIN).getName(), equalTo("Copper"));
+        assertThat(KeyValueStorage.getValue("meta.storeinfo.items"), nullValue());
+    }
+}
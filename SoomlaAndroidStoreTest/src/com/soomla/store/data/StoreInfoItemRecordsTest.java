@@ -0,0 +1,74 @@
+package com.soomla.store.data;
+
+import com.soomla.SoomlaApp;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+import com.soomla.test.InventoryTestAssets;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.soomla.test.InventoryTestAssets.COIN;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StoreInfoItemRecordsTest {
+
+    private static final String RECORDS_KEY = "meta.storeinfo.items";
+    private static final String RECORD_KEY_PREFIX = "meta.storeinfo.item.";
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        // start from the store assets, without the metadata of other tests
+        for (String key : KeyValueStorage.getEncryptedKeys()) {
+            if (key.startsWith("meta.storeinfo")) {
+                KeyValueStorage.deleteKeyValue(key);
+            }
+        }
+        StoreInfo.setStoreAssets(new InventoryTestAssets());
+    }
+
+    @Test
+    public void shouldApplyTheItemRecordsOnLoad() throws Exception {
+        StoreInfo.save(new VirtualCurrency("Gold", "", COIN));
+        assertThat(KeyValueStorage.getValue(RECORDS_KEY), notNullValue());
+        assertThat(KeyValueStorage.getValue(RECORD_KEY_PREFIX + COIN), notNullValue());
+
+        StoreInfo.loadFromDB();
+        assertThat(StoreInfo.getVirtualItem(COIN).getName(), equalTo("Gold"));
+
+        // the full metadata still has the item as it was
+        KeyValueStorage.deleteKeyValue(RECORDS_KEY);
+        StoreInfo.loadFromDB();
+        assertThat(StoreInfo.getVirtualItem(COIN).getName(), equalTo("Coins"));
+    }
+
+    @Test
+    public void shouldCompactTheRecordsIntoTheMetadata() throws Exception {
+        for (int i = 0; i < 64; i++) {
+            StoreInfo.save(newGood(i));
+        }
+        assertThat(KeyValueStorage.getValue(RECORD_KEY_PREFIX + "record_good_0"), notNullValue());
+
+        StoreInfo.save(newGood(64));
+        assertThat(KeyValueStorage.getValue(RECORDS_KEY), nullValue());
+        assertThat(KeyValueStorage.getValue(RECORD_KEY_PREFIX + "record_good_0"), nullValue());
+
+        StoreInfo.loadFromDB();
+        assertThat(StoreInfo.getVirtualItem("record_good_0"), notNullValue());
+        assertThat(StoreInfo.getVirtualItem("record_good_64"), notNullValue());
+    }
+
+    private static SingleUseVG newGood(int i) {
+        return new SingleUseVG("Good " + i, "", "record_good_" + i,
+                new PurchaseWithVirtualItem(COIN, 1));
+    }
+}
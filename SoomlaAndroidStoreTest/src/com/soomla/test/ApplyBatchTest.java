@@ -0,0 +1,114 @@
+package com.soomla.test;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaApp;
+import com.soomla.store.InventoryOperation;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.events.CurrencyBalanceChangedEvent;
+import com.soomla.store.events.GoodBalanceChangedEvent;
+import com.soomla.store.exceptions.InsufficientFundsException;
+import com.soomla.store.exceptions.NotEnoughGoodsException;
+import com.squareup.otto.Subscribe;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.soomla.test.InventoryTestAssets.*;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class ApplyBatchTest {
+
+    private final List<String> mEvents = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreInfo.setStoreAssets(new InventoryTestAssets());
+        StorageManager.getVirtualCurrencyStorage().setBalance(COIN, 10, false);
+        StorageManager.getVirtualCurrencyStorage().setBalance(GEM, 10, false);
+        StorageManager.getVirtualGoodsStorage().setBalance(POTION, 0, false);
+        StorageManager.getVirtualGoodsStorage().setBalance(SWORD, 0, false);
+        StorageManager.getVirtualGoodsStorage().unequip(SWORD, false);
+        BusProvider.getInstance().register(this);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        BusProvider.getInstance().unregister(this);
+    }
+
+    @Test
+    public void shouldApplyAllTheOperationsWithOneEventPerItem() throws Exception {
+        StoreInventory.applyBatch(Arrays.asList(
+                InventoryOperation.give(COIN, 5),
+                InventoryOperation.give(POTION, 2),
+                InventoryOperation.take(COIN, 12),
+                InventoryOperation.give(POTION, 1)));
+
+        assertThat(StoreInventory.getVirtualItemBalance(COIN), equalTo(3));
+        assertThat(StoreInventory.getVirtualItemBalance(POTION), equalTo(3));
+        assertThat(mEvents.toString(), equalTo("[" + COIN + " 3, " + POTION + " 3]"));
+    }
+
+    @Test
+    public void shouldApplyNothingWhenATakeFails() throws Exception {
+        try {
+            StoreInventory.applyBatch(Arrays.asList(
+                    InventoryOperation.give(COIN, 5),
+                    InventoryOperation.give(POTION, 2),
+                    InventoryOperation.take(GEM, 11)));
+            fail("the batch takes more gems than the user has");
+        } catch (InsufficientFundsException e) {
+            // expected
+        }
+
+        assertThat(StorageManager.inTransaction(), equalTo(false));
+        assertThat(StoreInventory.getVirtualItemBalance(COIN), equalTo(10));
+        assertThat(StoreInventory.getVirtualItemBalance(POTION), equalTo(0));
+        assertThat(StoreInventory.getVirtualItemBalance(GEM), equalTo(10));
+        assertThat(mEvents.size(), equalTo(0));
+    }
+
+    @Test
+    public void shouldCheckEachOperationAgainstTheOnesBeforeIt() throws Exception {
+        try {
+            StoreInventory.applyBatch(Arrays.asList(
+                    InventoryOperation.give(SWORD, 1),
+                    InventoryOperation.take(SWORD, 1),
+                    InventoryOperation.equip(SWORD)));
+            fail("the sword is taken before it's equipped");
+        } catch (NotEnoughGoodsException e) {
+            // expected
+        }
+
+        assertThat(StoreInventory.getVirtualItemBalance(SWORD), equalTo(0));
+        assertThat(StoreInventory.isVirtualGoodEquipped(SWORD), equalTo(false));
+
+        StoreInventory.applyBatch(Arrays.asList(
+                InventoryOperation.give(SWORD, 1),
+                InventoryOperation.equip(SWORD)));
+        assertThat(StoreInventory.isVirtualGoodEquipped(SWORD), equalTo(true));
+    }
+
+    @Subscribe
+    public void onCurrencyBalanceChanged(CurrencyBalanceChangedEvent event) {
+        mEvents.add(event.getCurrencyItemId() + " " + event.getBalance());
+    }
+
+    @Subscribe
+    public void onGoodBalanceChanged(GoodBalanceChangedEvent event) {
+        mEvents.add(event.getGoodItemId() + " " + event.getBalance());
+    }
+}
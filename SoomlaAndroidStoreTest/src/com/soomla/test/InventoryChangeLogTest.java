@@ -0,0 +1,124 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.data.InventoryChange;
+import com.soomla.store.data.InventoryChanges;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.data.VirtualCurrencyStorage;
+import com.soomla.store.data.VirtualGoodsStorage;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static com.soomla.test.InventoryTestAssets.*;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class InventoryChangeLogTest {
+
+    private VirtualCurrencyStorage mStorage;
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreInfo.setStoreAssets(new InventoryTestAssets());
+        mStorage = StorageManager.getVirtualCurrencyStorage();
+        mStorage.setBalance(COIN, 0, false);
+        StorageManager.getVirtualGoodsStorage().setBalance(HAT, 1, false);
+        StorageManager.getVirtualGoodsStorage().unequip(HAT, false);
+        StorageManager.getVirtualGoodsStorage().unequip(SWORD, false);
+        StorageManager.getVirtualGoodsStorage().unequip(SHIELD, false);
+    }
+
+    @Test
+    public void shouldReturnTheChangesSinceAVersion() throws Exception {
+        long version = StoreInventory.getInventoryVersion();
+        mStorage.add(COIN, 5, false);
+        mStorage.setBalance(COIN, 5, false);
+        StoreInventory.equipVirtualGood(HAT);
+
+        InventoryChanges changes = StoreInventory.changesSince(version);
+        assertThat(changes.isFullResyncNeeded(), equalTo(false));
+        assertThat(changes.getVersion(), equalTo(StoreInventory.getInventoryVersion()));
+
+        // setting the same balance again isn't a change
+        List<InventoryChange> list = changes.getChanges();
+        assertThat(list.size(), equalTo(2));
+        assertThat(list.get(0).getKind(), equalTo(InventoryChange.Kind.BALANCE));
+        assertThat(list.get(0).getItemId(), equalTo(COIN));
+        assertThat(list.get(0).getOldValue(), equalTo(0));
+        assertThat(list.get(0).getNewValue(), equalTo(5));
+        assertThat(list.get(1).getKind(), equalTo(InventoryChange.Kind.EQUIPPED));
+        assertThat(list.get(1).getItemId(), equalTo(HAT));
+
+        assertThat(StoreInventory.changesSince(changes.getVersion()).getChanges().size(),
+                equalTo(0));
+    }
+
+    @Test
+    public void shouldRecordSwitchesBetweenUpgradesWithoutLevels() throws Exception {
+        // upgrades that aren't in the metadata (any more) have no level
+        VirtualGoodsStorage goods = StorageManager.getVirtualGoodsStorage();
+        goods.assignCurrentUpgrade(SWORD, "old_sword_skin", false);
+        long version = StoreInventory.getInventoryVersion();
+        goods.assignCurrentUpgrade(SWORD, "new_sword_skin", false);
+        goods.removeUpgrades(SWORD, false);
+
+        List<InventoryChange> list = StoreInventory.changesSince(version).getChanges();
+        assertThat(list.size(), equalTo(2));
+        assertThat(list.get(0).getKind(), equalTo(InventoryChange.Kind.UPGRADE));
+        assertThat(list.get(0).getItemId(), equalTo(SWORD));
+        assertThat(StoreInfo.getItemIdByOrdinal(list.get(0).getOldValue()),
+                equalTo("old_sword_skin"));
+        assertThat(StoreInfo.getItemIdByOrdinal(list.get(0).getNewValue()),
+                equalTo("new_sword_skin"));
+        assertThat(list.get(1).getNewValue(), equalTo(-1));
+    }
+
+    @Test
+    public void shouldAskForAResyncOnceTheLogWrapped() throws Exception {
+        long version = StoreInventory.getInventoryVersion();
+        for (int i = 0; i < StorageManager.INVENTORY_CHANGE_LOG_CAPACITY; i++) {
+            mStorage.add(COIN, 1, false);
+        }
+        assertThat(StoreInventory.changesSince(version).getChanges().size(),
+                equalTo(StorageManager.INVENTORY_CHANGE_LOG_CAPACITY));
+
+        mStorage.add(COIN, 1, false);
+        assertThat(StoreInventory.changesSince(version).isFullResyncNeeded(), equalTo(true));
+        InventoryChanges changes = StoreInventory.changesSince(version + 1);
+        assertThat(changes.isFullResyncNeeded(), equalTo(false));
+        assertThat(changes.getChanges().get(0).getOldValue(), equalTo(1));
+    }
+
+    @Test
+    public void shouldAskForAResyncAfterTheCachesAreCleared() throws Exception {
+        long version = StoreInventory.getInventoryVersion();
+        mStorage.add(COIN, 1, false);
+        StorageManager.clearCaches();
+
+        assertThat(StoreInventory.changesSince(version).isFullResyncNeeded(), equalTo(true));
+
+        version = StoreInventory.getInventoryVersion();
+        mStorage.add(COIN, 1, false);
+        assertThat(StoreInventory.changesSince(version).getChanges().size(), equalTo(1));
+    }
+
+    @Test
+    public void shouldNotRecordRolledBackChanges() throws Exception {
+        long version = StoreInventory.getInventoryVersion();
+        StorageManager.beginTransaction();
+        mStorage.add(COIN, 1, false);
+        StorageManager.rollbackTransaction();
+
+        assertThat(StoreInventory.getInventoryVersion(), equalTo(version));
+        assertThat(StoreInventory.changesSince(version).getChanges().size(), equalTo(0));
+    }
+}
@@ -0,0 +1,86 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.data.InventorySnapshot;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.data.VirtualGoodsStorage;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.soomla.test.InventoryTestAssets.*;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class InventorySnapshotTest {
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreInfo.setStoreAssets(new InventoryTestAssets());
+        VirtualGoodsStorage goods = StorageManager.getVirtualGoodsStorage();
+        StorageManager.getVirtualCurrencyStorage().setBalance(COIN, 10, false);
+        goods.setBalance(SWORD, 1, false);
+        goods.unequip(SWORD, false);
+        goods.removeUpgrades(SWORD, false);
+    }
+
+    @Test
+    public void shouldHoldTheInventoryAsItWas() throws Exception {
+        StorageManager.getVirtualGoodsStorage().equip(SWORD, false);
+        InventorySnapshot snapshot = InventorySnapshot.take();
+        StorageManager.getVirtualCurrencyStorage().add(COIN, 5, false);
+
+        assertThat(snapshot.getBalance(COIN), equalTo(10));
+        assertThat(snapshot.getBalance(SWORD), equalTo(1));
+        assertThat(snapshot.isEquipped(SWORD), equalTo(true));
+        assertThat(snapshot.getUpgradeLevel(SWORD), equalTo(0));
+        assertThat(snapshot.getCurrentUpgrade(SWORD), nullValue());
+        assertThat(snapshot.getBalance("no_such_item"), equalTo(0));
+        assertThat(StoreInventory.changesSince(snapshot.getVersion()).getChanges().size(),
+                equalTo(1));
+    }
+
+    @Test
+    public void shouldSeeTheChangesOfTheCurrentTransaction() throws Exception {
+        StorageManager.beginTransaction();
+        try {
+            StorageManager.getVirtualCurrencyStorage().add(COIN, 5, false);
+            StorageManager.getVirtualGoodsStorage().equip(SWORD, false);
+            StorageManager.getVirtualGoodsStorage().assignCurrentUpgrade(SWORD, SWORD_UPGRADE_2,
+                    false);
+
+            InventorySnapshot snapshot = InventorySnapshot.take();
+            assertThat(snapshot.getBalance(COIN), equalTo(15));
+            assertThat(snapshot.isEquipped(SWORD), equalTo(true));
+            assertThat(snapshot.getUpgradeLevel(SWORD), equalTo(2));
+            assertThat(snapshot.getCurrentUpgrade(SWORD).getItemId(), equalTo(SWORD_UPGRADE_2));
+        } finally {
+            StorageManager.rollbackTransaction();
+        }
+
+        InventorySnapshot snapshot = InventorySnapshot.take();
+        assertThat(snapshot.getBalance(COIN), equalTo(10));
+        assertThat(snapshot.isEquipped(SWORD), equalTo(false));
+        assertThat(snapshot.getUpgradeLevel(SWORD), equalTo(0));
+    }
+
+    @Test
+    public void shouldKeepAStoredUpgradeThatHasNoLevel() throws Exception {
+        // e.g. written by an older version of the metadata
+        StorageManager.getVirtualGoodsStorage().assignCurrentUpgrade(SWORD, "old_sword_upgrade",
+                false);
+
+        InventorySnapshot snapshot = InventorySnapshot.take();
+        assertThat(snapshot.getUpgradeLevel(SWORD), equalTo(0));
+        assertThat(snapshot.getCurrentUpgrade(SWORD), nullValue());
+        assertThat(StoreInventory.allItemsBalances().get(SWORD).get("currentUpgrade"),
+                equalTo((Object) "old_sword_upgrade"));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.test;
+
+import com.soomla.store.IStoreAssets;
+import com.soomla.store.domain.MarketItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A small store for the inventory tests: a currency and its pack, a single use good, two
+ * equippables of one category, a globally equipped one, and a good with two upgrades.
+ */
+public class InventoryTestAssets implements IStoreAssets {
+
+    public static final String COIN = "test_coin";
+    public static final String GEM = "test_gem";
+    public static final String COIN_PACK = "test_coin_pack";
+    public static final String POTION = "test_potion";
+    public static final String SWORD = "test_sword";
+    public static final String SHIELD = "test_shield";
+    public static final String HAT = "test_hat";
+    public static final String SWORD_UPGRADE_1 = "test_sword_up1";
+    public static final String SWORD_UPGRADE_2 = "test_sword_up2";
+
+    @Override
+    public int getVersion() {
+        return 0;
+    }
+
+    @Override
+    public VirtualCurrency[] getCurrencies() {
+        return new VirtualCurrency[] {
+                new VirtualCurrency("Coins", "", COIN),
+                new VirtualCurrency("Gems", "", GEM)
+        };
+    }
+
+    @Override
+    public VirtualGood[] getGoods() {
+        return new VirtualGood[] {
+                new SingleUseVG("Potion", "", POTION, new PurchaseWithVirtualItem(COIN, 10)),
+                new EquippableVG(EquippableVG.EquippingModel.CATEGORY, "Sword", "", SWORD,
+                        new PurchaseWithVirtualItem(COIN, 100)),
+                new EquippableVG(EquippableVG.EquippingModel.CATEGORY, "Shield", "", SHIELD,
+                        new PurchaseWithVirtualItem(COIN, 100)),
+                new EquippableVG(EquippableVG.EquippingModel.GLOBAL, "Hat", "", HAT,
+                        new PurchaseWithVirtualItem(GEM, 1)),
+                new UpgradeVG(SWORD, "", SWORD_UPGRADE_2, "Sword 1", "", SWORD_UPGRADE_1,
+                        new PurchaseWithVirtualItem(COIN, 50)),
+                new UpgradeVG(SWORD, SWORD_UPGRADE_1, "", "Sword 2", "", SWORD_UPGRADE_2,
+                        new PurchaseWithVirtualItem(COIN, 80))
+        };
+    }
+
+    @Override
+    public VirtualCurrencyPack[] getCurrencyPacks() {
+        return new VirtualCurrencyPack[] {
+                new VirtualCurrencyPack("100 coins", "", COIN_PACK, 100, COIN,
+                        new PurchaseWithMarket(new MarketItem("test.coin.pack", 0.99)))
+        };
+    }
+
+    @Override
+    public VirtualCategory[] getCategories() {
+        return new VirtualCategory[] {
+                new VirtualCategory("Weapons", new ArrayList<String>(Arrays.asList(SWORD, SHIELD)))
+        };
+    }
+}
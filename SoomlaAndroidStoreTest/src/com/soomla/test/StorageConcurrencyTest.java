@@ -0,0 +1,109 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.VirtualCurrencyStorage;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StorageConcurrencyTest {
+
+    private static final String CURRENCY_ID = "stress_currency";
+    private static final String OTHER_CURRENCY_ID = "stress_other_currency";
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 500;
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StorageManager.getVirtualCurrencyStorage().setBalance(CURRENCY_ID, 0, false);
+        StorageManager.getVirtualCurrencyStorage().setBalance(OTHER_CURRENCY_ID, 0, false);
+    }
+
+    @Test
+    public void shouldNotLoseConcurrentIncrements() throws Exception {
+        final VirtualCurrencyStorage storage = StorageManager.getVirtualCurrencyStorage();
+
+        runConcurrently(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    storage.add(CURRENCY_ID, 1, false);
+                }
+            }
+        });
+
+        assertThat(storage.getBalance(CURRENCY_ID), equalTo(THREADS * ITERATIONS));
+        assertThat(KeyValueStorage.getValue("currency." + CURRENCY_ID + ".balance"),
+                equalTo("" + THREADS * ITERATIONS));
+    }
+
+    @Test
+    public void shouldNotLoseUpdatesMixedWithTransactions() throws Exception {
+        final VirtualCurrencyStorage storage = StorageManager.getVirtualCurrencyStorage();
+        storage.setBalance(CURRENCY_ID, THREADS * ITERATIONS, false);
+
+        // every round spends 1, grants 2 and moves 1 to the other currency in a transaction:
+        // the balance of each currency grows by exactly 1 per round
+        runConcurrently(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    storage.remove(CURRENCY_ID, 1, false);
+                    storage.add(CURRENCY_ID, 2, false);
+                    StorageManager.runInTransaction(new Runnable() {
+                        @Override
+                        public void run() {
+                            storage.remove(CURRENCY_ID, 1, false);
+                            storage.add(OTHER_CURRENCY_ID, 1, false);
+                        }
+                    });
+                }
+            }
+        });
+
+        assertThat(storage.getBalance(CURRENCY_ID), equalTo(THREADS * ITERATIONS));
+        assertThat(storage.getBalance(OTHER_CURRENCY_ID), equalTo(THREADS * ITERATIONS));
+    }
+
+    private static void runConcurrently(final Runnable work) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        work.run();
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(failures.size(), equalTo(0));
+    }
+}
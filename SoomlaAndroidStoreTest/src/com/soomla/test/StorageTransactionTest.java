@@ -0,0 +1,190 @@
+package com.soomla.test;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaApp;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.data.VirtualCurrencyStorage;
+import com.soomla.store.events.CurrencyBalanceChangedEvent;
+import com.squareup.otto.Subscribe;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.soomla.test.InventoryTestAssets.*;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StorageTransactionTest {
+
+    private static final String JOURNAL_KEY = "meta.storage.journal";
+
+    private final List<String> mEvents = new ArrayList<String>();
+    private VirtualCurrencyStorage mStorage;
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreInfo.setStoreAssets(new InventoryTestAssets());
+        mStorage = StorageManager.getVirtualCurrencyStorage();
+        mStorage.setBalance(COIN, 10, false);
+        mStorage.setBalance(GEM, 10, false);
+        BusProvider.getInstance().register(this);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        BusProvider.getInstance().unregister(this);
+    }
+
+    @Test
+    public void shouldPersistAndNotifyOnlyOnCommit() throws Exception {
+        StorageManager.beginTransaction();
+        mStorage.add(COIN, 5);
+        mStorage.remove(GEM, 3);
+
+        // the transaction's own thread sees its changes, the database doesn't
+        assertThat(mStorage.getBalance(COIN), equalTo(15));
+        assertThat(KeyValueStorage.getValue(balanceKey(COIN)), equalTo("10"));
+        assertThat(mEvents.size(), equalTo(0));
+
+        StorageManager.commitTransaction();
+        assertThat(StorageManager.inTransaction(), equalTo(false));
+        assertThat(KeyValueStorage.getValue(balanceKey(COIN)), equalTo("15"));
+        assertThat(KeyValueStorage.getValue(balanceKey(GEM)), equalTo("7"));
+        assertThat(KeyValueStorage.getValue(JOURNAL_KEY), nullValue());
+        assertThat(mEvents.toString(), equalTo("[" + COIN + " 15, " + GEM + " 7]"));
+    }
+
+    @Test
+    public void shouldDiscardEverythingOnRollback() throws Exception {
+        StorageManager.beginTransaction();
+        mStorage.add(COIN, 5);
+        mStorage.remove(GEM, 3);
+        StorageManager.rollbackTransaction();
+
+        assertThat(StorageManager.inTransaction(), equalTo(false));
+        assertThat(mStorage.getBalance(COIN), equalTo(10));
+        assertThat(mStorage.getBalance(GEM), equalTo(10));
+        assertThat(KeyValueStorage.getValue(balanceKey(COIN)), equalTo("10"));
+        assertThat(mEvents.size(), equalTo(0));
+    }
+
+    @Test
+    public void shouldDiscardTheWholeTransactionOnANestedRollback() throws Exception {
+        StorageManager.beginTransaction();
+        mStorage.add(COIN, 5);
+
+        StorageManager.beginTransaction();
+        mStorage.remove(GEM, 3);
+        StorageManager.rollbackTransaction();
+
+        // the outer commit has nothing left to commit
+        assertThat(StorageManager.inTransaction(), equalTo(false));
+        StorageManager.commitTransaction();
+
+        assertThat(mStorage.getBalance(COIN), equalTo(10));
+        assertThat(mStorage.getBalance(GEM), equalTo(10));
+        assertThat(KeyValueStorage.getValue(balanceKey(COIN)), equalTo("10"));
+        assertThat(mEvents.size(), equalTo(0));
+    }
+
+    @Test
+    public void shouldCommitNestedTransactionsWithTheOutermostOne() throws Exception {
+        StorageManager.beginTransaction();
+        mStorage.add(COIN, 5);
+
+        StorageManager.beginTransaction();
+        mStorage.remove(GEM, 3);
+        StorageManager.commitTransaction();
+        assertThat(KeyValueStorage.getValue(balanceKey(GEM)), equalTo("10"));
+
+        StorageManager.commitTransaction();
+        assertThat(KeyValueStorage.getValue(balanceKey(COIN)), equalTo("15"));
+        assertThat(KeyValueStorage.getValue(balanceKey(GEM)), equalTo("7"));
+    }
+
+    @Test
+    public void shouldRunTransactionsThatLockInOppositeOrders() throws Exception {
+        // each thread changes one currency, waits for the other to do so, then changes the other
+        // currency: one of them has to run again
+        final CountDownLatch bothLocked = new CountDownLatch(2);
+        Thread coinFirst = new Thread(new CrossingTransaction(COIN, GEM, bothLocked));
+        Thread gemFirst = new Thread(new CrossingTransaction(GEM, COIN, bothLocked));
+        coinFirst.start();
+        gemFirst.start();
+        coinFirst.join(10000);
+        gemFirst.join(10000);
+
+        assertThat(coinFirst.isAlive() || gemFirst.isAlive(), equalTo(false));
+        assertThat(mStorage.getBalance(COIN), equalTo(12));
+        assertThat(mStorage.getBalance(GEM), equalTo(12));
+    }
+
+    @Test
+    public void shouldReplayAJournalLeftByACrash() throws Exception {
+        // a commit that died after writing its journal and one of its changes
+        KeyValueStorage.setValue(JOURNAL_KEY, "{\"" + balanceKey(COIN) + "\":\"20\",\""
+                + balanceKey(GEM) + "\":\"30\"}");
+        KeyValueStorage.setValue(balanceKey(COIN), "20");
+        Field recovered = StorageManager.class.getDeclaredField("sJournalRecovered");
+        recovered.setAccessible(true);
+        recovered.setBoolean(null, false);
+        StorageManager.clearCaches();
+
+        assertThat(mStorage.getBalance(GEM), equalTo(30));
+        assertThat(mStorage.getBalance(COIN), equalTo(20));
+        assertThat(KeyValueStorage.getValue(JOURNAL_KEY), nullValue());
+    }
+
+    @Subscribe
+    public void onCurrencyBalanceChanged(CurrencyBalanceChangedEvent event) {
+        mEvents.add(event.getCurrencyItemId() + " " + event.getBalance());
+    }
+
+    private static String balanceKey(String itemId) {
+        return "currency." + itemId + ".balance";
+    }
+
+    private class CrossingTransaction implements Runnable {
+
+        CrossingTransaction(String first, String second, CountDownLatch bothLocked) {
+            mFirst = first;
+            mSecond = second;
+            mBothLocked = bothLocked;
+        }
+
+        @Override
+        public void run() {
+            StorageManager.runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    mStorage.add(mFirst, 1, false);
+                    mBothLocked.countDown();
+                    try {
+                        mBothLocked.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    mStorage.add(mSecond, 1, false);
+                }
+            });
+        }
+
+        private final String mFirst;
+        private final String mSecond;
+        private final CountDownLatch mBothLocked;
+    }
+}
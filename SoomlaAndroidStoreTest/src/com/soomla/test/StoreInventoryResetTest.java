@@ -0,0 +1,157 @@
+package com.soomla.test;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaApp;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.data.InventoryChange;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.events.CurrencyBalanceChangedEvent;
+import com.soomla.store.events.GoodBalanceChangedEvent;
+import com.soomla.store.events.GoodEquippedEvent;
+import com.soomla.store.events.GoodUnEquippedEvent;
+import com.soomla.store.events.GoodUpgradeEvent;
+import com.squareup.otto.Subscribe;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import static com.soomla.test.InventoryTestAssets.*;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StoreInventoryResetTest {
+
+    private final List<String> mEvents = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreInfo.setStoreAssets(new InventoryTestAssets());
+        BusProvider.getInstance().register(this);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        BusProvider.getInstance().unregister(this);
+    }
+
+    @Test
+    public void shouldLeaveTheSameInventoryAndEventsInBothModes() throws Exception {
+        List<HashMap<String, HashMap<String, Object>>> targets =
+                new ArrayList<HashMap<String, HashMap<String, Object>>>();
+        targets.add(baseState());
+
+        HashMap<String, HashMap<String, Object>> coinChanged = baseState();
+        coinChanged.get(COIN).put("balance", 60);
+        targets.add(coinChanged);
+
+        // both weapons equipped: the one that comes last unequips the other in both modes
+        HashMap<String, HashMap<String, Object>> weaponsSwapped = baseState();
+        weaponsSwapped.get(SHIELD).put("equipped", true);
+        weaponsSwapped.get(SWORD).put("currentUpgrade", SWORD_UPGRADE_2);
+        weaponsSwapped.remove(HAT);
+        targets.add(weaponsSwapped);
+
+        HashMap<String, HashMap<String, Object>> invalid = new HashMap<String, HashMap<String, Object>>();
+        put(invalid, GEM, "balance", 2);
+        put(invalid, SWORD, "equipped", true);
+        put(invalid, POTION, "equipped", true);
+        put(invalid, COIN_PACK, "balance", 5);
+        put(invalid, "no_such_item", "balance", 1);
+        targets.add(invalid);
+
+        targets.add(new HashMap<String, HashMap<String, Object>>());
+
+        for (HashMap<String, HashMap<String, Object>> target : targets) {
+            StoreInventory.resetAllItemsBalances(baseState());
+            mEvents.clear();
+            boolean fullResult = StoreInventory.resetAllItemsBalances(target, false);
+            String fullState = new TreeMap<String, Object>(StoreInventory.allItemsBalances()).toString();
+            String fullEvents = mEvents.toString();
+
+            StoreInventory.resetAllItemsBalances(baseState());
+            mEvents.clear();
+            boolean diffResult = StoreInventory.resetAllItemsBalances(target, true);
+            String diffState = new TreeMap<String, Object>(StoreInventory.allItemsBalances()).toString();
+
+            assertThat(diffResult, equalTo(fullResult));
+            assertThat(diffState, equalTo(fullState));
+            assertThat(mEvents.toString(), equalTo(fullEvents));
+        }
+    }
+
+    @Test
+    public void shouldRecordOnlyTheItemsThatChange() throws Exception {
+        StoreInventory.resetAllItemsBalances(baseState());
+        long version = StoreInventory.getInventoryVersion();
+
+        HashMap<String, HashMap<String, Object>> coinChanged = baseState();
+        coinChanged.get(COIN).put("balance", 60);
+        StoreInventory.resetAllItemsBalances(coinChanged, true);
+
+        List<InventoryChange> changes = StoreInventory.changesSince(version).getChanges();
+        assertThat(changes.size(), equalTo(1));
+        assertThat(changes.get(0).getItemId(), equalTo(COIN));
+        assertThat(changes.get(0).getOldValue(), equalTo(50));
+        assertThat(changes.get(0).getNewValue(), equalTo(60));
+
+        version = StoreInventory.getInventoryVersion();
+        StoreInventory.resetAllItemsBalances(coinChanged, true);
+        assertThat(StoreInventory.changesSince(version).getChanges().size(), equalTo(0));
+    }
+
+    @Subscribe
+    public void onCurrencyBalanceChanged(CurrencyBalanceChangedEvent event) {
+        mEvents.add("balance " + event.getCurrencyItemId());
+    }
+
+    @Subscribe
+    public void onGoodBalanceChanged(GoodBalanceChangedEvent event) {
+        mEvents.add("balance " + event.getGoodItemId());
+    }
+
+    @Subscribe
+    public void onGoodEquipped(GoodEquippedEvent event) {
+        mEvents.add("equipped " + event.getGoodItemId());
+    }
+
+    @Subscribe
+    public void onGoodUnEquipped(GoodUnEquippedEvent event) {
+        mEvents.add("unequipped " + event.getGoodItemId());
+    }
+
+    @Subscribe
+    public void onGoodUpgrade(GoodUpgradeEvent event) {
+        mEvents.add("upgrade " + event.getGoodItemId());
+    }
+
+    private static HashMap<String, HashMap<String, Object>> baseState() {
+        HashMap<String, HashMap<String, Object>> state = new HashMap<String, HashMap<String, Object>>();
+        put(state, COIN, "balance", 50);
+        put(state, POTION, "balance", 3);
+        put(state, SWORD, "balance", 1);
+        put(state, SWORD, "equipped", true);
+        put(state, SWORD, "currentUpgrade", SWORD_UPGRADE_1);
+        put(state, SHIELD, "balance", 1);
+        put(state, HAT, "balance", 1);
+        put(state, HAT, "equipped", true);
+        return state;
+    }
+
+    private static void put(HashMap<String, HashMap<String, Object>> state, String itemId,
+                            String key, Object value) {
+        if (!state.containsKey(itemId)) {
+            state.put(itemId, new HashMap<String, Object>());
+        }
+        state.get(itemId).put(key, value);
+    }
+}
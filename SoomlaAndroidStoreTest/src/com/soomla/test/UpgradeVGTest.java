@@ -0,0 +1,95 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.soomla.test.InventoryTestAssets.*;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class UpgradeVGTest {
+
+    private static final String CAR = "test_car";
+    private static final String CAR_UPGRADE_1 = "test_car_up1";
+    private static final String CAR_UPGRADE_2 = "test_car_up2";
+    private static final String CAR_UPGRADE_3 = "test_car_up3";
+    private static final String CAR_PAINT = "test_car_paint";
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreInfo.setStoreAssets(new BrokenChainAssets());
+        StoreInventory.removeUpgrades(SWORD);
+        StoreInventory.removeUpgrades(CAR);
+        StoreInventory.giveVirtualItem(COIN, 1000);
+    }
+
+    @Test
+    public void shouldBuyOnlyTheNextOrPreviousLevel() throws Exception {
+        StoreInventory.buy(SWORD_UPGRADE_2, "");
+        assertThat(StoreInventory.getGoodCurrentUpgrade(SWORD), equalTo(""));
+
+        StoreInventory.buy(SWORD_UPGRADE_1, "");
+        assertThat(StoreInventory.getGoodCurrentUpgrade(SWORD), equalTo(SWORD_UPGRADE_1));
+
+        StoreInventory.buy(SWORD_UPGRADE_2, "");
+        assertThat(StoreInventory.getGoodCurrentUpgrade(SWORD), equalTo(SWORD_UPGRADE_2));
+        assertThat(StoreInventory.getGoodUpgradeLevel(SWORD), equalTo(2));
+    }
+
+    @Test
+    public void shouldBuyFromASeriesWithoutLevelsByItsNeighbours() throws Exception {
+        // the series starts at the paint, so the other upgrades have no level
+        assertThat(StoreInfo.getUpgradeLevel((UpgradeVG) StoreInfo.getVirtualItem(CAR_UPGRADE_1)),
+                equalTo(0));
+
+        StoreInventory.buy(CAR_UPGRADE_2, "");
+        assertThat(StoreInventory.getGoodCurrentUpgrade(CAR), equalTo(""));
+
+        StoreInventory.buy(CAR_UPGRADE_1, "");
+        assertThat(StoreInventory.getGoodCurrentUpgrade(CAR), equalTo(CAR_UPGRADE_1));
+
+        StoreInventory.buy(CAR_UPGRADE_3, "");
+        assertThat(StoreInventory.getGoodCurrentUpgrade(CAR), equalTo(CAR_UPGRADE_1));
+
+        StoreInventory.buy(CAR_UPGRADE_2, "");
+        assertThat(StoreInventory.getGoodCurrentUpgrade(CAR), equalTo(CAR_UPGRADE_2));
+    }
+
+    /**
+     * The test store with a car whose upgrades have two first upgrades. The series is built from
+     * the last of them, so only it has a level.
+     */
+    private static class BrokenChainAssets extends InventoryTestAssets {
+
+        @Override
+        public VirtualGood[] getGoods() {
+            List<VirtualGood> goods = new ArrayList<VirtualGood>(Arrays.asList(super.getGoods()));
+            goods.add(new LifetimeVG("Car", "", CAR, new PurchaseWithVirtualItem(COIN, 100)));
+            goods.add(new UpgradeVG(CAR, "", CAR_UPGRADE_2, "Car 1", "", CAR_UPGRADE_1,
+                    new PurchaseWithVirtualItem(COIN, 10)));
+            goods.add(new UpgradeVG(CAR, CAR_UPGRADE_1, CAR_UPGRADE_3, "Car 2", "", CAR_UPGRADE_2,
+                    new PurchaseWithVirtualItem(COIN, 10)));
+            goods.add(new UpgradeVG(CAR, CAR_UPGRADE_2, "", "Car 3", "", CAR_UPGRADE_3,
+                    new PurchaseWithVirtualItem(COIN, 10)));
+            goods.add(new UpgradeVG(CAR, "", "", "Paint", "", CAR_PAINT,
+                    new PurchaseWithVirtualItem(COIN, 10)));
+            return goods.toArray(new VirtualGood[goods.size()]);
+        }
+    }
+}
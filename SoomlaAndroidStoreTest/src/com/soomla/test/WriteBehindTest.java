@@ -0,0 +1,79 @@
+package com.soomla.test;
+
+import com.soomla.SoomlaApp;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.data.VirtualCurrencyStorage;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.soomla.test.InventoryTestAssets.*;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class WriteBehindTest {
+
+    private VirtualCurrencyStorage mStorage;
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StoreInfo.setStoreAssets(new InventoryTestAssets());
+        mStorage = StorageManager.getVirtualCurrencyStorage();
+        mStorage.setBalance(COIN, 10, false);
+        mStorage.setBalance(GEM, 10, false);
+        StorageManager.setWriteBehind(true, StorageManager.MAX_WRITE_BEHIND_WINDOW_MS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        StorageManager.setWriteBehind(false);
+    }
+
+    @Test
+    public void shouldPersistPendingChangesOnFlush() throws Exception {
+        mStorage.add(COIN, 5, false);
+        mStorage.add(COIN, 5, false);
+        mStorage.remove(GEM, 3, false);
+
+        // reads see the changes right away, the database only after the flush
+        assertThat(mStorage.getBalance(COIN), equalTo(20));
+        assertThat(KeyValueStorage.getValue(balanceKey(COIN)), equalTo("10"));
+
+        StorageManager.flush();
+        assertThat(KeyValueStorage.getValue(balanceKey(COIN)), equalTo("20"));
+        assertThat(KeyValueStorage.getValue(balanceKey(GEM)), equalTo("7"));
+    }
+
+    @Test
+    public void shouldPersistPendingChangesWithinTheWindow() throws Exception {
+        mStorage.add(COIN, 5, false);
+
+        long deadline = System.currentTimeMillis() + 3 * StorageManager.MAX_WRITE_BEHIND_WINDOW_MS;
+        while (!"15".equals(KeyValueStorage.getValue(balanceKey(COIN)))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertThat(KeyValueStorage.getValue(balanceKey(COIN)), equalTo("15"));
+    }
+
+    @Test
+    public void shouldFlushWhenTurnedOff() throws Exception {
+        mStorage.add(COIN, 5, false);
+        StorageManager.setWriteBehind(false);
+
+        assertThat(KeyValueStorage.getValue(balanceKey(COIN)), equalTo("15"));
+        mStorage.add(COIN, 5, false);
+        assertThat(KeyValueStorage.getValue(balanceKey(COIN)), equalTo("20"));
+    }
+
+    private static String balanceKey(String itemId) {
+        return "currency." + itemId + ".balance";
+    }
+}